@@ -16,6 +16,11 @@ public class App implements WebSocketConfigurer {
 		return new ChatHandler();
 	}
 
+	@Bean
+	public ChatManager chatManager() {
+		return chatHandler().getChatManager();
+	}
+
 	@Override
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
 		registry.addHandler(chatHandler(), "/chat");		
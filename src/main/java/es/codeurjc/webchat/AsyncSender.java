@@ -0,0 +1,326 @@
+package es.codeurjc.webchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendResult;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import es.codeurjc.webchat.metrics.Histogram;
+import es.codeurjc.webchat.metrics.Metrics;
+
+/**
+ * Writes the frames of one session in order, one at a time, without blocking
+ * the caller. When the container exposes a JSR-356 session its asynchronous
+ * remote is used, otherwise frames are written synchronously by the caller,
+ * which must then not call concurrently. If a write fails, takes longer than
+ * the {@link SendPolicy} allows, or too many bytes pile up behind it, the
+ * sender gives up and calls its failure callback once. A write in flight is
+ * timed on the timer, so it is caught even if no other frame comes.
+ */
+class AsyncSender {
+
+	private static final long[] NONE = new long[0];
+
+	private static class Frame {
+		final WebSocketMessage<?> message;
+		// Receive times of the chat messages in the frame, 0 if there are none
+		final long created;
+		final long[] moreCreated;
+
+		Frame(WebSocketMessage<?> message, long created, long[] moreCreated) {
+			this.message = message;
+			this.created = created;
+			this.moreCreated = moreCreated;
+		}
+	}
+
+	private final WebSocketSession session;
+	private final RemoteEndpoint.Async remote;
+	private final ScheduledExecutorService timer;
+	private final long sendTimeLimitNanos;
+	private final long bufferSizeLimit;
+	private final Consumer<String> onFailure;
+
+	private final Histogram sendTime;
+	private final Histogram deliveryLatency;
+	private final LongAdder sendFailures;
+
+	private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+	private long bufferedBytes;
+	private boolean inFlight;
+	private long inFlightSince;
+	private boolean pumping;
+	private boolean timing;
+	private volatile boolean failed;
+	// Run once nothing is queued or in flight, guarded by this
+	private Runnable onIdle;
+
+	/**
+	 * @param timer where writes in flight are timed, or null to only check
+	 *        them when the next frame is sent
+	 * @param onFailure called with the reason the first time the sender gives up
+	 */
+	AsyncSender(WebSocketSession session, SendPolicy policy, Metrics metrics, ScheduledExecutorService timer,
+			Consumer<String> onFailure) {
+		this.session = session;
+		this.remote = asyncRemote(session);
+		this.timer = timer;
+		this.sendTimeLimitNanos = TimeUnit.MILLISECONDS.toNanos(policy.getSendTimeLimitMillis());
+		this.bufferSizeLimit = policy.getBufferSizeLimit();
+		this.onFailure = onFailure;
+		this.sendTime = metrics.histogram("websocket.send.nanos");
+		this.deliveryLatency = metrics.histogram("delivery.latency.nanos");
+		this.sendFailures = metrics.counter("websocket.send.failures");
+	}
+
+	private static RemoteEndpoint.Async asyncRemote(WebSocketSession session) {
+		if (session instanceof NativeWebSocketSession) {
+			jakarta.websocket.Session nativeSession = ((NativeWebSocketSession) session)
+					.getNativeSession(jakarta.websocket.Session.class);
+			if (nativeSession != null) {
+				return nativeSession.getAsyncRemote();
+			}
+		}
+		return null;
+	}
+
+	boolean isAsync() {
+		return remote != null;
+	}
+
+	/**
+	 * @param created receive time of the chat message in the frame, to record
+	 *        its delivery latency once written, or 0
+	 */
+	void send(WebSocketMessage<?> message, long created) {
+		send(new Frame(message, created, NONE));
+	}
+
+	/**
+	 * @param created receive times of the chat messages in the frame
+	 */
+	void send(WebSocketMessage<?> message, long[] created) {
+		send(new Frame(message, 0, created));
+	}
+
+	private void send(Frame frame) {
+		if (remote == null) {
+			if (!failed) {
+				write(frame);
+			}
+			return;
+		}
+		WebSocketMessage<?> message = frame.message;
+		String failure = null;
+		synchronized (this) {
+			if (failed) {
+				return;
+			}
+			if (inFlight && sendTimeLimitNanos > 0 && System.nanoTime() - inFlightSince > sendTimeLimitNanos) {
+				failure = "Send time limit exceeded";
+			} else if (bufferSizeLimit > 0 && bufferedBytes + message.getPayloadLength() > bufferSizeLimit) {
+				failure = "Send buffer limit exceeded";
+			} else {
+				queue.add(frame);
+				bufferedBytes += message.getPayloadLength();
+			}
+		}
+		if (failure != null) {
+			fail(failure);
+			return;
+		}
+		pump();
+	}
+
+	synchronized long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	/**
+	 * Runs the action once every frame sent so far has been written, or right
+	 * away if the sender has failed.
+	 */
+	void whenIdle(Runnable action) {
+		synchronized (this) {
+			if (!failed && (inFlight || !queue.isEmpty())) {
+				onIdle = action;
+				return;
+			}
+		}
+		action.run();
+	}
+
+	// Takes the idle action if it is due, under the lock
+	private Runnable idleAction() {
+		Runnable action = null;
+		if (onIdle != null && (failed || (!inFlight && queue.isEmpty()))) {
+			action = onIdle;
+			onIdle = null;
+		}
+		return action;
+	}
+
+	/**
+	 * Writes queued frames until one is left in flight. Only one thread pumps
+	 * at a time, and a write completing on the pumping thread itself just lets
+	 * the loop go on instead of recursing.
+	 */
+	private void pump() {
+		synchronized (this) {
+			if (pumping) {
+				return;
+			}
+			pumping = true;
+		}
+		while (true) {
+			Frame frame = null;
+			Runnable idle = null;
+			boolean time = false;
+			synchronized (this) {
+				if (inFlight || failed || queue.isEmpty()) {
+					pumping = false;
+					idle = idleAction();
+				} else {
+					frame = queue.poll();
+					bufferedBytes -= frame.message.getPayloadLength();
+					inFlight = true;
+					inFlightSince = System.nanoTime();
+					time = timer != null && sendTimeLimitNanos > 0 && !timing;
+					timing |= time;
+				}
+			}
+			if (frame == null) {
+				if (idle != null) {
+					idle.run();
+				}
+				return;
+			}
+			if (time) {
+				checkSendTime(sendTimeLimitNanos);
+			}
+			write(frame);
+		}
+	}
+
+	/**
+	 * Fails the sender if the write in flight is over the time limit, or
+	 * checks again when it would be. One check at most is pending.
+	 */
+	private void checkSendTime(long delayNanos) {
+		try {
+			timer.schedule(() -> {
+				long remaining;
+				synchronized (this) {
+					if (failed || !inFlight) {
+						timing = false;
+						return;
+					}
+					remaining = inFlightSince + sendTimeLimitNanos - System.nanoTime();
+					timing = remaining > 0;
+				}
+				if (remaining > 0) {
+					checkSendTime(remaining);
+				} else {
+					fail("Send time limit exceeded");
+				}
+			}, delayNanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// The timer is gone, the next frame checks the time instead
+			synchronized (this) {
+				timing = false;
+			}
+		}
+	}
+
+	private void write(Frame frame) {
+		long start = System.nanoTime();
+		if (remote == null) {
+			try {
+				session.sendMessage(frame.message);
+				completed(frame, start, null);
+			} catch (IOException | IllegalStateException e) {
+				completed(frame, start, e);
+			}
+			return;
+		}
+		try {
+			WebSocketMessage<?> message = frame.message;
+			if (message instanceof TextMessage) {
+				remote.sendText(((TextMessage) message).getPayload(),
+						result -> completed(frame, start, error(result)));
+			} else if (message instanceof BinaryMessage) {
+				ByteBuffer payload = ((BinaryMessage) message).getPayload().duplicate();
+				remote.sendBinary(payload, result -> completed(frame, start, error(result)));
+			} else {
+				throw new IllegalArgumentException("Unexpected frame " + message);
+			}
+		} catch (RuntimeException e) {
+			completed(frame, start, e);
+		}
+	}
+
+	private static Throwable error(SendResult result) {
+		if (result.isOK()) {
+			return null;
+		}
+		return result.getException() != null ? result.getException() : new IOException("Send failed");
+	}
+
+	private void completed(Frame frame, long start, Throwable error) {
+		long now = System.nanoTime();
+		sendTime.record(now - start);
+		if (error != null) {
+			sendFailures.increment();
+			// The close reason must fit in a control frame, so the error itself is not sent
+			fail("Send failed");
+			return;
+		}
+		if (frame.created != 0) {
+			deliveryLatency.record(now - frame.created);
+		}
+		for (long created : frame.moreCreated) {
+			deliveryLatency.record(now - created);
+		}
+		if (remote == null) {
+			return;
+		}
+		boolean resume;
+		synchronized (this) {
+			inFlight = false;
+			resume = !pumping;
+		}
+		if (resume) {
+			pump();
+		}
+	}
+
+	private void fail(String reason) {
+		Runnable idle;
+		synchronized (this) {
+			if (failed) {
+				return;
+			}
+			failed = true;
+			queue.clear();
+			bufferedBytes = 0;
+			idle = idleAction();
+		}
+		onFailure.accept(reason);
+		if (idle != null) {
+			idle.run();
+		}
+	}
+}
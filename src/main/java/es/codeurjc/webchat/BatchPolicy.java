@@ -0,0 +1,43 @@
+package es.codeurjc.webchat;
+
+/**
+ * How many events a user may merge into a single outbound frame, and for how
+ * long a mailbox that ran dry waits for more before flushing what it has.
+ */
+public final class BatchPolicy {
+
+	public static final BatchPolicy NONE = new BatchPolicy(1, 0);
+
+	private final int maxBatchSize;
+	private final long lingerMillis;
+
+	/**
+	 * @param maxBatchSize maximum events per frame, 1 sends one frame per event
+	 * @param lingerMillis 0 flushes as soon as the mailbox is empty
+	 */
+	public BatchPolicy(int maxBatchSize, long lingerMillis) {
+		if (maxBatchSize < 1 || lingerMillis < 0) {
+			throw new IllegalArgumentException("Invalid batch policy: max size " + maxBatchSize
+					+ ", linger " + lingerMillis + "ms");
+		}
+		this.maxBatchSize = maxBatchSize;
+		this.lingerMillis = lingerMillis;
+	}
+
+	static BatchPolicy fromSystemProperties() {
+		return new BatchPolicy(Integer.getInteger("webchat.batch.max", 1),
+				Long.getLong("webchat.batch.linger.ms", 0));
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public long getLingerMillis() {
+		return lingerMillis;
+	}
+
+	public boolean isEnabled() {
+		return maxBatchSize > 1;
+	}
+}
@@ -0,0 +1,112 @@
+package es.codeurjc.webchat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * {@link BinaryProtocol} frames for one session. Users and chats are replaced
+ * by the ids of their {@link Identity}, and a name and color only travel the
+ * first time the session sees them.
+ */
+public class BinaryFrameEncoder implements FrameEncoder {
+
+	// Ids already defined to the session
+	private final IntSet userIds = new IntSet();
+	private final IntSet chatIds = new IntSet();
+
+	@Override
+	public WebSocketMessage<?> newChat(Chat chat) {
+		return chatEvent(BinaryProtocol.NEW_CHAT, chat);
+	}
+
+	@Override
+	public WebSocketMessage<?> chatClosed(Chat chat) {
+		WebSocketMessage<?> frame = chatEvent(BinaryProtocol.CHAT_CLOSED, chat);
+		// Its id never comes back, so lobby sessions don't pile up closed chats
+		chatIds.remove(chat.getIdentity().getId());
+		return frame;
+	}
+
+	@Override
+	public WebSocketMessage<?> newUserInChat(Chat chat, User user) {
+		return userEvent(BinaryProtocol.USER_JOINED, chat, user);
+	}
+
+	@Override
+	public WebSocketMessage<?> userExitedFromChat(Chat chat, User user) {
+		return userEvent(BinaryProtocol.USER_LEFT, chat, user);
+	}
+
+	@Override
+	public WebSocketMessage<?> newMessage(ChatMessage message) {
+		byte[] text = message.getMessageBytes();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 + text.length);
+		int chatId = chatId(out, message.getChat());
+		int userId = userId(out, message.getSender(), false);
+		out.write(BinaryProtocol.MESSAGE);
+		BinaryProtocol.writeVarint(out, chatId);
+		BinaryProtocol.writeVarint(out, userId);
+		BinaryProtocol.writeBytes(out, text);
+		return new BinaryMessage(out.toByteArray());
+	}
+
+	/**
+	 * A batch is the concatenation of the batched records.
+	 */
+	@Override
+	public WebSocketMessage<?> batch(List<WebSocketMessage<?>> frames) {
+		int length = 0;
+		for (WebSocketMessage<?> frame : frames) {
+			length += frame.getPayloadLength();
+		}
+		ByteBuffer batch = ByteBuffer.allocate(length);
+		for (WebSocketMessage<?> frame : frames) {
+			batch.put(((BinaryMessage) frame).getPayload().duplicate());
+		}
+		batch.flip();
+		return new BinaryMessage(batch);
+	}
+
+	private WebSocketMessage<?> chatEvent(byte opcode, Chat chat) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+		int chatId = chatId(out, chat);
+		out.write(opcode);
+		BinaryProtocol.writeVarint(out, chatId);
+		return new BinaryMessage(out.toByteArray());
+	}
+
+	private WebSocketMessage<?> userEvent(byte opcode, Chat chat, User user) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+		int chatId = chatId(out, chat);
+		// A user joining again keeps its id, but may have another color
+		int userId = userId(out, chat.identify(user), opcode == BinaryProtocol.USER_JOINED);
+		out.write(opcode);
+		BinaryProtocol.writeVarint(out, chatId);
+		BinaryProtocol.writeVarint(out, userId);
+		return new BinaryMessage(out.toByteArray());
+	}
+
+	private int chatId(ByteArrayOutputStream out, Chat chat) {
+		Identity identity = chat.getIdentity();
+		if (chatIds.add(identity.getId())) {
+			out.write(BinaryProtocol.CHAT);
+			BinaryProtocol.writeVarint(out, identity.getId());
+			BinaryProtocol.writeBytes(out, identity.getNameBytes());
+		}
+		return identity.getId();
+	}
+
+	private int userId(ByteArrayOutputStream out, Identity identity, boolean define) {
+		if (userIds.add(identity.getId()) || define) {
+			out.write(BinaryProtocol.USER);
+			BinaryProtocol.writeVarint(out, identity.getId());
+			BinaryProtocol.writeBytes(out, identity.getNameBytes());
+			BinaryProtocol.writeBytes(out, identity.getColorBytes());
+		}
+		return identity.getId();
+	}
+}
@@ -0,0 +1,44 @@
+package es.codeurjc.webchat;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the frames sent by clients speaking {@link BinaryProtocol}.
+ */
+public class BinaryMessageDecoder {
+
+	public InboundMessage decode(ByteBuffer payload) throws IOException {
+		ByteBuffer in = payload.hasArray() ? payload.duplicate() : copy(payload);
+		try {
+			byte opcode = in.get();
+			switch (opcode) {
+			case BinaryProtocol.JOIN:
+				String chat = BinaryProtocol.readString(in);
+				String user = BinaryProtocol.readString(in);
+				// The lobby flag was added later, older clients leave it out
+				boolean lobby = in.hasRemaining() && in.get() != 0;
+				return InboundMessage.join(chat, user, lobby);
+			case BinaryProtocol.SEND:
+				return InboundMessage.message(BinaryProtocol.readString(in));
+			case BinaryProtocol.LEAVE:
+				return InboundMessage.leave(BinaryProtocol.readString(in));
+			case BinaryProtocol.SEND_TO:
+				String to = BinaryProtocol.readString(in);
+				return InboundMessage.message(to, BinaryProtocol.readString(in));
+			default:
+				throw new IOException("Unknown opcode " + opcode);
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Malformed binary frame", e);
+		}
+	}
+
+	private static ByteBuffer copy(ByteBuffer payload) {
+		ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+		copy.put(payload.duplicate());
+		copy.flip();
+		return copy;
+	}
+}
@@ -0,0 +1,101 @@
+package es.codeurjc.webchat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary WebSocket subprotocol. Every WebSocket message holds one or
+ * more records, each one an opcode byte followed by its fields. Integers are
+ * unsigned LEB128 varints and strings are a varint byte length followed by
+ * UTF-8 bytes.
+ *
+ * <pre>
+ * client to server
+ *   0x01 JOIN          chat, user, [lobby]   (lobby: optional byte, 1 to hear about every chat)
+ *   0x02 MESSAGE       message               (to the first chat joined)
+ *   0x03 LEAVE         chat
+ *   0x04 MESSAGE_TO    chat, message
+ * server to client
+ *   0x10 USER          userId, name, color   (sent before the first use of userId, and before USER_JOINED)
+ *   0x11 CHAT          chatId, name          (sent before the first use of chatId)
+ *   0x20 MESSAGE       chatId, userId, message
+ *   0x30 NEW_CHAT      chatId
+ *   0x31 CHAT_CLOSED   chatId
+ *   0x32 USER_JOINED   chatId, userId
+ *   0x33 USER_LEFT     chatId, userId
+ * </pre>
+ *
+ * A session registers its user with the first JOIN, whose user name is the
+ * only one that counts, and may then join and leave any number of chats.
+ * Ids are the same for every session of a server and never stand for another
+ * user or chat, but they are not dense: a user that leaves and comes back once
+ * nothing holds its name, or a chat that is closed and opened again, gets a
+ * new one. A user that comes back while its name is held keeps its id, and
+ * its USER record comes again with its current color.
+ */
+public final class BinaryProtocol {
+
+	public static final String JSON_SUBPROTOCOL = "webchat.json";
+	public static final String BINARY_SUBPROTOCOL = "webchat.binary";
+
+	public static final byte JOIN = 0x01;
+	public static final byte SEND = 0x02;
+	public static final byte LEAVE = 0x03;
+	public static final byte SEND_TO = 0x04;
+
+	public static final byte USER = 0x10;
+	public static final byte CHAT = 0x11;
+	public static final byte MESSAGE = 0x20;
+	public static final byte NEW_CHAT = 0x30;
+	public static final byte CHAT_CLOSED = 0x31;
+	public static final byte USER_JOINED = 0x32;
+	public static final byte USER_LEFT = 0x33;
+
+	private BinaryProtocol() {
+	}
+
+	public static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	public static void writeString(ByteArrayOutputStream out, String value) {
+		writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static void writeBytes(ByteArrayOutputStream out, byte[] value) {
+		writeVarint(out, value.length);
+		out.write(value, 0, value.length);
+	}
+
+	public static int readVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	public static String readString(ByteBuffer in) {
+		int length = readVarint(in);
+		if (length < 0) {
+			throw new IllegalArgumentException("Negative string length " + length);
+		}
+		if (length > in.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+				StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+}
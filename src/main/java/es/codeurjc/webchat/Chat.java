@@ -1,60 +1,346 @@
 package es.codeurjc.webchat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import es.codeurjc.webchat.cluster.ClusterEvent;
+import es.codeurjc.webchat.metrics.Histogram;
+import es.codeurjc.webchat.persistence.LogRecord;
+import es.codeurjc.webchat.persistence.MessageLog;
 
 public class Chat {
 
+	private static final User[] NO_MEMBERS = new User[0];
+
 	private String name;
+	private Identity identity;
 	private ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
 
+	// The values of users, copied on every join and leave under the lock so
+	// that events go out with a plain loop over an array
+	private volatile User[] members = NO_MEMBERS;
+
+	// Members connected to other nodes of the cluster
+	private ConcurrentHashMap<String, User> remoteUsers = new ConcurrentHashMap<>();
+	// Authors of the history restored from the log, held until the chat closes
+	private List<Identity> authors = new ArrayList<>();
+
 	private ChatManager chatManager;
 
+	// Appended under the lock, read without it
+	private MessageHistory history;
+
+	private volatile long lastActivity = System.nanoTime();
+
+	private LongAdder messages = new LongAdder();
+	// Messages admitted from sessions, see ChatManager#limitMessages
+	private TokenBucket messageRate = new TokenBucket();
+	private Histogram fanOut;
+
+	// Guarded by this, so that no user joins a chat while it is being closed
+	private volatile boolean closed;
+	private volatile User[] membersAtClose = NO_MEMBERS;
+
 	public Chat(ChatManager chatManager, String name) {
 		this.chatManager = chatManager;
 		this.name = name;
+		this.identity = chatManager.getIdentities().chat(name);
+		this.history = new MessageHistory(chatManager.getHistorySize());
+
+		this.fanOut = chatManager.getDispatcher().getMetrics().histogram("chat.fanout");
+
+		MessageLog log = chatManager.getMessageLog();
+		if (log != null && history.getCapacity() > 0) {
+			for (LogRecord record : log.tail(name, history.getCapacity())) {
+				Identity author = chatManager.getIdentities().holdAuthor(record.getUser(), record.getColor());
+				authors.add(author);
+				history.append(new ChatMessage(this, new RecordedUser(author), record.getMessage()));
+			}
+		}
 	}
 
 	public String getName() {
 		return name;
 	}
 
+	public Identity getIdentity() {
+		return identity;
+	}
+
+	Identity identify(User user) {
+		return chatManager.getIdentities().of(user);
+	}
+
+	TokenBucket getMessageRate() {
+		return messageRate;
+	}
+
+	/**
+	 * {@link System#nanoTime()} of the last join, leave or message.
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Messages delivered to the chat since it was opened.
+	 */
+	public long getMessageCount() {
+		return messages.sum();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @throws IllegalStateException if the chat has already been closed
+	 */
 	public void addUser(User user) {
-		users.put(user.getName(), new QueuedUser(user));
-		for(User u : users.values()){
-			if (u != user) {
-				u.newUserInChat(this, user);
+		QueuedUser queuedUser = chatManager.queued(user);
+		User oldUser;
+		synchronized (this) {
+			if (closed) {
+				chatManager.release(queuedUser);
+				throw new IllegalStateException("Chat \'" + name + "\' is closed");
+			}
+			lastActivity = System.nanoTime();
+			if (!users.containsKey(user.getName()) && history.getTail() > 0 && history.getCapacity() > 0) {
+				queuedUser.replayHistory(this, history.getTail());
+			}
+			oldUser = users.put(user.getName(), queuedUser);
+			if (oldUser != queuedUser) {
+				members = replaceMember(members, oldUser, queuedUser);
+			}
+		}
+		if (oldUser != null && oldUser != queuedUser) {
+			chatManager.release((QueuedUser) oldUser);
+		}
+		// Members get the identity resolved once, not the user itself
+		User joined = chatManager.getIdentities().record(user);
+		for(User u : members){
+			if (u != queuedUser) {
+				u.newUserInChat(this, joined);
 			}
 		}
+		chatManager.publish(ClusterEvent.userJoined(name, user.getName(), user.getColor()));
 	}
 
 	public void removeUser(User user) {
-		User oldUser = users.remove(user.getName());
+		User oldUser;
+		synchronized (this) {
+			oldUser = users.remove(user.getName());
+			if (oldUser != null) {
+				members = replaceMember(members, oldUser, null);
+			}
+		}
 		if(oldUser != null) {
-			for (User u : users.values()) {
-				u.userExitedFromChat(this, user);
+			lastActivity = System.nanoTime();
+			chatManager.release((QueuedUser) oldUser);
+			// Delivered after the user may have been unregistered
+			User left = chatManager.getIdentities().record(user);
+			for (User u : members) {
+				u.userExitedFromChat(this, left);
+			}
+			chatManager.publish(ClusterEvent.userLeft(name, user.getName()));
+		}
+	}
+
+	void addRemoteUser(String userName, String color) {
+		Identity identity = chatManager.getIdentities().hold(userName, color);
+		User remoteUser = new RecordedUser(identity);
+		User oldUser;
+		synchronized (this) {
+			if (closed) {
+				chatManager.getIdentities().release(identity);
+				return;
+			}
+			lastActivity = System.nanoTime();
+			oldUser = remoteUsers.put(userName, remoteUser);
+		}
+		if (oldUser != null) {
+			chatManager.getIdentities().release(((RecordedUser) oldUser).getIdentity());
+		}
+		for (User u : members) {
+			u.newUserInChat(this, remoteUser);
+		}
+	}
+
+	void removeRemoteUser(String userName) {
+		User remoteUser = remoteUsers.remove(userName);
+		if (remoteUser != null) {
+			lastActivity = System.nanoTime();
+			chatManager.getIdentities().release(((RecordedUser) remoteUser).getIdentity());
+			for (User u : members) {
+				u.userExitedFromChat(this, remoteUser);
 			}
 		}
 	}
 
+	/**
+	 * Local members only, as of the last join or leave.
+	 */
 	public Collection<User> getUsers() {
-		return Collections.unmodifiableCollection(users.values());
+		return Collections.unmodifiableList(Arrays.asList(members));
+	}
+
+	/**
+	 * Copy of the members with the old one replaced by the new one, or
+	 * removed if there is no new one, or the new one added if there was no
+	 * old one.
+	 */
+	private static User[] replaceMember(User[] members, User oldUser, User newUser) {
+		if (oldUser != null) {
+			for (int i = 0; i < members.length; i++) {
+				if (members[i] == oldUser) {
+					if (newUser != null) {
+						User[] copy = members.clone();
+						copy[i] = newUser;
+						return copy;
+					}
+					User[] copy = new User[members.length - 1];
+					System.arraycopy(members, 0, copy, 0, i);
+					System.arraycopy(members, i + 1, copy, i, members.length - i - 1);
+					return copy;
+				}
+			}
+		}
+		if (newUser == null) {
+			return members;
+		}
+		User[] copy = Arrays.copyOf(members, members.length + 1);
+		copy[members.length] = newUser;
+		return copy;
+	}
+
+	/**
+	 * Members connected to other nodes of the cluster.
+	 */
+	public Collection<User> getRemoteUsers() {
+		return Collections.unmodifiableCollection(remoteUsers.values());
+	}
+
+	boolean isEmpty() {
+		return users.isEmpty() && remoteUsers.isEmpty();
 	}
 
 	public User getUser(String name) {
 		return users.get(name);
 	}
 
+	/**
+	 * The last messages sent to the chat, oldest first.
+	 */
+	public List<ChatMessage> getHistory() {
+		return history.snapshot(history.getTail());
+	}
+
+	List<ChatMessage> getHistory(long end) {
+		return history.snapshot(end);
+	}
+
+	/**
+	 * Messages sent after the chat is closed are dropped.
+	 */
 	public void sendMessage(User user, String message) {
-		for(User u : users.values()){
-			u.newMessage(this, user, message);
+		if (deliver(new ChatMessage(this, user, message))) {
+			chatManager.publish(ClusterEvent.message(name, user.getName(), user.getColor(), message));
+		}
+	}
+
+	void receiveRemoteMessage(String userName, String color, String message) {
+		User remoteUser = remoteUsers.get(userName);
+		if (remoteUser == null) {
+			remoteUser = chatManager.getIdentities().record(userName, color);
 		}
+		deliver(new ChatMessage(this, remoteUser, message));
+	}
+
+	/**
+	 * Fans out under the lock, so that every member gets the messages in the
+	 * order of the history, and a user joining gets each one either in the
+	 * replay or as a message. It only queues on the mailboxes, so senders to
+	 * the same chat wait for each other for a loop over the members.
+	 */
+	private boolean deliver(ChatMessage chatMessage) {
+		User user = chatMessage.getUser();
+		String message = chatMessage.getMessage();
+		User[] members;
+		synchronized (this) {
+			if (closed) {
+				return false;
+			}
+			lastActivity = System.nanoTime();
+			history.append(chatMessage);
+			// Queued in the same order as the history, written in the background
+			MessageLog log = chatManager.getMessageLog();
+			if (log != null) {
+				log.append(name, user.getName(), user.getColor(), message);
+			}
+			members = this.members;
+			for (User u : members) {
+				u.newMessage(chatMessage);
+			}
+		}
+		messages.increment();
+		fanOut.record(members.length);
+		return true;
 	}
 
 	public void close() {
 		this.chatManager.closeChat(this);
 	}
+
+	synchronized boolean markClosed() {
+		if (closed) {
+			return false;
+		}
+		closed = true;
+		membersAtClose = members;
+		releaseIdentities();
+		return true;
+	}
+
+	/**
+	 * The local members when the chat was closed, who are told about it
+	 * whether they are in the lobby or not.
+	 */
+	User[] getMembersAtClose() {
+		return membersAtClose;
+	}
+
+	/**
+	 * Closes the chat if it has been empty for the first TTL or inactive for
+	 * the second one, both measured from its last activity.
+	 */
+	synchronized boolean closeIfIdle(long emptyTtlNanos, long idleTtlNanos) {
+		long idle = System.nanoTime() - lastActivity;
+		if (closed || idle < idleTtlNanos && (idle < emptyTtlNanos || !isEmpty())) {
+			return false;
+		}
+		closed = true;
+		membersAtClose = members;
+		releaseIdentities();
+		return true;
+	}
+
+	// Events already out keep the identities, the names are just not held
+	private void releaseIdentities() {
+		IdentityRegistry identities = chatManager.getIdentities();
+		for (Identity author : authors) {
+			identities.release(author);
+		}
+		authors.clear();
+		for (String userName : remoteUsers.keySet()) {
+			User remoteUser = remoteUsers.remove(userName);
+			if (remoteUser != null) {
+				identities.release(((RecordedUser) remoteUser).getIdentity());
+			}
+		}
+	}
 }
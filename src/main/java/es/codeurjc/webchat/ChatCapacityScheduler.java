@@ -0,0 +1,129 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands out the chat slots of a {@link ChatManager}. Requests that find no
+ * free slot wait in FIFO order without blocking any thread, and a released
+ * slot goes straight to the oldest waiter. A request that waits longer than
+ * its timeout fails with a {@link TimeoutException}.
+ */
+public class ChatCapacityScheduler {
+
+	private final int capacity;
+	private final ScheduledExecutorService timer;
+	private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+	private int available;
+	private volatile Runnable reclaimer;
+
+	private final LongAdder granted = new LongAdder();
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder timedOut = new LongAdder();
+
+	public ChatCapacityScheduler(int capacity, ScheduledExecutorService timer) {
+		this.capacity = capacity;
+		this.available = capacity;
+		this.timer = timer;
+	}
+
+	/**
+	 * Called when a request has to wait, so that idle slots can be given back
+	 * with {@link #release()}.
+	 */
+	void setReclaimer(Runnable reclaimer) {
+		this.reclaimer = reclaimer;
+	}
+
+	public CompletableFuture<Void> acquire(long timeout, TimeUnit unit) {
+		CompletableFuture<Void> grant = new CompletableFuture<>();
+		synchronized (this) {
+			if (available > 0 && waiters.isEmpty()) {
+				available--;
+				granted.increment();
+				grant.complete(null);
+				return grant;
+			}
+			waiters.add(grant);
+		}
+		queued.increment();
+
+		try {
+			timer.schedule(() -> expire(grant), timeout, unit);
+		} catch (RejectedExecutionException e) {
+			expire(grant);
+		}
+
+		Runnable reclaim = reclaimer;
+		if (reclaim != null) {
+			reclaim.run();
+		}
+		return grant;
+	}
+
+	/**
+	 * @throws IllegalStateException if every slot is already free, which
+	 *         means a slot was released twice
+	 */
+	public void release() {
+		while (true) {
+			CompletableFuture<Void> next;
+			synchronized (this) {
+				next = waiters.poll();
+				if (next == null) {
+					if (available == capacity) {
+						throw new IllegalStateException("Released more chat slots than the " + capacity
+								+ " there are");
+					}
+					available++;
+					return;
+				}
+			}
+			// A waiter that timed out or was cancelled can't take the slot
+			if (next.complete(null)) {
+				granted.increment();
+				return;
+			}
+		}
+	}
+
+	private void expire(CompletableFuture<Void> grant) {
+		synchronized (this) {
+			// Otherwise release() has already taken it out to hand it a slot
+			if (!waiters.remove(grant)) {
+				return;
+			}
+		}
+		timedOut.increment();
+		grant.completeExceptionally(new TimeoutException("There is no enough capacity to create a new chat"));
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized int getAvailable() {
+		return available;
+	}
+
+	public synchronized int getQueueLength() {
+		return waiters.size();
+	}
+
+	public long getGranted() {
+		return granted.sum();
+	}
+
+	public long getQueued() {
+		return queued.sum();
+	}
+
+	public long getTimedOut() {
+		return timedOut.sum();
+	}
+}
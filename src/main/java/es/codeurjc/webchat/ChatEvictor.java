@@ -0,0 +1,68 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes chats that have been empty or idle for longer than the
+ * {@link EvictionPolicy} allows. Each chat has a single pending timeout on a
+ * {@link HashedWheelTimer}, set to the earliest moment it could expire, so
+ * activity costs nothing and no tick scans every chat.
+ */
+class ChatEvictor {
+
+	private static final int WHEEL_SIZE = 512;
+
+	private final ChatManager chatManager;
+	private final long emptyTtlNanos;
+	private final long idleTtlNanos;
+	private final HashedWheelTimer wheel;
+
+	ChatEvictor(ChatManager chatManager, EvictionPolicy policy) {
+		this.chatManager = chatManager;
+		this.emptyTtlNanos = TimeUnit.MILLISECONDS.toNanos(policy.getEmptyTtlMillis());
+		this.idleTtlNanos = TimeUnit.MILLISECONDS.toNanos(policy.getIdleTtlMillis());
+
+		long shortestTtl = emptyTtlNanos == 0 ? idleTtlNanos
+				: idleTtlNanos == 0 ? emptyTtlNanos : Math.min(emptyTtlNanos, idleTtlNanos);
+		long tickNanos = Math.min(Math.max(shortestTtl / 8, TimeUnit.MILLISECONDS.toNanos(10)),
+				TimeUnit.SECONDS.toNanos(1));
+		this.wheel = new HashedWheelTimer(chatManager.getDispatcher().getTimer(), tickNanos,
+				TimeUnit.NANOSECONDS, WHEEL_SIZE);
+	}
+
+	void track(Chat chat) {
+		schedule(chat, System.nanoTime());
+	}
+
+	void stop() {
+		wheel.stop();
+	}
+
+	private void schedule(Chat chat, long now) {
+		long deadline = chat.getLastActivity() + ttl(chat);
+		long delay = Math.max(deadline - now, wheel.getTickNanos());
+		wheel.schedule(() -> check(chat), delay, TimeUnit.NANOSECONDS);
+	}
+
+	private long ttl(Chat chat) {
+		if (chat.isEmpty()) {
+			return emptyTtlNanos > 0 ? emptyTtlNanos : idleTtlNanos;
+		}
+		// Without an idle TTL, check again once it could have become empty and expired
+		return idleTtlNanos > 0 ? idleTtlNanos : emptyTtlNanos;
+	}
+
+	private void check(Chat chat) {
+		if (chat.isClosed()) {
+			return;
+		}
+		if (chatManager.evict(chat, orNever(emptyTtlNanos), orNever(idleTtlNanos))) {
+			return;
+		}
+		schedule(chat, System.nanoTime());
+	}
+
+	private static long orNever(long ttlNanos) {
+		return ttlNanos > 0 ? ttlNanos : Long.MAX_VALUE;
+	}
+}
@@ -1,27 +1,128 @@
 package es.codeurjc.webchat;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import es.codeurjc.webchat.cluster.ClusterBus;
+import es.codeurjc.webchat.cluster.TcpClusterBus;
+import es.codeurjc.webchat.cluster.TcpClusterHub;
+import es.codeurjc.webchat.persistence.MessageLog;
 
-public class ChatHandler extends TextWebSocketHandler {
+public class ChatHandler extends AbstractWebSocketHandler implements SubProtocolCapable {
 
-	private ObjectMapper mapper = new ObjectMapper();
+	private static final Logger log = LoggerFactory.getLogger(ChatHandler.class);
 
-	private ChatManager chatManager = new ChatManager(10);
+	private JsonMessageDecoder decoder = new JsonMessageDecoder();
+
+	private BinaryMessageDecoder binaryDecoder = new BinaryMessageDecoder();
+
+	private static final int MAX_CHATS = Integer.getInteger("webchat.chats.max", 10);
+
+	private static final SendPolicy SEND_POLICY = SendPolicy.fromSystemProperties();
+
+	private ChatManager chatManager = newChatManager();
 
 	private String[] colors = { "007AFF", "FF7000", "15E25F", "CFC700", "CFC700",
 			"CF1100", "CF00BE", "F00" };
 	
 	private volatile int colorIndex = 0;
 
+	/**
+	 * Builds the chat manager of a server from the webchat.* system
+	 * properties, with a dispatcher of its own that is released when it
+	 * closes.
+	 */
+	public static ChatManager newChatManager() {
+		TcpClusterHub hub = startClusterHub();
+		ChatManager chatManager = new ChatManager(MAX_CHATS, Dispatcher.fromSystemProperties(),
+				EvictionPolicy.fromSystemProperties(), ChatManager.DEFAULT_HISTORY_SIZE, openMessageLog(),
+				joinCluster(hub));
+		if (hub != null) {
+			chatManager.closeClusterHubOnClose(hub);
+		}
+		long lobbyDigestMillis = Long.getLong("webchat.lobby.digest.ms", 250);
+		if (lobbyDigestMillis > 0) {
+			chatManager.coalesceLobby(lobbyDigestMillis, TimeUnit.MILLISECONDS);
+		}
+		chatManager.limitMessages(RateLimit.fromSystemProperties("webchat.rate.session", 20, 40),
+				RateLimit.fromSystemProperties("webchat.rate.chat", 0, 0));
+		chatManager.shutDownDispatcherOnClose();
+		return chatManager;
+	}
+
+	private static MessageLog openMessageLog() {
+		String directory = System.getProperty("webchat.log.dir");
+		if (directory == null) {
+			return null;
+		}
+		try {
+			return new MessageLog(Paths.get(directory),
+					Long.getLong("webchat.log.segment.bytes", MessageLog.DEFAULT_SEGMENT_BYTES),
+					Boolean.getBoolean("webchat.log.fsync"));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't open the message log in " + directory, e);
+		}
+	}
+
+	/**
+	 * Starts a hub in this JVM if webchat.cluster.hub.port is set.
+	 */
+	private static TcpClusterHub startClusterHub() {
+		Integer hubPort = Integer.getInteger("webchat.cluster.hub.port");
+		if (hubPort == null) {
+			return null;
+		}
+		try {
+			return new TcpClusterHub(hubPort, MAX_CHATS);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't start the cluster hub on port " + hubPort, e);
+		}
+	}
+
+	/**
+	 * Connects to the hub at webchat.cluster.hub (host:port), or to the one
+	 * started in this JVM.
+	 */
+	private static ClusterBus joinCluster(TcpClusterHub localHub) {
+		String hub = System.getProperty("webchat.cluster.hub");
+		if (hub == null && localHub == null) {
+			return null;
+		}
+		if (hub == null) {
+			hub = "localhost:" + localHub.getPort();
+		}
+		try {
+			int separator = hub.lastIndexOf(':');
+			return new TcpClusterBus(hub.substring(0, separator), Integer.parseInt(hub.substring(separator + 1)),
+					System.getProperty("webchat.cluster.node", UUID.randomUUID().toString()));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't join the cluster at " + hub, e);
+		}
+	}
+
+	public ChatManager getChatManager() {
+		return chatManager;
+	}
+
+	@Override
+	public List<String> getSubProtocols() {
+		return Arrays.asList(BinaryProtocol.BINARY_SUBPROTOCOL, BinaryProtocol.JSON_SUBPROTOCOL);
+	}
+
 	@Override
 	public void afterConnectionEstablished(WebSocketSession session) throws Exception {
 
@@ -30,50 +131,59 @@ public class ChatHandler extends TextWebSocketHandler {
 	@Override
 	protected void handleTextMessage(WebSocketSession session, TextMessage message)
 			throws Exception {
-		System.out.println("Message received: " + message.getPayload());
-
-		String msg = message.getPayload();
+		handleInboundMessage(session, decoder.decode(message.getPayload()));
+	}
 
-		JsonNode jsonMsg = mapper.readTree(msg);
-		if (jsonMsg.hasNonNull("chat")) {
-			newUser(session, jsonMsg);
-		} else {
-			newMessage(session, jsonMsg);
-		}
+	@Override
+	protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message)
+			throws Exception {
+		handleInboundMessage(session, binaryDecoder.decode(message.getPayload()));
 	}
 
-	private void newMessage(WebSocketSession session, JsonNode jsonMsg) {
-		User user = (User) session.getAttributes().get("user");
-		Chat chat = (Chat) session.getAttributes().get("chat");
+	private void handleInboundMessage(WebSocketSession session, InboundMessage msg)
+			throws Exception {
+		getChatSession(session).handle(msg);
+	}
 
-		chat.sendMessage(user, jsonMsg.get("message").asText());
+	/**
+	 * The chats of the connection, all joined by one user with one mailbox.
+	 */
+	private ChatSession getChatSession(WebSocketSession session) {
+		return (ChatSession) session.getAttributes().computeIfAbsent("chatSession",
+				key -> new ChatSession(chatManager, userName -> newUser(session, userName),
+						error -> close(session, CloseStatus.SERVICE_OVERLOAD.withReason(error.getMessage()))));
 	}
 
-	private void newUser(WebSocketSession session, JsonNode jsonMsg)
-			throws InterruptedException, TimeoutException {
-		
-		String chatName = jsonMsg.get("chat").asText();
-		String userName = jsonMsg.get("user").asText();
+	private User newUser(WebSocketSession session, String userName) {
 
-		WebSocketUser user = new WebSocketUser(session, userName, colors[colorIndex]);
+		Dispatcher dispatcher = chatManager.getDispatcher();
+		WebSocketUser user = new WebSocketUser(session, userName, colors[colorIndex],
+				dispatcher.getBatchPolicy(), dispatcher.getMetrics(), SEND_POLICY, dispatcher.getTimer());
 		colorIndex = (colorIndex+1) % colors.length;
-		
-		session.getAttributes().put("user", user);	
 
-		chatManager.newUser(user);
-		Chat chat = chatManager.newChat(chatName, 5, TimeUnit.SECONDS);
-		session.getAttributes().put("chat", chat);
+		// A client that can't keep up leaves before its session is closed
+		user.setOnTerminated(() -> leave(session));
+		return user;
+	}
 
-		chat.addUser(user);
+	private static void close(WebSocketSession session, CloseStatus status) {
+		try {
+			session.close(status);
+		} catch (IOException e) {
+			log.debug("Error closing session {}", session.getId(), e);
+		}
 	}
 
 	@Override
 	public void afterConnectionClosed(WebSocketSession session, CloseStatus status)
 			throws Exception {
+		leave(session);
+	}
 
-		User user = (User) session.getAttributes().get("user");
-		Chat chat = (Chat) session.getAttributes().get("chat");
-
-		chat.removeUser(user);
+	private void leave(WebSocketSession session) {
+		ChatSession chatSession = (ChatSession) session.getAttributes().get("chatSession");
+		if (chatSession != null) {
+			chatSession.close();
+		}
 	}
 }
@@ -1,86 +1,817 @@
 package es.codeurjc.webchat;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.codeurjc.webchat.cluster.ClusterBus;
+import es.codeurjc.webchat.cluster.ClusterEvent;
+import es.codeurjc.webchat.cluster.TcpClusterHub;
+import es.codeurjc.webchat.metrics.Histogram;
+import es.codeurjc.webchat.metrics.Metrics;
+import es.codeurjc.webchat.persistence.MessageLog;
+
+/**
+ * Chats and users are split in shards by consistent hashing of their names,
+ * see {@link Dispatcher#getShards()}. Lookups only touch the owning shard,
+ * and the notifications of a new or closed chat fan out in parallel on the
+ * event loop of every shard, only to the users subscribed to the lobby. The
+ * members of a closed chat are always told, lobby or not.
+ */
 public class ChatManager {
 
-	private ConcurrentHashMap<String, Chat> chats = new ConcurrentHashMap<>();
-	private ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+	private static final Logger log = LoggerFactory.getLogger(ChatManager.class);
+
+	static final int DEFAULT_HISTORY_SIZE = Integer.getInteger("webchat.chat.history", 64);
+
+	static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = Long.getLong("webchat.shutdown.timeout.ms", 10_000);
+
+	private ChatShard[] shards;
+	private ConsistentHashRing ring;
 	private int maxChats;
-	private Semaphore chatSemaphore;
+	private ChatCapacityScheduler capacity;
+	private Dispatcher dispatcher;
+	private ChatEvictor evictor;
+	private int historySize;
+	private MessageLog messageLog;
+	private ClusterBus clusterBus;
+	private volatile LobbyDigest lobbyDigest;
+	private IdentityRegistry identities = new IdentityRegistry();
+	private volatile RateLimit sessionRateLimit = RateLimit.NONE;
+	private volatile RateLimit chatRateLimit = RateLimit.NONE;
+	private LongAdder sessionRejections;
+	private LongAdder chatRejections;
+	private volatile boolean closing;
+	private boolean ownsDispatcher;
+	private TcpClusterHub clusterHub;
+	private DrainReport drainReport;
+	private Histogram capacityWait;
+	private LongAdder capacityTimeouts;
+	private LongAdder chatsOpened;
+	private LongAdder chatsClosed;
 
 	public ChatManager(int maxChats) {
+		this(maxChats, Dispatcher.getDefault());
+	}
+
+	public ChatManager(int maxChats, Dispatcher dispatcher) {
+		this(maxChats, dispatcher, EvictionPolicy.NONE);
+	}
+
+	/**
+	 * @param evictionPolicy when chats are closed for lack of activity
+	 */
+	public ChatManager(int maxChats, Dispatcher dispatcher, EvictionPolicy evictionPolicy) {
+		this(maxChats, dispatcher, evictionPolicy, DEFAULT_HISTORY_SIZE);
+	}
+
+	/**
+	 * @param historySize messages each chat keeps to replay to new members,
+	 *        rounded up to a power of two
+	 */
+	public ChatManager(int maxChats, Dispatcher dispatcher, EvictionPolicy evictionPolicy, int historySize) {
+		this(maxChats, dispatcher, evictionPolicy, historySize, null);
+	}
+
+	/**
+	 * @param messageLog where messages are written, and where the chats and
+	 *        their history are restored from, or null to keep nothing
+	 */
+	public ChatManager(int maxChats, Dispatcher dispatcher, EvictionPolicy evictionPolicy, int historySize,
+			MessageLog messageLog) {
+		this(maxChats, dispatcher, evictionPolicy, historySize, messageLog, null);
+	}
+
+	/**
+	 * @param clusterBus how chats are shared with other nodes, or null for a
+	 *        single node. In a cluster, chat slots are those of the cluster
+	 *        and maxChats is not used.
+	 */
+	public ChatManager(int maxChats, Dispatcher dispatcher, EvictionPolicy evictionPolicy, int historySize,
+			MessageLog messageLog, ClusterBus clusterBus) {
+		if (historySize < 0) {
+			throw new IllegalArgumentException("Invalid history size " + historySize);
+		}
 		this.maxChats = maxChats;
-		this.chatSemaphore =  new Semaphore(this.maxChats);
+		this.historySize = historySize;
+		this.dispatcher = dispatcher;
+		this.shards = new ChatShard[dispatcher.getShards()];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new ChatShard(dispatcher.getShardLoop(i));
+		}
+		this.ring = new ConsistentHashRing(shards.length);
+
+		Metrics metrics = dispatcher.getMetrics();
+		this.capacityWait = metrics.histogram("chat.capacity.wait.nanos");
+		this.capacityTimeouts = metrics.counter("chat.capacity.timeouts");
+		this.chatsOpened = metrics.counter("chat.opened");
+		this.chatsClosed = metrics.counter("chat.closed");
+		this.sessionRejections = metrics.counter("ratelimit.session.rejected");
+		this.chatRejections = metrics.counter("ratelimit.chat.rejected");
+		metrics.gauge("chats", () -> getChats().size());
+		metrics.gauge("users", () -> getUsers().size());
+		metrics.gauge("identities", identities::size);
+		// Every message delivered records its fan-out
+		Histogram fanOut = metrics.histogram("chat.fanout");
+		metrics.gauge("chat.messages", fanOut::getCount);
+		this.capacity = new ChatCapacityScheduler(this.maxChats, dispatcher.getTimer());
+		this.messageLog = messageLog;
+		if (evictionPolicy.isEnabled()) {
+			this.evictor = new ChatEvictor(this, evictionPolicy);
+		}
+		this.clusterBus = clusterBus;
+		if (clusterBus != null) {
+			clusterBus.setListener(this::onClusterEvent);
+		}
+		if (messageLog != null) {
+			restoreChats();
+		}
+	}
+
+	/**
+	 * Reopens the chats with the most recent messages in the log, as many as
+	 * fit. Only the index of the log is used, plus the history of each chat.
+	 */
+	private void restoreChats() {
+		List<String> names = new ArrayList<>(messageLog.getChats());
+		names.sort(Comparator.comparingLong(messageLog::getLastTimestamp).reversed());
+		for (String name : names.subList(0, Math.min(maxChats, names.size()))) {
+			newChatAsync(name, 0, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public Dispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Ids and encoded names of the users and chats of this manager.
+	 */
+	public IdentityRegistry getIdentities() {
+		return identities;
+	}
+
+	public int getHistorySize() {
+		return historySize;
+	}
+
+	public MessageLog getMessageLog() {
+		return messageLog;
+	}
+
+	public ClusterBus getClusterBus() {
+		return clusterBus;
+	}
+
+	public ChatCapacityScheduler getCapacityScheduler() {
+		return capacity;
+	}
+
+	private ChatShard shard(String name) {
+		return shards[ring.nodeFor(name)];
+	}
+
+	private ConcurrentHashMap<String, Chat> chats(String chatName) {
+		return shard(chatName).getChats();
+	}
+
+	private ConcurrentHashMap<String, User> users(String userName) {
+		return shard(userName).getUsers();
+	}
+
+	/**
+	 * Waits until every new and closed chat notification issued so far has
+	 * been handed to the users.
+	 */
+	public void awaitNotifications() {
+		notifyLobby(user -> {
+		}).join();
+	}
+
+	/**
+	 * When a chat creation has to wait for capacity, close the empty chat that
+	 * has been idle for longest, if it has been idle for at least the given time.
+	 */
+	public void reclaimIdleChats(long minIdle, TimeUnit unit) {
+		long minIdleNanos = unit.toNanos(minIdle);
+		capacity.setReclaimer(() -> reclaimIdleChat(minIdleNanos));
+	}
+
+	private void reclaimIdleChat(long minIdleNanos) {
+		long now = System.nanoTime();
+		Chat idlest = null;
+		for (Chat chat : getChats()) {
+			if (chat.isEmpty() && now - chat.getLastActivity() >= minIdleNanos
+					&& (idlest == null || chat.getLastActivity() < idlest.getLastActivity())) {
+				idlest = chat;
+			}
+		}
+		if (idlest != null) {
+			evict(idlest, minIdleNanos, Long.MAX_VALUE);
+		}
+	}
+
+	boolean evict(Chat chat, long emptyTtlNanos, long idleTtlNanos) {
+		if (!chat.closeIfIdle(emptyTtlNanos, idleTtlNanos)) {
+			return false;
+		}
+		chats(chat.getName()).remove(chat.getName(), chat);
+		chatRemoved(chat);
+		return true;
+	}
+
+	/**
+	 * Sends the chats opened and closed to the lobby as one
+	 * {@link User#chatListChanged} digest at most every interval, instead of
+	 * one notification per chat.
+	 */
+	public void coalesceLobby(long interval, TimeUnit unit) {
+		LobbyDigest old = lobbyDigest;
+		lobbyDigest = new LobbyDigest(dispatcher.getTimer(), interval, unit,
+				this::publishDigest);
+		if (old != null) {
+			old.flush();
+			old.stop();
+		}
+	}
+
+	/**
+	 * Sends a digest to the lobby, leaving out of it the closed chats each
+	 * user was a member of, and so was told about already.
+	 */
+	private void publishDigest(List<Chat> opened, List<Chat> closed) {
+		Map<User, List<Chat>> told = new IdentityHashMap<>();
+		for (Chat chat : closed) {
+			for (User member : chat.getMembersAtClose()) {
+				told.computeIfAbsent(member, m -> new ArrayList<>()).add(chat);
+			}
+		}
+		notifyLobby(user -> {
+			List<Chat> toldClosed = told.get(user);
+			if (toldClosed == null) {
+				user.chatListChanged(opened, closed);
+				return;
+			}
+			List<Chat> notTold = new ArrayList<>(closed);
+			notTold.removeAll(toldClosed);
+			if (!opened.isEmpty() || !notTold.isEmpty()) {
+				user.chatListChanged(opened, List.copyOf(notTold));
+			}
+		});
+	}
+
+	/**
+	 * Limits the messages that each {@link ChatSession}, and each chat as a
+	 * whole, may send. Messages over either limit are dropped before they fan
+	 * out, and counted.
+	 */
+	public void limitMessages(RateLimit perSession, RateLimit perChat) {
+		this.sessionRateLimit = perSession;
+		this.chatRateLimit = perChat;
+	}
+
+	/**
+	 * Takes a token from the session and one from the chat, in that order.
+	 */
+	boolean admitMessage(TokenBucket session, Chat chat) {
+		// Nothing new goes in while the mailboxes are being drained
+		if (closing) {
+			return false;
+		}
+		if (!session.tryAcquire(sessionRateLimit)) {
+			sessionRejections.increment();
+			return false;
+		}
+		if (!chat.getMessageRate().tryAcquire(chatRateLimit)) {
+			chatRejections.increment();
+			return false;
+		}
+		return true;
 	}
 
 	public void newUser(User user) {
+		newUser(user, true);
+	}
 
-		User oldUser = users.putIfAbsent(user.getName(), new QueuedUser(user));
+	/**
+	 * @param lobby whether the user is told about every chat opened and
+	 *        closed, otherwise it only hears about the chats it joins
+	 */
+	public void newUser(User user, boolean lobby) {
+
+		if (closing) {
+			throw new IllegalStateException("Chat manager is closed");
+		}
+		ChatShard shard = shard(user.getName());
+		QueuedUser queuedUser = new QueuedUser(user, dispatcher);
+		User oldUser = shard.getUsers().putIfAbsent(user.getName(), queuedUser);
 		if(oldUser != null){
+			queuedUser.close();
 			throw new IllegalArgumentException("There is already a user with name \'"
 					+ user.getName() + "\'");
 		}
+		identities.hold(user.getName(), user.getColor());
+		if (lobby) {
+			shard.getLobby().put(user.getName(), queuedUser);
+		}
+	}
+
+	public void removeUser(User user) {
+		ChatShard shard = shard(user.getName());
+		User oldUser = shard.getUsers().get(user.getName());
+		if (oldUser instanceof QueuedUser && ((QueuedUser) oldUser).wraps(user)
+				&& shard.getUsers().remove(user.getName(), oldUser)) {
+			shard.getLobby().remove(user.getName(), oldUser);
+			((QueuedUser) oldUser).close();
+			identities.release(user.getName());
+		}
+	}
+
+	QueuedUser queued(User user) {
+		User registered = getUser(user.getName());
+		if (registered instanceof QueuedUser && ((QueuedUser) registered).wraps(user)) {
+			return (QueuedUser) registered;
+		}
+		if (user instanceof QueuedUser) {
+			return (QueuedUser) user;
+		}
+		return new QueuedUser(user, dispatcher);
+	}
+
+	void release(QueuedUser user) {
+		if (getUser(user.getName()) != user) {
+			user.close();
+		}
 	}
 
+	/**
+	 * Blocking {@link #newChatAsync}. If the caller is interrupted while
+	 * waiting the creation is cancelled.
+	 */
 	public Chat newChat(String name, long timeout, TimeUnit unit) throws InterruptedException,
 			TimeoutException {
 
-		Chat newChat = new Chat(this, name);
-		Chat oldChat = chats.putIfAbsent(name, newChat);
-		if(oldChat != null){
-			return oldChat;
+		CompletableFuture<Chat> chat = newChatAsync(name, timeout, unit);
+		try {
+			return chat.get();
+		} catch (InterruptedException e) {
+			chat.cancel(false);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TimeoutException) {
+				throw (TimeoutException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
 		}
+	}
 
-		try {
-			if (!this.chatSemaphore.tryAcquire(timeout, unit)) {
-				this.chats.remove(name);
-				throw new TimeoutException("There is no enough capacity to create a new chat");
+	/**
+	 * Returns the chat with the given name, creating it once there is capacity
+	 * for it. The chat is only visible through {@link #getChat} once created,
+	 * and concurrent requests for the same name share the same creation.
+	 * Cancelling the future gives the creation up, for all of them, and an
+	 * empty chat created anyway is closed again.
+	 */
+	public CompletableFuture<Chat> newChatAsync(String name, long timeout, TimeUnit unit) {
+
+		if (closing) {
+			return CompletableFuture.failedFuture(new IllegalStateException("Chat manager is closed"));
+		}
+		ConcurrentHashMap<String, Chat> chats = chats(name);
+		ConcurrentHashMap<String, CompletableFuture<Chat>> pendingChats = shard(name).getPendingChats();
+		Chat oldChat = chats.get(name);
+		if (oldChat != null && !oldChat.isClosed()) {
+			return CompletableFuture.completedFuture(oldChat);
+		}
+
+		CompletableFuture<Chat> creation = new CompletableFuture<>();
+		CompletableFuture<Chat> pendingCreation = pendingChats.putIfAbsent(name, creation);
+		if (pendingCreation != null) {
+			return pendingCreation;
+		}
+
+		// It may have been created between the first lookup and registering ours
+		oldChat = chats.get(name);
+		if (oldChat != null && !oldChat.isClosed()) {
+			pendingChats.remove(name, creation);
+			creation.complete(oldChat);
+			return creation;
+		}
+
+		long waitStart = System.nanoTime();
+		CompletableFuture<Void> slot = clusterBus != null ? clusterBus.acquireChat(name, timeout, unit)
+				: capacity.acquire(timeout, unit);
+		slot.whenComplete((granted, error) -> {
+			if (error != null) {
+				if (!(error instanceof CancellationException)) {
+					capacityTimeouts.increment();
+				}
+				pendingChats.remove(name, creation);
+				creation.completeExceptionally(error);
+				return;
 			}
+			capacityWait.record(System.nanoTime() - waitStart);
+			if (creation.isCancelled()) {
+				pendingChats.remove(name, creation);
+				// A cluster slot is already known to every node, so it stays
+				if (clusterBus == null) {
+					capacity.release();
+				}
+				return;
+			}
+
+			openChat(name).whenComplete((newChat, openError) -> {
+				pendingChats.remove(name, creation);
+				if (openError != null) {
+					creation.completeExceptionally(openError);
+				} else if (!creation.complete(newChat)) {
+					closeIfUnused(newChat);
+				}
+			});
+		});
+		// A waiting request gives its place in the queue up
+		creation.whenComplete((newChat, error) -> {
+			if (creation.isCancelled()) {
+				slot.cancel(false);
+			}
+		});
+
+		return creation;
+	}
+
+	/**
+	 * Makes the chat visible and tells every user about it, unless it is
+	 * already open. Completes once every user has been told.
+	 */
+	private CompletableFuture<Chat> openChat(String name) {
+		Chat[] created = new Chat[1];
+		Chat chat = chats(name).compute(name, (key, oldChat) -> {
+			if (closing || (oldChat != null && !oldChat.isClosed())) {
+				return oldChat;
+			}
+			created[0] = new Chat(this, key);
+			return created[0];
+		});
+		if (created[0] == null) {
+			// Only a chat opened by another node can get here in a cluster
+			if (clusterBus == null) {
+				capacity.release();
+			}
+			if (chat == null || chat.isClosed()) {
+				return CompletableFuture.failedFuture(new IllegalStateException("Chat manager is closed"));
+			}
+			return CompletableFuture.completedFuture(chat);
 		}
-		catch(InterruptedException ie) {
-			this.chats.remove(name);
-			throw ie;
+
+		chatsOpened.increment();
+		if (evictor != null) {
+			evictor.track(chat);
+		}
+		LobbyDigest digest = lobbyDigest;
+		if (digest != null) {
+			digest.chatOpened(chat);
+			return CompletableFuture.completedFuture(chat);
 		}
+		return notifyLobby(user -> user.newChat(chat)).thenApply(notified -> chat);
+	}
 
-		for(User user : users.values()){
-			user.newChat(newChat);
+	void publish(ClusterEvent event) {
+		if (clusterBus != null) {
+			clusterBus.publish(event);
+		}
+	}
+
+	/**
+	 * Applies what happened on another node to the local chats, which only
+	 * notify their local users.
+	 */
+	private void onClusterEvent(ClusterEvent event) {
+		if (event.getType() == ClusterEvent.Type.NEW_CHAT) {
+			openChat(event.getChat());
+			return;
 		}
 
-		return newChat;
+		Chat chat = getChat(event.getChat());
+		if (chat == null) {
+			return;
+		}
+		switch (event.getType()) {
+		case CHAT_CLOSED:
+			if (chat.markClosed()) {
+				chats(chat.getName()).remove(chat.getName(), chat);
+				notifyChatClosed(chat);
+			}
+			break;
+		case USER_JOINED:
+			chat.addRemoteUser(event.getUser(), event.getColor());
+			break;
+		case USER_LEFT:
+			chat.removeRemoteUser(event.getUser());
+			break;
+		case MESSAGE:
+			chat.receiveRemoteMessage(event.getUser(), event.getColor(), event.getMessage());
+			break;
+		default:
+			break;
+		}
 	}
 
 	public void closeChat(Chat chat) {
-		if (!chats.remove(chat.getName(), chat)) {
+		removeChat(chat).join();
+	}
+
+	/**
+	 * Closes the chat, completing once the lobby has been told. Callbacks
+	 * running on a shard loop must not wait for it, the loop tells the lobby.
+	 */
+	private CompletableFuture<Void> removeChat(Chat chat) {
+		ConcurrentHashMap<String, Chat> chats = chats(chat.getName());
+		if (chats.get(chat.getName()) != chat || !chat.markClosed()) {
 			throw new IllegalArgumentException("Trying to remove an unknown chat with name \'"
 					+ chat.getName() + "\'");
 		}
-		this.chatSemaphore.release();
+		chats.remove(chat.getName(), chat);
+		return chatRemoved(chat);
+	}
+
+	// Runs on the shard loop that completed the creation
+	private void closeIfUnused(Chat chat) {
+		if (chat.getUsers().isEmpty()) {
+			try {
+				removeChat(chat);
+			} catch (IllegalArgumentException e) {
+				// Already closed by someone else
+			}
+		}
+	}
+
+	private CompletableFuture<Void> chatRemoved(Chat chat) {
+		if (clusterBus != null) {
+			clusterBus.releaseChat(chat.getName());
+		} else {
+			this.capacity.release();
+		}
+		return notifyChatClosed(chat);
+	}
+
+	/**
+	 * Tells the members right away and the rest of the lobby as configured,
+	 * once each.
+	 */
+	private CompletableFuture<Void> notifyChatClosed(Chat chat) {
+		chatsClosed.increment();
+		User[] members = chat.getMembersAtClose();
+		for (User member : members) {
+			member.chatClosed(chat);
+		}
+		LobbyDigest digest = lobbyDigest;
+		if (digest != null) {
+			digest.chatClosed(chat);
+			return CompletableFuture.completedFuture(null);
+		}
+		if (members.length == 0) {
+			return notifyLobby(user -> user.chatClosed(chat));
+		}
+		Set<User> told = Collections.newSetFromMap(new IdentityHashMap<>());
+		Collections.addAll(told, members);
+		return notifyLobby(user -> {
+			if (!told.contains(user)) {
+				user.chatClosed(chat);
+			}
+		});
+	}
 
-		for(User user : users.values()){
-			user.chatClosed(chat);
+	/**
+	 * Runs the event for every lobby user, in parallel on the loops of the
+	 * shards.
+	 */
+	private CompletableFuture<Void> notifyLobby(Consumer<User> event) {
+		CompletableFuture<?>[] notified = new CompletableFuture<?>[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			notified[i] = shards[i].notifyLobby(event);
 		}
+		return CompletableFuture.allOf(notified);
 	}
 
 	public Collection<Chat> getChats() {
-		return Collections.unmodifiableCollection(chats.values());
+		return new ShardsView<>(ChatShard::getChats);
 	}
 
 	public Chat getChat(String chatName) {
-		return chats.get(chatName);
+		return chats(chatName).get(chatName);
 	}
 
 	public Collection<User> getUsers() {
-		return Collections.unmodifiableCollection(users.values());
+		return new ShardsView<>(ChatShard::getUsers);
 	}
 
 	public User getUser(String userName) {
-		return users.get(userName);
+		return users(userName).get(userName);
+	}
+
+	/**
+	 * Unmodifiable view of the values of a map of every shard.
+	 */
+	private class ShardsView<T> extends AbstractCollection<T> {
+
+		private final Function<ChatShard, Map<String, T>> map;
+
+		ShardsView(Function<ChatShard, Map<String, T>> map) {
+			this.map = map;
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			return new Iterator<T>() {
+
+				private int shard;
+				private Iterator<T> values = Collections.emptyIterator();
+
+				@Override
+				public boolean hasNext() {
+					while (!values.hasNext() && shard < shards.length) {
+						values = map.apply(shards[shard++]).values().iterator();
+					}
+					return values.hasNext();
+				}
+
+				@Override
+				public T next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return values.next();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			int size = 0;
+			for (ChatShard shard : shards) {
+				size += map.apply(shard).size();
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Shuts the dispatcher down when the manager is closed, for a manager that
+	 * has the dispatcher to itself.
+	 */
+	public void shutDownDispatcherOnClose() {
+		this.ownsDispatcher = true;
+	}
+
+	/**
+	 * Closes the hub when the manager is closed, for a node that runs the hub
+	 * of its cluster.
+	 */
+	public void closeClusterHubOnClose(TcpClusterHub hub) {
+		this.clusterHub = hub;
 	}
 
-	public void close() {}
+	/**
+	 * Closes the manager within webchat.shutdown.timeout.ms and logs the
+	 * report, see {@link #close(long, TimeUnit)}.
+	 */
+	public synchronized void close() {
+		boolean closed = drainReport != null;
+		DrainReport report = close(DEFAULT_CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		if (!closed) {
+			log.info("{}", report);
+		}
+	}
+
+	/**
+	 * Shuts down gracefully. No user, chat or message from a session gets in
+	 * from now on, every chat is closed and its members and the lobby are
+	 * told, and then the mailboxes have until the timeout to deliver what they
+	 * hold. Users are unregistered and shut down as their mailboxes drain, or
+	 * when the time is up, and what was left is dropped. Then the message log
+	 * writes what it holds and closes, and after it the cluster bus. Only the
+	 * local chats are closed: in a cluster they stay open on the other nodes,
+	 * and the node just disconnects from the hub.
+	 *
+	 * @return the report of the first call, if closed more than once
+	 */
+	public synchronized DrainReport close(long timeout, TimeUnit unit) {
+		if (drainReport != null) {
+			return drainReport;
+		}
+		long start = System.nanoTime();
+		long deadline = start + unit.toNanos(timeout);
+		closing = true;
+		if (evictor != null) {
+			evictor.stop();
+		}
+		LobbyDigest digest = lobbyDigest;
+		if (digest != null) {
+			digest.flush();
+			digest.stop();
+		}
+
+		// Every mailbox, including those of members that never registered
+		Set<QueuedUser> mailboxes = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (User user : getUsers()) {
+			mailboxes.add((QueuedUser) user);
+		}
+		List<Chat> closed = new ArrayList<>();
+		for (ChatShard shard : shards) {
+			for (Chat chat : shard.getChats().values()) {
+				if (chat.markClosed() && shard.getChats().remove(chat.getName(), chat)) {
+					closed.add(chat);
+				}
+			}
+		}
+		for (Chat chat : closed) {
+			for (User member : chat.getUsers()) {
+				mailboxes.add((QueuedUser) member);
+			}
+		}
+		Map<QueuedUser, long[]> counts = new IdentityHashMap<>();
+		for (QueuedUser user : mailboxes) {
+			counts.put(user, new long[] { user.getProcessedEvents(), user.getDroppedEvents() });
+		}
+
+		for (Chat chat : closed) {
+			chatsClosed.increment();
+			Set<User> told = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (User member : chat.getUsers()) {
+				told.add(member);
+			}
+			for (User user : new ShardsView<>(ChatShard::getLobby)) {
+				told.add(user);
+			}
+			for (User user : told) {
+				user.chatClosed(chat);
+			}
+		}
+
+		boolean complete = awaitIdle(mailboxes, deadline);
+
+		long flushed = 0;
+		long dropped = 0;
+		for (QueuedUser user : mailboxes) {
+			long[] before = counts.get(user);
+			// Whatever is still queued is lost when the mailbox closes
+			long pending = user.getQueueDepth();
+			removeUser(user);
+			user.close();
+			user.shutdown();
+			flushed += user.getProcessedEvents() - before[0];
+			dropped += user.getDroppedEvents() - before[1] + pending;
+		}
+		if (messageLog != null) {
+			try {
+				messageLog.close();
+			} catch (IOException e) {
+				log.warn("Error closing the message log", e);
+			}
+		}
+		if (clusterBus != null) {
+			clusterBus.close();
+		}
+		if (clusterHub != null) {
+			try {
+				clusterHub.close();
+			} catch (IOException e) {
+				log.warn("Error closing the cluster hub", e);
+			}
+		}
+		if (ownsDispatcher) {
+			dispatcher.shutdown();
+		}
+		drainReport = new DrainReport(mailboxes.size(), closed.size(), flushed, dropped, complete,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return drainReport;
+	}
+
+	private static boolean awaitIdle(Collection<QueuedUser> mailboxes, long deadline) {
+		List<CompletableFuture<Void>> idle = new ArrayList<>(mailboxes.size());
+		for (QueuedUser user : mailboxes) {
+			idle.add(user.whenIdle());
+		}
+		try {
+			CompletableFuture.allOf(idle.toArray(new CompletableFuture<?>[0]))
+					.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			return true;
+		} catch (TimeoutException | ExecutionException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
 }
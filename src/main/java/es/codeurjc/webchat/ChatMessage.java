@@ -0,0 +1,107 @@
+package es.codeurjc.webchat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.web.socket.TextMessage;
+
+/**
+ * A message sent to a chat. The same instance is handed to every member, so
+ * its wire representation is encoded once, by the first member that needs it.
+ */
+public class ChatMessage {
+
+	private final Chat chat;
+	private final User user;
+	private final Identity sender;
+	private final String message;
+
+	// When the message was received, to measure how long it takes to deliver
+	private final long createdNanos = System.nanoTime();
+
+	// Position in the chat history, -1 if it was never appended to one
+	private long sequence = -1;
+
+	private volatile TextMessage textMessage;
+	private volatile byte[] messageBytes;
+
+	public ChatMessage(Chat chat, User user, String message) {
+		this.chat = chat;
+		this.user = user;
+		this.sender = chat.identify(user);
+		this.message = message;
+	}
+
+	public Chat getChat() {
+		return chat;
+	}
+
+	public User getUser() {
+		return user;
+	}
+
+	/**
+	 * The identity of the user when the message was sent.
+	 */
+	public Identity getSender() {
+		return sender;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * {@link System#nanoTime()} when the message was received.
+	 */
+	public long getCreatedNanos() {
+		return createdNanos;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	// Set before the message is published to other threads
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	public TextMessage getTextMessage() {
+		// Racing members may both encode it, but they produce the same frame.
+		// Built from bytes, or every member would encode it to learn its length.
+		TextMessage encoded = textMessage;
+		if (encoded == null) {
+			encoded = new TextMessage(toJson().getBytes(StandardCharsets.UTF_8));
+			textMessage = encoded;
+		}
+		return encoded;
+	}
+
+	/**
+	 * The message text as UTF-8. Callers must not modify the returned array.
+	 */
+	public byte[] getMessageBytes() {
+		byte[] encoded = messageBytes;
+		if (encoded == null) {
+			encoded = message.getBytes(StandardCharsets.UTF_8);
+			messageBytes = encoded;
+		}
+		return encoded;
+	}
+
+	// Names and color come escaped from their identities, only the text is new
+	private String toJson() {
+		String text = Identity.escape(message);
+		String chatName = chat.getIdentity().getJsonName();
+		StringBuilder json = new StringBuilder(48 + chatName.length() + sender.getJsonName().length() + text.length());
+		json.append("{\"chat\":\"").append(chatName);
+		json.append("\",\"name\":\"").append(sender.getJsonName());
+		if (sender.getJsonColor() != null) {
+			json.append("\",\"color\":\"").append(sender.getJsonColor()).append('"');
+		} else {
+			json.append("\",\"color\":null");
+		}
+		json.append(",\"message\":\"").append(text);
+		return json.append("\"}").toString();
+	}
+}
@@ -0,0 +1,191 @@
+package es.codeurjc.webchat;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The chats one WebSocket connection is in. The connection registers a single
+ * user, with a single mailbox, on its first join, and then joins, leaves and
+ * posts to any number of chats through it.
+ */
+public class ChatSession {
+
+	private final ChatManager chatManager;
+	private final Function<String, User> newUser;
+	private final Consumer<Throwable> onJoinFailed;
+
+	private final ConcurrentHashMap<String, CompletableFuture<Chat>> chats = new ConcurrentHashMap<>();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final TokenBucket messageRate = new TokenBucket();
+	private volatile User user;
+	// Where messages without a chat go, for clients of a single chat
+	private volatile String firstChat;
+
+	/**
+	 * @param newUser builds the user of the session from the name of its first
+	 *        join
+	 * @param onJoinFailed called if no chat could be opened in time, or the
+	 *        manager is shutting down
+	 */
+	public ChatSession(ChatManager chatManager, Function<String, User> newUser, Consumer<Throwable> onJoinFailed) {
+		this.chatManager = chatManager;
+		this.newUser = newUser;
+		this.onJoinFailed = onJoinFailed;
+	}
+
+	/**
+	 * The user registered by the first join, or null.
+	 */
+	public User getUser() {
+		return user;
+	}
+
+	/**
+	 * Names of the chats joined, including those still being opened.
+	 */
+	public Set<String> getChats() {
+		return Collections.unmodifiableSet(chats.keySet());
+	}
+
+	/**
+	 * Called with the frames of the connection, one at a time.
+	 */
+	public void handle(InboundMessage msg) {
+		switch (msg.getType()) {
+		case JOIN:
+			join(msg.getChat(), msg.getUser(), msg.isLobby());
+			break;
+		case LEAVE:
+			leave(msg.getChat());
+			break;
+		default:
+			send(msg.getChat(), msg.getMessage());
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if this is the first join and another
+	 *         user already has the name
+	 */
+	public void join(String chatName, String userName, boolean lobby) {
+		if (closed.get()) {
+			return;
+		}
+		User user = this.user;
+		if (user == null) {
+			user = newUser.apply(userName);
+			try {
+				chatManager.newUser(user, lobby);
+			} catch (IllegalStateException e) {
+				onJoinFailed.accept(e);
+				return;
+			}
+			this.user = user;
+			// Closed while registering, so close() did not see the user
+			if (closed.get()) {
+				chatManager.removeUser(user);
+				return;
+			}
+		}
+		if (joined(chatName) != null) {
+			return;
+		}
+		if (firstChat == null) {
+			firstChat = chatName;
+		}
+		joinChat(user, chatName);
+	}
+
+	private void joinChat(User user, String chatName) {
+
+		CompletableFuture<Chat> chat = chatManager.newChatAsync(chatName, 5, TimeUnit.SECONDS);
+		chats.put(chatName, chat);
+
+		chat.whenComplete((joined, error) -> {
+			if (error != null) {
+				chats.remove(chatName, chat);
+				onJoinFailed.accept(error);
+				return;
+			}
+			try {
+				joined.addUser(user);
+			} catch (IllegalStateException e) {
+				// Evicted before we got in, the next attempt creates it again
+				if (chats.get(chatName) == chat) {
+					joinChat(user, chatName);
+				}
+				return;
+			}
+			// The chat may have been left, or the connection closed, while waiting
+			if (closed.get() || chats.get(chatName) != chat) {
+				joined.removeUser(user);
+			}
+		});
+	}
+
+	public void leave(String chatName) {
+		CompletableFuture<Chat> chat = chatName != null ? chats.remove(chatName) : null;
+		Chat joined = chat != null ? chat.getNow(null) : null;
+		if (joined != null) {
+			joined.removeUser(user);
+		}
+	}
+
+	/**
+	 * Messages to a chat not joined, or not open yet, have nowhere to go, and
+	 * those over the rate limits of the manager are dropped, as are null ones.
+	 *
+	 * @param chatName null for the first chat joined
+	 */
+	public void send(String chatName, String message) {
+		if (message == null) {
+			return;
+		}
+		User user = this.user;
+		String name = chatName != null ? chatName : firstChat;
+		CompletableFuture<Chat> chat = name != null ? joined(name) : null;
+		Chat joined = chat != null ? chat.getNow(null) : null;
+		if (joined != null && user != null && chatManager.admitMessage(messageRate, joined)) {
+			joined.sendMessage(user, message);
+		}
+	}
+
+	/**
+	 * The chat joined with the name, if any, dropping it once closed or
+	 * evicted so that the next join opens it again.
+	 */
+	private CompletableFuture<Chat> joined(String chatName) {
+		CompletableFuture<Chat> chat = chats.get(chatName);
+		Chat joined = chat != null ? chat.getNow(null) : null;
+		if (joined != null && joined.isClosed()) {
+			chats.remove(chatName, chat);
+			return null;
+		}
+		return chat;
+	}
+
+	/**
+	 * Leaves every chat and unregisters the user, once.
+	 *
+	 * @return whether this call closed the session
+	 */
+	public boolean close() {
+		if (!closed.compareAndSet(false, true)) {
+			return false;
+		}
+		for (String chatName : chats.keySet()) {
+			leave(chatName);
+		}
+		User user = this.user;
+		if (user != null) {
+			chatManager.removeUser(user);
+		}
+		return true;
+	}
+}
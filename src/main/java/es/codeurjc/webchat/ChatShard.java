@@ -0,0 +1,62 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * The chats and users of a {@link ChatManager} that hash to the same
+ * partition. Chat creation completes and lobby notifications fan out on the
+ * shard's event loop, so shards work in parallel and each loop only walks
+ * its own lobby users.
+ */
+final class ChatShard {
+
+	private final ConcurrentHashMap<String, Chat> chats = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, User> lobby = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, CompletableFuture<Chat>> pendingChats = new ConcurrentHashMap<>();
+	private final Executor loop;
+
+	ChatShard(Executor loop) {
+		this.loop = loop;
+	}
+
+	ConcurrentHashMap<String, Chat> getChats() {
+		return chats;
+	}
+
+	ConcurrentHashMap<String, User> getUsers() {
+		return users;
+	}
+
+	/**
+	 * The users told about new and closed chats.
+	 */
+	ConcurrentHashMap<String, User> getLobby() {
+		return lobby;
+	}
+
+	ConcurrentHashMap<String, CompletableFuture<Chat>> getPendingChats() {
+		return pendingChats;
+	}
+
+	Executor getLoop() {
+		return loop;
+	}
+
+	/**
+	 * Runs the event for every lobby user of the shard, on its loop.
+	 */
+	CompletableFuture<Void> notifyLobby(Consumer<User> event) {
+		if (lobby.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return CompletableFuture.runAsync(() -> {
+			for (User user : lobby.values()) {
+				event.accept(user);
+			}
+		}, loop);
+	}
+}
@@ -0,0 +1,59 @@
+package es.codeurjc.webchat;
+
+import java.util.Arrays;
+
+/**
+ * Maps keys to one of a number of nodes. Every node owns many points of a
+ * ring of 64-bit hashes and a key belongs to the node of the first point at
+ * or after its hash, so adding a node only moves the keys it takes over.
+ */
+final class ConsistentHashRing {
+
+	private static final int POINTS_PER_NODE = 64;
+
+	private final long[] points;
+	private final int[] owners;
+
+	ConsistentHashRing(int nodes) {
+		if (nodes < 1) {
+			throw new IllegalArgumentException("A ring needs at least one node, not " + nodes);
+		}
+		long[][] ring = new long[nodes * POINTS_PER_NODE][];
+		for (int node = 0; node < nodes; node++) {
+			for (int point = 0; point < POINTS_PER_NODE; point++) {
+				ring[node * POINTS_PER_NODE + point] = new long[] { hash(node + "#" + point), node };
+			}
+		}
+		Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+
+		this.points = new long[ring.length];
+		this.owners = new int[ring.length];
+		for (int i = 0; i < ring.length; i++) {
+			points[i] = ring[i][0];
+			owners[i] = (int) ring[i][1];
+		}
+	}
+
+	int nodeFor(String key) {
+		int index = Arrays.binarySearch(points, hash(key));
+		if (index < 0) {
+			index = -index - 1;
+		}
+		return owners[index == points.length ? 0 : index];
+	}
+
+	// FNV-1a over the chars, finished with the MurmurHash3 mixer
+	static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,10 @@
+package es.codeurjc.webchat;
+
+/**
+ * How user mailboxes are executed. {@link #PLATFORM} drains them on a fixed
+ * pool of platform threads, {@link #VIRTUAL} drains each one on its own virtual
+ * thread, so a blocking socket write only parks that virtual thread.
+ */
+public enum DispatchMode {
+	PLATFORM, VIRTUAL
+}
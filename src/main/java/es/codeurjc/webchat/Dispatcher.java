@@ -0,0 +1,250 @@
+package es.codeurjc.webchat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.codeurjc.webchat.metrics.Metrics;
+
+/**
+ * Threads shared by every user mailbox. Each user keeps its own FIFO order
+ * through a {@link Mailbox}, but no user owns a thread.
+ */
+public class Dispatcher {
+
+	private static final Logger log = LoggerFactory.getLogger(Dispatcher.class);
+
+	private static final int DEFAULT_THREADS = Integer.getInteger("webchat.dispatcher.threads",
+			Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+
+	private static final int DEFAULT_MAILBOX_CAPACITY = Integer.getInteger("webchat.mailbox.capacity", 1024);
+
+	private static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.valueOf(
+			System.getProperty("webchat.mailbox.overflow", "drop_oldest").toUpperCase());
+
+	private static final BatchPolicy DEFAULT_BATCH_POLICY = BatchPolicy.fromSystemProperties();
+
+	private static final int DEFAULT_SHARDS = Integer.getInteger("webchat.dispatcher.shards",
+			Runtime.getRuntime().availableProcessors());
+
+	private static Dispatcher defaultDispatcher;
+
+	private final ExecutorService pool;
+	private final ScheduledExecutorService timer;
+	private final DispatchMode mode;
+	private final int threads;
+	private final int mailboxCapacity;
+	private final OverflowPolicy overflowPolicy;
+	private final BatchPolicy batchPolicy;
+	private final ExecutorService[] shardLoops;
+	private final Metrics metrics = new Metrics();
+
+	public Dispatcher(int threads) {
+		this(DispatchMode.PLATFORM, threads);
+	}
+
+	public Dispatcher(DispatchMode mode, int threads) {
+		this(mode, threads, DEFAULT_MAILBOX_CAPACITY, DEFAULT_OVERFLOW_POLICY);
+	}
+
+	/**
+	 * @param threads size of the pool in {@link DispatchMode#PLATFORM} mode,
+	 *        ignored in {@link DispatchMode#VIRTUAL} mode
+	 * @param mailboxCapacity maximum pending events per user
+	 * @param overflowPolicy what a full mailbox does with one more event
+	 * @throws IllegalStateException in {@link DispatchMode#VIRTUAL} mode
+	 *         before Java 21
+	 */
+	public Dispatcher(DispatchMode mode, int threads, int mailboxCapacity, OverflowPolicy overflowPolicy) {
+		this(mode, threads, mailboxCapacity, overflowPolicy, DEFAULT_BATCH_POLICY);
+	}
+
+	/**
+	 * @param batchPolicy how events are merged into outbound frames
+	 */
+	public Dispatcher(DispatchMode mode, int threads, int mailboxCapacity, OverflowPolicy overflowPolicy,
+			BatchPolicy batchPolicy) {
+		this(mode, threads, mailboxCapacity, overflowPolicy, batchPolicy, DEFAULT_SHARDS);
+	}
+
+	/**
+	 * @param shards event loops, and shards of every {@link ChatManager} using
+	 *        this dispatcher
+	 */
+	public Dispatcher(DispatchMode mode, int threads, int mailboxCapacity, OverflowPolicy overflowPolicy,
+			BatchPolicy batchPolicy, int shards) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("Invalid number of shards " + shards);
+		}
+		this.mode = mode;
+		this.threads = threads;
+		this.mailboxCapacity = mailboxCapacity;
+		this.overflowPolicy = overflowPolicy;
+		this.batchPolicy = batchPolicy;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new DispatcherThreadFactory("webchat-timer-"));
+		this.shardLoops = new ExecutorService[shards];
+		DispatcherThreadFactory shardThreads = new DispatcherThreadFactory("webchat-shard-");
+		for (int i = 0; i < shards; i++) {
+			// Threads only start with the first task
+			shardLoops[i] = Executors.newSingleThreadExecutor(shardThreads);
+		}
+		if (mode == DispatchMode.VIRTUAL) {
+			this.pool = newVirtualThreadPerTaskExecutor();
+		} else {
+			this.pool = Executors.newFixedThreadPool(threads, new DispatcherThreadFactory("webchat-dispatcher-"));
+		}
+	}
+
+	/**
+	 * A new dispatcher configured by the webchat.dispatcher.* and
+	 * webchat.mailbox.* system properties.
+	 */
+	public static Dispatcher fromSystemProperties() {
+		return new Dispatcher(modeFromSystemProperties(), DEFAULT_THREADS);
+	}
+
+	public static synchronized Dispatcher getDefault() {
+		if (defaultDispatcher == null) {
+			defaultDispatcher = fromSystemProperties();
+		}
+		return defaultDispatcher;
+	}
+
+	/**
+	 * The mode set by webchat.dispatcher.mode, or {@link DispatchMode#PLATFORM}
+	 * if that mode can't run on this JVM.
+	 */
+	private static DispatchMode modeFromSystemProperties() {
+		String name = System.getProperty("webchat.dispatcher.mode", "platform");
+		DispatchMode mode;
+		try {
+			mode = DispatchMode.valueOf(name.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			log.warn("Unknown webchat.dispatcher.mode '{}', using platform threads", name);
+			return DispatchMode.PLATFORM;
+		}
+		if (mode == DispatchMode.VIRTUAL && !isVirtualThreadSupported()) {
+			log.warn("Virtual threads need Java 21 or newer, running on {}, using platform threads",
+					System.getProperty("java.version"));
+			return DispatchMode.PLATFORM;
+		}
+		return mode;
+	}
+
+	public static boolean isVirtualThreadSupported() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	public DispatchMode getMode() {
+		return mode;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getMailboxCapacity() {
+		return mailboxCapacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public BatchPolicy getBatchPolicy() {
+		return batchPolicy;
+	}
+
+	/**
+	 * Instruments of everything running on this dispatcher.
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public int getShards() {
+		return shardLoops.length;
+	}
+
+	ExecutorService getShardLoop(int shard) {
+		return shardLoops[shard];
+	}
+
+	ExecutorService getPool() {
+		return pool;
+	}
+
+	ScheduledExecutorService getTimer() {
+		return timer;
+	}
+
+	Mailbox newMailbox(Runnable onDisconnect, Runnable onDrained) {
+		return new Mailbox(this, onDisconnect, onDrained);
+	}
+
+	public void shutdown() {
+		for (ExecutorService loop : shardLoops) {
+			loop.shutdown();
+		}
+		timer.shutdown();
+		pool.shutdown();
+	}
+
+	/**
+	 * Waits for the threads to finish their tasks after {@link #shutdown()}.
+	 *
+	 * @return whether every thread finished in time
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (ExecutorService loop : shardLoops) {
+			if (!loop.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return timer.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+				&& pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	// Looked up reflectively so the code still builds and runs on Java 17
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Virtual threads need Java 21 or newer, running on "
+					+ System.getProperty("java.version"), e);
+		}
+	}
+
+	private static class DispatcherThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger poolCount = new AtomicInteger();
+
+		private final String prefix;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		DispatcherThreadFactory(String prefix) {
+			this.prefix = prefix + poolCount.incrementAndGet() + "-";
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
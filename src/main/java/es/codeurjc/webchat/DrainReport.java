@@ -0,0 +1,70 @@
+package es.codeurjc.webchat;
+
+/**
+ * What {@link ChatManager#close(long, java.util.concurrent.TimeUnit)} did
+ * with the events pending when it started.
+ */
+public final class DrainReport {
+
+	private final int users;
+	private final int chats;
+	private final long flushed;
+	private final long dropped;
+	private final boolean complete;
+	private final long elapsedMillis;
+
+	DrainReport(int users, int chats, long flushed, long dropped, boolean complete, long elapsedMillis) {
+		this.users = users;
+		this.chats = chats;
+		this.flushed = flushed;
+		this.dropped = dropped;
+		this.complete = complete;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Users whose mailboxes were drained, or given up on.
+	 */
+	public int getUsers() {
+		return users;
+	}
+
+	/**
+	 * Chats closed.
+	 */
+	public int getChats() {
+		return chats;
+	}
+
+	/**
+	 * Events delivered while draining, including the chat closed notices.
+	 */
+	public long getFlushed() {
+		return flushed;
+	}
+
+	/**
+	 * Events discarded while draining, by a full mailbox or because the time
+	 * was up.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Whether every mailbox was drained in time.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "Drained " + users + " users and " + chats + " chats in " + elapsedMillis + "ms: " + flushed
+				+ " events flushed, " + dropped + " dropped" + (complete ? "" : ", timed out");
+	}
+}
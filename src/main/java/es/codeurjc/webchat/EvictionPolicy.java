@@ -0,0 +1,44 @@
+package es.codeurjc.webchat;
+
+/**
+ * When a chat is closed for lack of activity, giving its slot back to
+ * {@link ChatManager}. A TTL of 0 disables that kind of eviction.
+ */
+public final class EvictionPolicy {
+
+	public static final EvictionPolicy NONE = new EvictionPolicy(0, 0);
+
+	private final long emptyTtlMillis;
+	private final long idleTtlMillis;
+
+	/**
+	 * @param emptyTtlMillis how long a chat may stay without users
+	 * @param idleTtlMillis how long a chat may go without joins, leaves or
+	 *        messages, even with users in it
+	 */
+	public EvictionPolicy(long emptyTtlMillis, long idleTtlMillis) {
+		if (emptyTtlMillis < 0 || idleTtlMillis < 0) {
+			throw new IllegalArgumentException("Invalid eviction policy: empty TTL " + emptyTtlMillis
+					+ "ms, idle TTL " + idleTtlMillis + "ms");
+		}
+		this.emptyTtlMillis = emptyTtlMillis;
+		this.idleTtlMillis = idleTtlMillis;
+	}
+
+	static EvictionPolicy fromSystemProperties() {
+		return new EvictionPolicy(Long.getLong("webchat.chat.empty.ttl.ms", 30_000),
+				Long.getLong("webchat.chat.idle.ttl.ms", 0));
+	}
+
+	public long getEmptyTtlMillis() {
+		return emptyTtlMillis;
+	}
+
+	public long getIdleTtlMillis() {
+		return idleTtlMillis;
+	}
+
+	public boolean isEnabled() {
+		return emptyTtlMillis > 0 || idleTtlMillis > 0;
+	}
+}
@@ -0,0 +1,66 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The frames of recent system events, so that an event sent to every user
+ * is rendered by the first one and handed by reference to the rest. Events
+ * are told apart by kind and by the {@link Identity} instances of their chat
+ * and user, which are never reused, so a cached frame never goes stale.
+ * <p>
+ * Slots are direct mapped: a new event takes the slot of whichever one hashed
+ * there before, and lookups are a single read with no lock, as they come from
+ * the mailboxes of every user at once.
+ */
+final class FrameCache<F> {
+
+	static final int NEW_CHAT = 0;
+	static final int CHAT_CLOSED = 1;
+	static final int USER_JOINED = 2;
+	static final int USER_LEFT = 3;
+
+	private static final class Entry<F> {
+		final int kind;
+		final Identity chat;
+		final Identity user;
+		final F frame;
+
+		Entry(int kind, Identity chat, Identity user, F frame) {
+			this.kind = kind;
+			this.chat = chat;
+			this.user = user;
+			this.frame = frame;
+		}
+	}
+
+	private final AtomicReferenceArray<Entry<F>> slots;
+
+	/**
+	 * @param size rounded up to a power of two
+	 */
+	FrameCache(int size) {
+		this.slots = new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(size, 2) - 1) << 1);
+	}
+
+	/**
+	 * @param user null for chat events
+	 * @return the frame of the event, or null if it is not cached
+	 */
+	F get(int kind, Identity chat, Identity user) {
+		Entry<F> entry = slots.get(slot(kind, chat, user));
+		if (entry != null && entry.kind == kind && entry.chat == chat && entry.user == user) {
+			return entry.frame;
+		}
+		return null;
+	}
+
+	void put(int kind, Identity chat, Identity user, F frame) {
+		slots.set(slot(kind, chat, user), new Entry<>(kind, chat, user, frame));
+	}
+
+	private int slot(int kind, Identity chat, Identity user) {
+		int h = (chat.getId() * 31 + (user != null ? user.getId() : -1)) * 4 + kind;
+		h *= 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (slots.length() - 1);
+	}
+}
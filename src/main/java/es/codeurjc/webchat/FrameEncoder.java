@@ -0,0 +1,35 @@
+package es.codeurjc.webchat;
+
+import java.util.List;
+
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * Builds the outbound frames of one WebSocket session for the subprotocol it
+ * negotiated. Called from the session's mailbox only, so implementations may
+ * keep per-session state without synchronization.
+ */
+public interface FrameEncoder {
+
+	public WebSocketMessage<?> newChat(Chat chat);
+
+	public WebSocketMessage<?> chatClosed(Chat chat);
+
+	public WebSocketMessage<?> newUserInChat(Chat chat, User user);
+
+	public WebSocketMessage<?> userExitedFromChat(Chat chat, User user);
+
+	public WebSocketMessage<?> newMessage(ChatMessage message);
+
+	/**
+	 * Merges several frames built by this encoder into a single one.
+	 */
+	public WebSocketMessage<?> batch(List<WebSocketMessage<?>> frames);
+
+	public static FrameEncoder forProtocol(String protocol) {
+		if (BinaryProtocol.BINARY_SUBPROTOCOL.equals(protocol)) {
+			return new BinaryFrameEncoder();
+		}
+		return JsonFrameEncoder.INSTANCE;
+	}
+}
@@ -0,0 +1,113 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coarse timer for large numbers of timeouts. Scheduling and cancelling are
+ * O(1) and each tick only looks at one bucket of the wheel, at the cost of
+ * firing up to one tick late. Tasks run on the ticking thread and must be short.
+ */
+final class HashedWheelTimer {
+
+	private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+	private final long tickNanos;
+	private final int mask;
+	private final ArrayDeque<Timeout>[] wheel;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final long startTime = System.nanoTime();
+	private final ScheduledFuture<?> ticker;
+
+	// Only touched by the ticking thread
+	private long tick;
+
+	@SuppressWarnings("unchecked")
+	HashedWheelTimer(ScheduledExecutorService executor, long tickDuration, TimeUnit unit, int wheelSize) {
+		if (tickDuration <= 0 || Integer.bitCount(wheelSize) != 1) {
+			throw new IllegalArgumentException("Invalid wheel: tick " + tickDuration + " " + unit
+					+ ", size " + wheelSize);
+		}
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.mask = wheelSize - 1;
+		this.wheel = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[wheelSize];
+		for (int i = 0; i < wheelSize; i++) {
+			wheel[i] = new ArrayDeque<>();
+		}
+		this.ticker = executor.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	long getTickNanos() {
+		return tickNanos;
+	}
+
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	void stop() {
+		ticker.cancel(false);
+	}
+
+	private void tick() {
+		transferPending();
+
+		ArrayDeque<Timeout> bucket = wheel[(int) (tick & mask)];
+		for (int i = bucket.size(); i > 0; i--) {
+			Timeout timeout = bucket.poll();
+			if (timeout.cancelled) {
+				continue;
+			}
+			if (timeout.remainingRounds > 0) {
+				timeout.remainingRounds--;
+				bucket.add(timeout);
+				continue;
+			}
+			try {
+				timeout.task.run();
+			} catch (RuntimeException e) {
+				log.error("Error running a timeout", e);
+			}
+		}
+		tick++;
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			// Tick n runs (n + 1) ticks after start, never schedule in the past
+			long ticks = Math.max((timeout.deadline + tickNanos - 1) / tickNanos - 1, tick);
+			timeout.remainingRounds = (ticks - tick) / wheel.length;
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	static final class Timeout {
+
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		void cancel() {
+			cancelled = true;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package es.codeurjc.webchat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * The id of a user or chat, given by its {@link IdentityRegistry}, along with
+ * its name and color already encoded for every protocol, so that encoders
+ * copy them instead of escaping and converting them for every recipient.
+ */
+public final class Identity {
+
+	private final int id;
+	private final String name;
+	private final byte[] nameBytes;
+	private final String jsonName;
+	// Replaced as a whole when a user comes back with another color
+	private volatile Color color;
+
+	// Holds on the interned identity, guarded by the map of the registry
+	int holds;
+
+	private static final class Color {
+
+		final String value;
+		final byte[] bytes;
+		final String json;
+
+		Color(String value) {
+			this.value = value;
+			this.bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+			this.json = value != null ? escape(value) : null;
+		}
+	}
+
+	Identity(int id, String name, String color) {
+		this.id = id;
+		this.name = name;
+		this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		this.jsonName = escape(name);
+		this.color = new Color(color);
+	}
+
+	void setColor(String color) {
+		if (!Objects.equals(this.color.value, color)) {
+			this.color = new Color(color);
+		}
+	}
+
+	static String escape(String value) {
+		char[] escaped = JsonStringEncoder.getInstance().quoteAsString(value);
+		// Escaping only ever adds characters, most names are kept as they are
+		return escaped.length == value.length() ? value : new String(escaped);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Null for a chat.
+	 */
+	public String getColor() {
+		return color.value;
+	}
+
+	/**
+	 * The name as UTF-8. Callers must not modify the returned array.
+	 */
+	public byte[] getNameBytes() {
+		return nameBytes;
+	}
+
+	/**
+	 * The color as UTF-8. Callers must not modify the returned array.
+	 */
+	public byte[] getColorBytes() {
+		return color.bytes;
+	}
+
+	/**
+	 * The name escaped for a JSON string, without the quotes.
+	 */
+	public String getJsonName() {
+		return jsonName;
+	}
+
+	/**
+	 * The color escaped for a JSON string, without the quotes.
+	 */
+	public String getJsonColor() {
+		return color.json;
+	}
+
+	@Override
+	public String toString() {
+		return name + "#" + id;
+	}
+}
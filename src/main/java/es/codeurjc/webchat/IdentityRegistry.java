@@ -0,0 +1,145 @@
+package es.codeurjc.webchat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the {@link Identity} of the users and chats of a manager. A user
+ * name is interned, with the same id, for as long as something holds it: the
+ * registered user, a member on another node, or an author of the history of
+ * an open chat. A name nothing holds is only remembered among the last ones
+ * looked up, so lookups don't pile up identities no one gives back. Every chat
+ * gets its own identity when it is opened. Ids are never reused, so a client
+ * that learnt what an id stands for can keep it for as long as the connection
+ * lasts.
+ */
+public class IdentityRegistry {
+
+	private static final int LOOKUPS = 1024;
+
+	private final ConcurrentHashMap<String, Identity> users = new ConcurrentHashMap<>();
+	// Identities of names looked up but not held, least recently used first
+	private final Map<String, Identity> lookups = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Identity> eldest) {
+			return size() > LOOKUPS;
+		}
+	};
+	private final AtomicInteger nextUserId = new AtomicInteger();
+	private final AtomicInteger nextChatId = new AtomicInteger();
+
+	/**
+	 * The identity of a user with the given name, the same one for as long as
+	 * it is interned or among the last names looked up.
+	 */
+	public Identity user(String name, String color) {
+		Identity identity = users.get(name);
+		if (identity != null) {
+			return identity;
+		}
+		synchronized (lookups) {
+			identity = users.get(name);
+			return identity != null ? identity
+					: lookups.computeIfAbsent(name, n -> new Identity(nextId(nextUserId), name, color));
+		}
+	}
+
+	/**
+	 * The identity a user was given, or the one of its name and color.
+	 */
+	public Identity of(User user) {
+		if (user instanceof RecordedUser) {
+			return ((RecordedUser) user).getIdentity();
+		}
+		return user(user.getName(), user.getColor());
+	}
+
+	/**
+	 * A user carrying the identity of the given one, to hand out in events
+	 * that may be delivered after the user is gone.
+	 */
+	User record(User user) {
+		return user instanceof RecordedUser ? user : new RecordedUser(of(user));
+	}
+
+	/**
+	 * The author of a message from another node, interned only if something
+	 * here holds the name.
+	 */
+	User record(String name, String color) {
+		Identity identity = users.get(name);
+		return new RecordedUser(identity != null ? identity : new Identity(nextId(nextUserId), name, color));
+	}
+
+	/**
+	 * Takes a hold on the identity of a user that is here, interning it if
+	 * needed along with the id it was looked up with. A user coming back with
+	 * another color keeps its id, and the color is updated in place.
+	 */
+	Identity hold(String name, String color) {
+		return hold(name, color, true);
+	}
+
+	/**
+	 * Takes a hold on the identity of the author of a logged message, whose
+	 * color may be older than the one interned.
+	 */
+	Identity holdAuthor(String name, String color) {
+		return hold(name, color, false);
+	}
+
+	private Identity hold(String name, String color, boolean current) {
+		return users.compute(name, (n, interned) -> {
+			if (interned == null) {
+				synchronized (lookups) {
+					interned = lookups.remove(name);
+				}
+			}
+			if (interned == null) {
+				interned = new Identity(nextId(nextUserId), name, color);
+			} else if (current) {
+				interned.setColor(color);
+			}
+			interned.holds++;
+			return interned;
+		});
+	}
+
+	/**
+	 * A new identity for a chat being opened.
+	 */
+	Identity chat(String name) {
+		return new Identity(nextId(nextChatId), name, null);
+	}
+
+	/**
+	 * Gives back a hold on the identity of a user, forgetting it once no one
+	 * holds it. Those already handed out stay valid, a new one is given to the
+	 * name next time.
+	 */
+	public void release(String name) {
+		users.computeIfPresent(name, (n, interned) -> --interned.holds > 0 ? interned : null);
+	}
+
+	void release(Identity identity) {
+		users.computeIfPresent(identity.getName(),
+				(n, interned) -> interned != identity || --interned.holds > 0 ? interned : null);
+	}
+
+	/**
+	 * Users interned.
+	 */
+	public int size() {
+		return users.size();
+	}
+
+	private static int nextId(AtomicInteger counter) {
+		int id = counter.getAndIncrement();
+		if (id < 0) {
+			throw new IllegalStateException("Identity ids exhausted");
+		}
+		return id;
+	}
+}
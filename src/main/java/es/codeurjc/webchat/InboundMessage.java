@@ -0,0 +1,76 @@
+package es.codeurjc.webchat;
+
+/**
+ * A frame received from a client: a request to join or leave a chat, or a
+ * message to one of the chats joined.
+ */
+public final class InboundMessage {
+
+	public enum Type {
+		JOIN, LEAVE, MESSAGE
+	}
+
+	private final Type type;
+	private final String chat;
+	private final String user;
+	private final String message;
+	private final boolean lobby;
+
+	private InboundMessage(Type type, String chat, String user, String message, boolean lobby) {
+		this.type = type;
+		this.chat = chat;
+		this.user = user;
+		this.message = message;
+		this.lobby = lobby;
+	}
+
+	public static InboundMessage join(String chat, String user) {
+		return join(chat, user, false);
+	}
+
+	/**
+	 * @param lobby whether the user wants to hear about every chat opened and
+	 *        closed
+	 */
+	public static InboundMessage join(String chat, String user, boolean lobby) {
+		return new InboundMessage(Type.JOIN, chat, user, null, lobby);
+	}
+
+	public static InboundMessage leave(String chat) {
+		return new InboundMessage(Type.LEAVE, chat, null, null, false);
+	}
+
+	/**
+	 * A message to the first chat the session joined.
+	 */
+	public static InboundMessage message(String message) {
+		return message(null, message);
+	}
+
+	/**
+	 * @param chat one of the chats joined, or null for the first one
+	 */
+	public static InboundMessage message(String chat, String message) {
+		return new InboundMessage(Type.MESSAGE, chat, null, message, false);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getChat() {
+		return chat;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public boolean isLobby() {
+		return lobby;
+	}
+}
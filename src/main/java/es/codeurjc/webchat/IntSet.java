@@ -0,0 +1,108 @@
+package es.codeurjc.webchat;
+
+import java.util.Arrays;
+
+/**
+ * Set of non-negative ints in a single open addressing array, for the ids a
+ * session already knows. Not thread safe.
+ */
+final class IntSet {
+
+	private static final int EMPTY = -1;
+
+	private int[] slots;
+	private int size;
+
+	IntSet() {
+		this(16);
+	}
+
+	IntSet(int capacity) {
+		slots = new int[Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1];
+		Arrays.fill(slots, EMPTY);
+	}
+
+	boolean contains(int value) {
+		int mask = slots.length - 1;
+		for (int i = mix(value) & mask;; i = (i + 1) & mask) {
+			int slot = slots[i];
+			if (slot == value) {
+				return true;
+			}
+			if (slot == EMPTY) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return whether the value was not in the set
+	 */
+	boolean add(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value " + value);
+		}
+		int mask = slots.length - 1;
+		int i = mix(value) & mask;
+		for (; slots[i] != EMPTY; i = (i + 1) & mask) {
+			if (slots[i] == value) {
+				return false;
+			}
+		}
+		slots[i] = value;
+		if (++size * 2 > slots.length) {
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether the value was in the set
+	 */
+	boolean remove(int value) {
+		int mask = slots.length - 1;
+		int i = mix(value) & mask;
+		for (; slots[i] != value; i = (i + 1) & mask) {
+			if (slots[i] == EMPTY) {
+				return false;
+			}
+		}
+		// Shift back the values after it that would no longer be reachable
+		for (int j = (i + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask) {
+			int home = mix(slots[j]) & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				slots[i] = slots[j];
+				i = j;
+			}
+		}
+		slots[i] = EMPTY;
+		size--;
+		return true;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		int[] old = slots;
+		slots = new int[old.length * 2];
+		Arrays.fill(slots, EMPTY);
+		int mask = slots.length - 1;
+		for (int value : old) {
+			if (value != EMPTY) {
+				int i = mix(value) & mask;
+				while (slots[i] != EMPTY) {
+					i = (i + 1) & mask;
+				}
+				slots[i] = value;
+			}
+		}
+	}
+
+	// Ids are sequential, spread them so that runs don't cluster
+	private static int mix(int value) {
+		int h = value * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
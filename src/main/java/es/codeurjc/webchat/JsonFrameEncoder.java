@@ -0,0 +1,113 @@
+package es.codeurjc.webchat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * The original JSON text protocol. It keeps nothing per session, so every
+ * session shares it.
+ * System frames are put together from the names already escaped in the
+ * identities of the chat and the user, once per event: the recipients after
+ * the first get the same frame from a {@link FrameCache}.
+ */
+public class JsonFrameEncoder implements FrameEncoder {
+
+	// Before INSTANCE, which reads it
+	private static final int SYSTEM_FRAME_CACHE_SIZE = Integer.getInteger("webchat.system.frames.cached", 256);
+
+	public static final JsonFrameEncoder INSTANCE = new JsonFrameEncoder();
+
+	// Every session gets the same text for a system event, the frame is shared
+	private final FrameCache<TextMessage> systemFrames = new FrameCache<>(SYSTEM_FRAME_CACHE_SIZE);
+
+	@Override
+	public WebSocketMessage<?> newChat(Chat chat) {
+		Identity identity = chat.getIdentity();
+		TextMessage frame = systemFrames.get(FrameCache.NEW_CHAT, identity, null);
+		if (frame == null) {
+			String name = identity.getJsonName();
+			frame = end(system(name).append("New chat '").append(name).append('\''));
+			systemFrames.put(FrameCache.NEW_CHAT, identity, null, frame);
+		}
+		return frame;
+	}
+
+	@Override
+	public WebSocketMessage<?> chatClosed(Chat chat) {
+		Identity identity = chat.getIdentity();
+		TextMessage frame = systemFrames.get(FrameCache.CHAT_CLOSED, identity, null);
+		if (frame == null) {
+			String name = identity.getJsonName();
+			frame = end(system(name).append("Chat '").append(name).append("' closed"));
+			systemFrames.put(FrameCache.CHAT_CLOSED, identity, null, frame);
+		}
+		return frame;
+	}
+
+	@Override
+	public WebSocketMessage<?> newUserInChat(Chat chat, User user) {
+		Identity identity = chat.getIdentity();
+		Identity member = chat.identify(user);
+		TextMessage frame = systemFrames.get(FrameCache.USER_JOINED, identity, member);
+		if (frame == null) {
+			String name = identity.getJsonName();
+			frame = end(system(name).append("New user '").append(member.getJsonName()).append("' in chat '")
+					.append(name).append('\''));
+			systemFrames.put(FrameCache.USER_JOINED, identity, member, frame);
+		}
+		return frame;
+	}
+
+	@Override
+	public WebSocketMessage<?> userExitedFromChat(Chat chat, User user) {
+		Identity identity = chat.getIdentity();
+		Identity member = chat.identify(user);
+		TextMessage frame = systemFrames.get(FrameCache.USER_LEFT, identity, member);
+		if (frame == null) {
+			String name = identity.getJsonName();
+			frame = end(system(name).append("User '").append(member.getJsonName()).append("' exited from chat '")
+					.append(name).append('\''));
+			systemFrames.put(FrameCache.USER_LEFT, identity, member, frame);
+		}
+		return frame;
+	}
+
+	@Override
+	public WebSocketMessage<?> newMessage(ChatMessage message) {
+		return message.getTextMessage();
+	}
+
+	/**
+	 * A batch is a JSON array of the batched messages.
+	 */
+	@Override
+	public WebSocketMessage<?> batch(List<WebSocketMessage<?>> frames) {
+		int length = frames.size() + 1;
+		for (WebSocketMessage<?> frame : frames) {
+			length += frame.getPayloadLength();
+		}
+		StringBuilder batch = new StringBuilder(length);
+		batch.append('[');
+		for (WebSocketMessage<?> frame : frames) {
+			if (batch.length() > 1) {
+				batch.append(',');
+			}
+			batch.append(((TextMessage) frame).getPayload());
+		}
+		return new TextMessage(batch.append(']'));
+	}
+
+	// Starts a system frame, up to the opening quote of its message
+	private static StringBuilder system(String chatName) {
+		StringBuilder frame = new StringBuilder(64 + 3 * chatName.length());
+		return frame.append("{\"type\":\"system\",\"chat\":\"").append(chatName).append("\",\"message\":\"");
+	}
+
+	// With its bytes, so that every recipient reads their length without encoding them again
+	private static TextMessage end(StringBuilder frame) {
+		return new TextMessage(frame.append("\"}").toString().getBytes(StandardCharsets.UTF_8));
+	}
+}
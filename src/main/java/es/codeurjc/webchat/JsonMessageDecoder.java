@@ -0,0 +1,80 @@
+package es.codeurjc.webchat;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes the JSON frames sent by clients with a streaming parser, without
+ * building a tree. A frame with a non-null {@code leave} field leaves that
+ * chat, one with a {@code chat} but no {@code message} is a join request, and
+ * anything else is a message, to its {@code chat} if it has one. A frame with
+ * neither is rejected.
+ */
+public class JsonMessageDecoder {
+
+	private static final JsonFactory factory = new JsonFactory();
+
+	public InboundMessage decode(String payload) throws IOException {
+		String chat = null;
+		String user = null;
+		String message = null;
+		String leave = null;
+		boolean lobby = false;
+
+		try (JsonParser parser = factory.createParser(payload)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "Expected a JSON object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				switch (field) {
+				case "chat":
+					chat = text(parser, value);
+					break;
+				case "user":
+					user = text(parser, value);
+					break;
+				case "message":
+					message = text(parser, value);
+					break;
+				case "leave":
+					leave = text(parser, value);
+					break;
+				case "lobby":
+					lobby = value == JsonToken.VALUE_TRUE;
+					parser.skipChildren();
+					break;
+				default:
+					parser.skipChildren();
+				}
+			}
+		}
+
+		if (leave != null) {
+			return InboundMessage.leave(leave);
+		}
+		if (chat != null && message == null) {
+			return InboundMessage.join(chat, user, lobby);
+		}
+		if (message == null) {
+			throw new IOException("A frame without a chat needs a message");
+		}
+		return InboundMessage.message(chat, message);
+	}
+
+	private static String text(JsonParser parser, JsonToken value) throws IOException {
+		if (value == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (value.isStructStart()) {
+			parser.skipChildren();
+			return "";
+		}
+		return parser.getText();
+	}
+}
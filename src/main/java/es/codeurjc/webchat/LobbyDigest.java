@@ -0,0 +1,83 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Collects the chats opened and closed during an interval and hands them out
+ * as a single change of the chat list, at most once per interval. A chat
+ * opened and closed within the same interval is left out.
+ */
+final class LobbyDigest {
+
+	private final ScheduledExecutorService timer;
+	private final long intervalNanos;
+	private final BiConsumer<List<Chat>, List<Chat>> publisher;
+
+	// Pending changes in arrival order, true for opened and false for closed
+	private final Map<Chat, Boolean> changes = new LinkedHashMap<>();
+	private ScheduledFuture<?> flush;
+	private boolean stopped;
+
+	/**
+	 * @param publisher receives the opened and the closed chats of every digest
+	 */
+	LobbyDigest(ScheduledExecutorService timer, long interval, TimeUnit unit,
+			BiConsumer<List<Chat>, List<Chat>> publisher) {
+		this.timer = timer;
+		this.intervalNanos = unit.toNanos(interval);
+		this.publisher = publisher;
+	}
+
+	void chatOpened(Chat chat) {
+		change(chat, Boolean.TRUE);
+	}
+
+	void chatClosed(Chat chat) {
+		change(chat, Boolean.FALSE);
+	}
+
+	private synchronized void change(Chat chat, Boolean opened) {
+		if (stopped) {
+			return;
+		}
+		if (!opened && changes.remove(chat) != null) {
+			// Nobody was told about it yet
+			return;
+		}
+		changes.put(chat, opened);
+		if (flush == null) {
+			flush = timer.schedule(this::flush, intervalNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	void flush() {
+		List<Chat> opened = new ArrayList<>();
+		List<Chat> closed = new ArrayList<>();
+		synchronized (this) {
+			for (Map.Entry<Chat, Boolean> change : changes.entrySet()) {
+				(change.getValue() ? opened : closed).add(change.getKey());
+			}
+			changes.clear();
+			flush = null;
+		}
+		if (!opened.isEmpty() || !closed.isEmpty()) {
+			publisher.accept(List.copyOf(opened), List.copyOf(closed));
+		}
+	}
+
+	synchronized void stop() {
+		stopped = true;
+		changes.clear();
+		if (flush != null) {
+			flush.cancel(false);
+			flush = null;
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded serial executor on top of a shared pool: tasks run one at a time and
+ * in submission order, and at most one pool thread works for the mailbox at
+ * once. When the mailbox is full the {@link OverflowPolicy} decides what is
+ * discarded.
+ * <p>
+ * Whenever the mailbox runs dry after delivering events it calls its drained
+ * callback, right away or once the linger time of the {@link BatchPolicy} has
+ * passed, so the user can flush the frame it has been batching.
+ */
+class Mailbox implements Executor {
+
+	private static final Logger log = LoggerFactory.getLogger(Mailbox.class);
+
+	private static final int THROUGHPUT = 64;
+
+	private static class Event {
+		private Runnable task;
+		private final boolean system;
+		private final boolean keyed;
+		private final long systemKey;
+
+		Event(Runnable task) {
+			this(task, false, false, 0);
+		}
+
+		Event(Runnable task, boolean system, boolean keyed, long systemKey) {
+			this.task = task;
+			this.system = system;
+			this.keyed = keyed;
+			this.systemKey = systemKey;
+		}
+
+		boolean isSystem() {
+			return system;
+		}
+
+		boolean mergesWith(Event pending) {
+			return keyed && pending.keyed && systemKey == pending.systemKey;
+		}
+	}
+
+	private final Executor pool;
+	private final ScheduledExecutorService timer;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final long lingerMillis;
+	private final Runnable onDisconnect;
+	private final Runnable onDrained;
+	private final Runnable flushTask = this::flush;
+
+	private final ArrayDeque<Event> events = new ArrayDeque<>();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder droppedByDispatcher;
+	private volatile int depth;
+	private volatile boolean closed;
+	// Guarded by this
+	private boolean scheduled;
+	private boolean unflushed;
+	private boolean flushScheduled;
+	private long processed;
+	private CompletableFuture<Void> idle;
+
+	Mailbox(Dispatcher dispatcher, Runnable onDisconnect, Runnable onDrained) {
+		this.pool = dispatcher.getPool();
+		this.timer = dispatcher.getTimer();
+		this.capacity = dispatcher.getMailboxCapacity();
+		this.policy = dispatcher.getOverflowPolicy();
+		this.lingerMillis = dispatcher.getBatchPolicy().getLingerMillis();
+		this.onDisconnect = onDisconnect;
+		this.onDrained = onDrained;
+		this.droppedByDispatcher = dispatcher.getMetrics().counter("mailbox.dropped");
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		enqueue(new Event(task));
+	}
+
+	/**
+	 * Enqueues a system notification. Pending notifications with the same key
+	 * may be merged under {@link OverflowPolicy#COALESCE_SYSTEM}.
+	 */
+	public void executeSystem(Runnable task, long key) {
+		enqueue(new Event(task, true, true, key));
+	}
+
+	/**
+	 * Enqueues a system notification that is never merged with another one.
+	 */
+	public void executeSystem(Runnable task) {
+		enqueue(new Event(task, true, false, 0));
+	}
+
+	public int size() {
+		return depth;
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Events taken from the mailbox to run so far.
+	 */
+	public synchronized long getProcessed() {
+		return processed;
+	}
+
+	/**
+	 * Whether there is nothing left to run, including a batch waiting for its
+	 * flush.
+	 */
+	public synchronized boolean isIdle() {
+		return events.isEmpty() && !scheduled && !flushScheduled;
+	}
+
+	/**
+	 * Completes once the mailbox is idle, see {@link #isIdle()}, or closed.
+	 */
+	public synchronized CompletableFuture<Void> whenIdle() {
+		if (closed || isIdle()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (idle == null) {
+			idle = new CompletableFuture<>();
+		}
+		return idle;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public void close() {
+		CompletableFuture<Void> waiting;
+		synchronized (this) {
+			closed = true;
+			events.clear();
+			depth = 0;
+			// A flush due later would find the mailbox closed and never run
+			unflushed = false;
+			flushScheduled = false;
+			waiting = takeIdle();
+		}
+		complete(waiting);
+	}
+
+	// Called under the lock, the future is completed once out of it
+	private CompletableFuture<Void> takeIdle() {
+		CompletableFuture<Void> waiting = idle;
+		idle = null;
+		return waiting;
+	}
+
+	private static void complete(CompletableFuture<Void> waiting) {
+		if (waiting != null) {
+			waiting.complete(null);
+		}
+	}
+
+	private void enqueue(Event event) {
+		boolean schedule;
+		boolean disconnect = false;
+		CompletableFuture<Void> waiting = null;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			// A pending flush is never discarded, it may take one slot over capacity
+			if (event.task == flushTask || events.size() < capacity || makeRoom(event)) {
+				events.add(event);
+			} else if (policy == OverflowPolicy.DISCONNECT) {
+				drop(events.size() + 1);
+				closed = true;
+				events.clear();
+				disconnect = true;
+				waiting = takeIdle();
+			}
+			depth = events.size();
+			schedule = !scheduled && !events.isEmpty();
+			if (schedule) {
+				scheduled = true;
+			}
+		}
+		complete(waiting);
+		if (disconnect) {
+			submit(onDisconnect);
+		} else if (schedule) {
+			submit(this::drain);
+		}
+	}
+
+	/**
+	 * Frees one slot according to the policy. Returns false when the new event
+	 * has to be left out instead.
+	 */
+	private boolean makeRoom(Event event) {
+		switch (policy) {
+		case DROP_OLDEST:
+			// Skipping the pending flush, see enqueue
+			for (Iterator<Event> it = events.iterator(); it.hasNext();) {
+				if (it.next().task != flushTask) {
+					it.remove();
+					drop(1);
+					return true;
+				}
+			}
+			drop(1);
+			return false;
+		case COALESCE_SYSTEM:
+			if (event.isSystem()) {
+				for (Event pending : events) {
+					if (event.mergesWith(pending)) {
+						pending.task = event.task;
+						drop(1);
+						return false;
+					}
+				}
+			}
+			for (Iterator<Event> it = events.iterator(); it.hasNext();) {
+				if (it.next().isSystem()) {
+					it.remove();
+					drop(1);
+					return true;
+				}
+			}
+			drop(1);
+			return false;
+		case DISCONNECT:
+			return false;
+		default:
+			drop(1);
+			return false;
+		}
+	}
+
+	private void drop(int events) {
+		dropped.add(events);
+		droppedByDispatcher.add(events);
+	}
+
+	private void submit(Runnable task) {
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				scheduled = false;
+			}
+			close();
+		}
+	}
+
+	private void drain() {
+		for (int i = 0; i < THROUGHPUT; i++) {
+			Event event;
+			boolean idle = false;
+			boolean lingering = false;
+			CompletableFuture<Void> waiting = null;
+			synchronized (this) {
+				event = events.poll();
+				depth = events.size();
+				if (event != null && event.task != flushTask) {
+					processed++;
+					unflushed = true;
+				}
+				if (event == null && !(unflushed && lingerMillis == 0)) {
+					lingering = unflushed && !flushScheduled;
+					flushScheduled |= lingering;
+					scheduled = false;
+					idle = true;
+					if (!flushScheduled) {
+						waiting = takeIdle();
+					}
+				}
+			}
+			complete(waiting);
+			if (idle) {
+				if (lingering) {
+					scheduleFlush();
+				}
+				return;
+			}
+			if (event == null) {
+				flush();
+			} else if (event.task == flushTask) {
+				flush();
+			} else {
+				run(event.task);
+			}
+		}
+		// Give other mailboxes a turn on this thread before going on
+		submit(this::drain);
+	}
+
+	private void scheduleFlush() {
+		try {
+			timer.schedule(() -> enqueue(new Event(flushTask)), lingerMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			close();
+		}
+	}
+
+	private void flush() {
+		synchronized (this) {
+			flushScheduled = false;
+			unflushed = false;
+		}
+		run(onDrained);
+	}
+
+	private static void run(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			log.error("Error running a mailbox event", e);
+		}
+	}
+}
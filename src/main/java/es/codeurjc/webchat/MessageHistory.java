@@ -0,0 +1,67 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last messages of a chat, in a fixed array that is overwritten in a
+ * circle. Appends are made by one thread at a time, while readers take
+ * snapshots without locking: every message carries its sequence number, so
+ * a slot overwritten during the read is recognised and skipped.
+ */
+final class MessageHistory {
+
+	private final AtomicReferenceArray<ChatMessage> ring;
+	private final int mask;
+	private volatile long tail;
+
+	MessageHistory(int capacity) {
+		int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.ring = new AtomicReferenceArray<>(capacity == 0 ? 0 : size);
+		this.mask = size - 1;
+	}
+
+	int getCapacity() {
+		return ring.length();
+	}
+
+	/**
+	 * Sequence number the next appended message will get.
+	 */
+	long getTail() {
+		return tail;
+	}
+
+	/**
+	 * Callers must not append concurrently.
+	 */
+	void append(ChatMessage message) {
+		long sequence = tail;
+		message.setSequence(sequence);
+		if (ring.length() > 0) {
+			ring.set((int) (sequence & mask), message);
+		}
+		tail = sequence + 1;
+	}
+
+	/**
+	 * The messages still kept with a sequence number lower than the given one,
+	 * oldest first.
+	 */
+	List<ChatMessage> snapshot(long end) {
+		long start = Math.max(0, end - ring.length());
+		if (start >= end) {
+			return Collections.emptyList();
+		}
+		List<ChatMessage> messages = new ArrayList<>((int) (end - start));
+		for (long sequence = start; sequence < end; sequence++) {
+			ChatMessage message = ring.get((int) (sequence & mask));
+			if (message != null && message.getSequence() == sequence) {
+				messages.add(message);
+			}
+		}
+		return messages;
+	}
+}
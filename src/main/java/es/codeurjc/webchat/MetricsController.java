@@ -0,0 +1,58 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Reports the metrics of the chat engine as JSON: the instruments of the
+ * dispatcher, every chat, and the users whose mailboxes are backing up.
+ * Everything is read at request time, nothing is tracked for it.
+ */
+@RestController
+public class MetricsController {
+
+	private final ChatManager chatManager;
+
+	public MetricsController(ChatManager chatManager) {
+		this.chatManager = chatManager;
+	}
+
+	@GetMapping("/metrics")
+	public Map<String, Object> metrics() {
+		Map<String, Object> metrics = new LinkedHashMap<>(chatManager.getDispatcher().getMetrics().snapshot());
+
+		List<Map<String, Object>> chats = new ArrayList<>();
+		for (Chat chat : chatManager.getChats()) {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("name", chat.getName());
+			stats.put("members", chat.getUsers().size());
+			stats.put("remoteMembers", chat.getRemoteUsers().size());
+			stats.put("messages", chat.getMessageCount());
+			chats.add(stats);
+		}
+		metrics.put("chat.stats", chats);
+
+		long totalDepth = 0;
+		int maxDepth = 0;
+		Map<String, Integer> backlogged = new LinkedHashMap<>();
+		for (User user : chatManager.getUsers()) {
+			if (user instanceof QueuedUser) {
+				int depth = ((QueuedUser) user).getQueueDepth();
+				totalDepth += depth;
+				maxDepth = Math.max(maxDepth, depth);
+				if (depth > 0) {
+					backlogged.put(user.getName(), depth);
+				}
+			}
+		}
+		metrics.put("mailbox.depth.total", totalDepth);
+		metrics.put("mailbox.depth.max", maxDepth);
+		metrics.put("mailbox.depth.users", backlogged);
+		return metrics;
+	}
+}
@@ -0,0 +1,19 @@
+package es.codeurjc.webchat;
+
+/**
+ * What a full user mailbox does with one more event.
+ */
+public enum OverflowPolicy {
+	/** Discard the oldest pending event to make room for the new one. */
+	DROP_OLDEST,
+	/** Discard the new event. */
+	DROP_NEWEST,
+	/**
+	 * Merge the new system event with a pending one about the same chat or
+	 * user, or discard the oldest pending system event. Chat messages are only
+	 * discarded when no system event is left to make room.
+	 */
+	COALESCE_SYSTEM,
+	/** Discard every pending event and disconnect the slow user. */
+	DISCONNECT
+}
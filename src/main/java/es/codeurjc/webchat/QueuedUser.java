@@ -1,14 +1,49 @@
 package es.codeurjc.webchat;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class QueuedUser implements User {
+
+    // Coalescing keys of system events: the kind in the top two bits, ids below
+    private static final long CHAT_EVENT = 1L << 62;
+    private static final long USER_EVENT = 2L << 62;
+
     private User user;
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    private Mailbox mailbox;
+
+    // End of the history replayed per chat, only used from the mailbox
+    private Map<Chat, Long> replayed = new HashMap<>();
 
     QueuedUser(User user) {
+        this(user, Dispatcher.getDefault());
+    }
+
+    QueuedUser(User user, Dispatcher dispatcher) {
         this.user = user;
+        this.mailbox = dispatcher.newMailbox(user::disconnect, user::flush);
+    }
+
+    User getUser() {
+        return this.user;
+    }
+
+    boolean wraps(User user) {
+        return this == user || this.user == user;
+    }
+
+    public int getQueueDepth() {
+        return this.mailbox.size();
+    }
+
+    public long getDroppedEvents() {
+        return this.mailbox.getDropped();
+    }
+
+    public void close() {
+        this.mailbox.close();
     }
 
     @Override
@@ -21,28 +56,109 @@ public class QueuedUser implements User {
         return this.user.getColor();
     }
 
+    @Override
+    public void disconnect() {
+        this.user.disconnect();
+    }
+
+    /**
+     * Not queued, the mailbox is drained or given up on by then.
+     */
+    @Override
+    public void shutdown() {
+        this.user.shutdown();
+    }
+
+    CompletableFuture<Void> whenIdle() {
+        return this.mailbox.whenIdle();
+    }
+
+    long getProcessedEvents() {
+        return this.mailbox.getProcessed();
+    }
+
     @Override
     public void newChat(Chat chat) {
-        executor.submit(() -> this.user.newChat(chat));
+        mailbox.executeSystem(() -> this.user.newChat(chat), chatKey(chat));
     }
 
     @Override
     public void chatClosed(Chat chat) {
-        executor.submit(() -> this.user.chatClosed(chat));
+        mailbox.executeSystem(() -> {
+            replayed.remove(chat);
+            this.user.chatClosed(chat);
+        }, chatKey(chat));
+    }
+
+    @Override
+    public void chatListChanged(List<Chat> opened, List<Chat> closed) {
+        // Every digest is a different change, none can stand in for another
+        mailbox.executeSystem(() -> {
+            for (Chat chat : closed) {
+                replayed.remove(chat);
+            }
+            this.user.chatListChanged(opened, closed);
+        });
     }
 
     @Override
     public void newUserInChat(Chat chat, User user) {
-        executor.submit(() -> this.user.newUserInChat(chat, user));
+        mailbox.executeSystem(() -> this.user.newUserInChat(chat, user), userKey(chat, user));
     }
 
     @Override
     public void userExitedFromChat(Chat chat, User user) {
-        executor.submit(() -> this.user.userExitedFromChat(chat, user));
+        mailbox.executeSystem(() -> this.user.userExitedFromChat(chat, user), userKey(chat, user));
+    }
+
+    private static long chatKey(Chat chat) {
+        return CHAT_EVENT | chat.getIdentity().getId();
+    }
+
+    private static long userKey(Chat chat, User user) {
+        return USER_EVENT | (long) chat.getIdentity().getId() << 31 | chat.identify(user).getId();
     }
 
     @Override
     public void newMessage(Chat chat, User user, String message) {
-        executor.submit(() -> this.user.newMessage(chat, user, message));
+        mailbox.execute(() -> this.user.newMessage(chat, user, message));
+    }
+
+    @Override
+    public void newMessage(ChatMessage message) {
+        mailbox.execute(() -> {
+            if (!isReplayed(message)) {
+                this.user.newMessage(message);
+            }
+        });
+    }
+
+    @Override
+    public void messageHistory(Chat chat, List<ChatMessage> messages) {
+        mailbox.execute(() -> this.user.messageHistory(chat, messages));
+    }
+
+    /**
+     * Queues the replay of the chat history up to the given sequence number.
+     * Called before the user becomes a member, so it comes before any message
+     * sent to it live. Messages already in the replay that are also sent live
+     * are skipped.
+     */
+    void replayHistory(Chat chat, long end) {
+        mailbox.execute(() -> {
+            replayed.put(chat, end);
+            List<ChatMessage> messages = chat.getHistory(end);
+            if (!messages.isEmpty()) {
+                this.user.messageHistory(chat, messages);
+            }
+        });
+    }
+
+    private boolean isReplayed(ChatMessage message) {
+        if (replayed.isEmpty() || message.getSequence() < 0) {
+            return false;
+        }
+        Long end = replayed.get(message.getChat());
+        return end != null && message.getSequence() < end;
     }
 }
@@ -0,0 +1,56 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many messages may be sent per second, on average, and how many may
+ * come at once after a quiet period. A rate of 0 disables the limit.
+ */
+public final class RateLimit {
+
+	public static final RateLimit NONE = new RateLimit(0, 0);
+
+	private final double perSecond;
+	private final int burst;
+	// Time it takes to earn one message
+	private final long intervalNanos;
+
+	/**
+	 * @param perSecond messages refilled per second, 0 for no limit
+	 * @param burst messages that may be sent back to back, at least 1 if
+	 *        there is a limit
+	 */
+	public RateLimit(double perSecond, int burst) {
+		if (perSecond < 0 || burst < 0 || (perSecond > 0 && burst < 1)) {
+			throw new IllegalArgumentException("Invalid rate limit: " + perSecond + " per second, burst " + burst);
+		}
+		this.perSecond = perSecond;
+		this.burst = burst;
+		this.intervalNanos = perSecond > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond)) : 0;
+	}
+
+	/**
+	 * @param prefix of the system properties, read as prefix.per.second and
+	 *        prefix.burst
+	 */
+	static RateLimit fromSystemProperties(String prefix, double perSecond, int burst) {
+		return new RateLimit(Double.parseDouble(System.getProperty(prefix + ".per.second", String.valueOf(perSecond))),
+				Integer.getInteger(prefix + ".burst", burst));
+	}
+
+	public double getPerSecond() {
+		return perSecond;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	long getIntervalNanos() {
+		return intervalNanos;
+	}
+
+	public boolean isEnabled() {
+		return perSecond > 0;
+	}
+}
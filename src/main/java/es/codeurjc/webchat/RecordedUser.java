@@ -0,0 +1,49 @@
+package es.codeurjc.webchat;
+
+/**
+ * A user only known by its identity: the author of a message read back from
+ * the message log, a member connected to another node, or a member as seen
+ * in the events about it, which may outlive its registration.
+ */
+final class RecordedUser implements User {
+
+	private final Identity identity;
+
+	RecordedUser(Identity identity) {
+		this.identity = identity;
+	}
+
+	Identity getIdentity() {
+		return identity;
+	}
+
+	@Override
+	public String getName() {
+		return identity.getName();
+	}
+
+	@Override
+	public String getColor() {
+		return identity.getColor();
+	}
+
+	@Override
+	public void newChat(Chat chat) {
+	}
+
+	@Override
+	public void chatClosed(Chat chat) {
+	}
+
+	@Override
+	public void newUserInChat(Chat chat, User user) {
+	}
+
+	@Override
+	public void userExitedFromChat(Chat chat, User user) {
+	}
+
+	@Override
+	public void newMessage(Chat chat, User user, String message) {
+	}
+}
@@ -0,0 +1,41 @@
+package es.codeurjc.webchat;
+
+/**
+ * How long a frame may take to be written to a client, and how many bytes
+ * may wait behind it, before the client is considered gone and its session
+ * is closed.
+ */
+public final class SendPolicy {
+
+	public static final SendPolicy UNLIMITED = new SendPolicy(0, 0);
+
+	private final long sendTimeLimitMillis;
+	private final long bufferSizeLimit;
+
+	/**
+	 * @param sendTimeLimitMillis 0 for no limit
+	 * @param bufferSizeLimit bytes queued behind the frame being written, 0
+	 *        for no limit
+	 */
+	public SendPolicy(long sendTimeLimitMillis, long bufferSizeLimit) {
+		if (sendTimeLimitMillis < 0 || bufferSizeLimit < 0) {
+			throw new IllegalArgumentException("Invalid send policy: time limit " + sendTimeLimitMillis
+					+ "ms, buffer limit " + bufferSizeLimit + " bytes");
+		}
+		this.sendTimeLimitMillis = sendTimeLimitMillis;
+		this.bufferSizeLimit = bufferSizeLimit;
+	}
+
+	public static SendPolicy fromSystemProperties() {
+		return new SendPolicy(Long.getLong("webchat.send.time.limit.ms", 10000),
+				Long.getLong("webchat.send.buffer.limit.bytes", 512 * 1024));
+	}
+
+	public long getSendTimeLimitMillis() {
+		return sendTimeLimitMillis;
+	}
+
+	public long getBufferSizeLimit() {
+		return bufferSizeLimit;
+	}
+}
@@ -0,0 +1,37 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as a single timestamp: the time at which the bucket
+ * will be full again. Taking a token moves it one interval forward, and is
+ * refused if that would put it more than a burst of intervals ahead of now.
+ * Lock free, and the limit is passed on every call so that it can change.
+ */
+final class TokenBucket {
+
+	private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+	boolean tryAcquire(RateLimit limit) {
+		return tryAcquire(limit, System.nanoTime());
+	}
+
+	boolean tryAcquire(RateLimit limit, long now) {
+		if (!limit.isEnabled()) {
+			return true;
+		}
+		long interval = limit.getIntervalNanos();
+		long capacity = interval * limit.getBurst();
+		while (true) {
+			long current = fullAt.get();
+			// A bucket that filled up in the past is just full
+			long next = (current == Long.MIN_VALUE || current - now < 0 ? now : current) + interval;
+			if (next - now > capacity) {
+				return false;
+			}
+			if (fullAt.compareAndSet(current, next)) {
+				return true;
+			}
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package es.codeurjc.webchat;
 
+import java.util.List;
+
 public interface User {
 
 	public String getName();
@@ -16,4 +18,54 @@ public interface User {
 
 	public void newMessage(Chat chat, User user, String message);
 
+	/**
+	 * Receives a message shared with every other member of the chat.
+	 */
+	public default void newMessage(ChatMessage message) {
+		newMessage(message.getChat(), message.getUser(), message.getMessage());
+	}
+
+	/**
+	 * Receives, on joining a chat, the messages sent to it before, oldest
+	 * first.
+	 */
+	public default void messageHistory(Chat chat, List<ChatMessage> messages) {
+		for (ChatMessage message : messages) {
+			newMessage(message);
+		}
+	}
+
+	/**
+	 * Receives, if subscribed to the lobby with a digest, the chats closed and
+	 * opened since the last change of the chat list.
+	 */
+	public default void chatListChanged(List<Chat> opened, List<Chat> closed) {
+		for (Chat chat : closed) {
+			chatClosed(chat);
+		}
+		for (Chat chat : opened) {
+			newChat(chat);
+		}
+	}
+
+	/**
+	 * Called once the events pending for the user have been delivered, so
+	 * anything it batched can be sent.
+	 */
+	public default void flush() {
+	}
+
+	/**
+	 * Called when the user can't keep up with its events and has to be dropped.
+	 */
+	public default void disconnect() {
+	}
+
+	/**
+	 * Called when the server shuts down, once the events pending for the user
+	 * have been delivered or the time to deliver them is up.
+	 */
+	public default void shutdown() {
+	}
+
 }
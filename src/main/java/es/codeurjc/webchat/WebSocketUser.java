@@ -1,25 +1,99 @@
 package es.codeurjc.webchat;
 
 import java.io.IOException;
-
-import org.springframework.web.socket.TextMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import es.codeurjc.webchat.metrics.Metrics;
 
 public class WebSocketUser implements User {
 
-	private static ObjectMapper mapper = new ObjectMapper();
+	private static final Logger log = LoggerFactory.getLogger(WebSocketUser.class);
 
 	private WebSocketSession session;
 	private String name;
 	private String color;
+	private FrameEncoder encoder;
+	private int maxBatchSize;
+	private List<WebSocketMessage<?>> batch = new ArrayList<>();
+
+	// Receive times of the chat messages in the batch
+	private long[] batchCreated;
+	private int batchMessages;
+
+	private AsyncSender sender;
+	private LongAdder terminations;
+	private AtomicBoolean terminated = new AtomicBoolean();
+	private volatile Runnable onTerminated = () -> {
+	};
 
 	public WebSocketUser(WebSocketSession session, String name, String color) {
+		this(session, name, color, BatchPolicy.NONE);
+	}
+
+	public WebSocketUser(WebSocketSession session, String name, String color, BatchPolicy batchPolicy) {
+		this(session, name, color, batchPolicy, new Metrics());
+	}
+
+	/**
+	 * @param metrics where the time from receiving a message to sending it to
+	 *        this user, and the sends that fail, are recorded
+	 */
+	public WebSocketUser(WebSocketSession session, String name, String color, BatchPolicy batchPolicy,
+			Metrics metrics) {
+		this(session, name, color, batchPolicy, metrics, SendPolicy.UNLIMITED);
+	}
+
+	/**
+	 * @param sendPolicy when a client that can't keep up is disconnected,
+	 *        with writes timed on the timer of the default dispatcher
+	 */
+	public WebSocketUser(WebSocketSession session, String name, String color, BatchPolicy batchPolicy,
+			Metrics metrics, SendPolicy sendPolicy) {
+		this(session, name, color, batchPolicy, metrics, sendPolicy,
+				sendPolicy.getSendTimeLimitMillis() > 0 ? Dispatcher.getDefault().getTimer() : null);
+	}
+
+	/**
+	 * @param timer where writes are timed against the send time limit
+	 */
+	public WebSocketUser(WebSocketSession session, String name, String color, BatchPolicy batchPolicy,
+			Metrics metrics, SendPolicy sendPolicy, ScheduledExecutorService timer) {
 		this.session = session;
 		this.name = name;
 		this.color = color;
+		this.encoder = FrameEncoder.forProtocol(session.getAcceptedProtocol());
+		this.maxBatchSize = batchPolicy.getMaxBatchSize();
+		this.batchCreated = new long[maxBatchSize];
+		this.sender = new AsyncSender(session, sendPolicy, metrics, timer,
+				reason -> terminate(CloseStatus.SESSION_NOT_RELIABLE.withReason(reason)));
+		this.terminations = metrics.counter("websocket.sessions.terminated");
+	}
+
+	/**
+	 * Called once if the session is closed because the client could not keep
+	 * up or a write failed, so the user can be removed from its chat.
+	 */
+	public void setOnTerminated(Runnable onTerminated) {
+		this.onTerminated = onTerminated;
+	}
+
+	/**
+	 * Whether frames are written with the non-blocking I/O of the container.
+	 */
+	public boolean isAsync() {
+		return sender.isAsync();
 	}
 
 	@Override
@@ -34,57 +108,133 @@ public class WebSocketUser implements User {
 
 	@Override
 	public void newChat(Chat chat) {
-
-		ObjectNode msg = mapper.createObjectNode();
-		msg.put("type", "system");
-		msg.put("message", "New chat '" + chat.getName() + "'");
-
-		send(msg);
+		send(encoder.newChat(chat));
 	}
 
 	@Override
 	public void chatClosed(Chat chat) {
-		ObjectNode msg = mapper.createObjectNode();
-		msg.put("type", "system");
-		msg.put("message", "Chat '" + chat.getName() + "' closed");
+		send(encoder.chatClosed(chat));
+	}
 
-		send(msg);
+	@Override
+	public void chatListChanged(List<Chat> opened, List<Chat> closed) {
+		List<WebSocketMessage<?>> frames = new ArrayList<>(opened.size() + closed.size());
+		for (Chat chat : closed) {
+			frames.add(encoder.chatClosed(chat));
+		}
+		for (Chat chat : opened) {
+			frames.add(encoder.newChat(chat));
+		}
+		if (frames.size() == 1) {
+			send(frames.get(0));
+			return;
+		}
+		flush();
+		sender.send(encoder.batch(frames), 0);
 	}
 
 	@Override
 	public void newUserInChat(Chat chat, User user) {
-		ObjectNode msg = mapper.createObjectNode();
-		msg.put("type", "system");
-		msg.put("message", "New user '" + user.getName() + "' in chat '" + chat.getName() + "'");
-
-		send(msg);
+		send(encoder.newUserInChat(chat, user));
 	}
 
 	@Override
 	public void userExitedFromChat(Chat chat, User user) {
-		ObjectNode msg = mapper.createObjectNode();
-		msg.put("type", "system");
-		msg.put("message", "User '" + user.getName() + "' exited from chat '" + chat.getName()
-				+ "'");
-
-		send(msg);
+		send(encoder.userExitedFromChat(chat, user));
 	}
 
 	@Override
 	public void newMessage(Chat chat, User user, String message) {
-		ObjectNode msg = mapper.createObjectNode();
-		msg.put("name", user.getName());
-		msg.put("color", user.getColor());
-		msg.put("message", message);
+		newMessage(new ChatMessage(chat, user, message));
+	}
 
-		send(msg);
+	@Override
+	public void newMessage(ChatMessage message) {
+		send(encoder.newMessage(message), message.getCreatedNanos());
+	}
+
+	@Override
+	public void messageHistory(Chat chat, List<ChatMessage> messages) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		List<WebSocketMessage<?>> frames = new ArrayList<>(messages.size());
+		for (ChatMessage message : messages) {
+			frames.add(encoder.newMessage(message));
+		}
+		// The replay is already a batch, it can't go inside another one
+		flush();
+		sender.send(frames.size() == 1 ? frames.get(0) : encoder.batch(frames), 0);
+	}
+
+	@Override
+	public void disconnect() {
+		terminate(CloseStatus.SESSION_NOT_RELIABLE);
+	}
+
+	/**
+	 * Closes the session as going away once the frames already sent are
+	 * written.
+	 */
+	@Override
+	public void shutdown() {
+		if (!terminated.compareAndSet(false, true)) {
+			return;
+		}
+		sender.whenIdle(() -> CompletableFuture.runAsync(() -> {
+			try {
+				session.close(CloseStatus.GOING_AWAY);
+			} catch (IOException e) {
+				log.debug("Error closing the session of {}", name, e);
+			}
+		}));
 	}
 
-	private void send(ObjectNode msg) {
-		try {
-			session.sendMessage(new TextMessage(msg.toString()));
-		} catch (IOException e) {
-			e.printStackTrace();
+	private void terminate(CloseStatus status) {
+		if (!terminated.compareAndSet(false, true)) {
+			return;
+		}
+		terminations.increment();
+		onTerminated.run();
+		// Closing writes a close frame, which may block on a stuck connection
+		CompletableFuture.runAsync(() -> {
+			try {
+				session.close(status);
+			} catch (IOException e) {
+				log.debug("Error closing the session of {}", name, e);
+			}
+		});
+	}
+
+	@Override
+	public void flush() {
+		if (batch.isEmpty()) {
+			return;
+		}
+		if (batch.size() == 1) {
+			sender.send(batch.get(0), batchMessages == 1 ? batchCreated[0] : 0);
+		} else {
+			sender.send(encoder.batch(batch), Arrays.copyOf(batchCreated, batchMessages));
+		}
+		batch.clear();
+		batchMessages = 0;
+	}
+
+	private void send(WebSocketMessage<?> msg) {
+		send(msg, 0);
+	}
+
+	private void send(WebSocketMessage<?> msg, long createdNanos) {
+		if (maxBatchSize <= 1) {
+			sender.send(msg, createdNanos);
+			return;
+		}
+		if (createdNanos != 0) {
+			batchCreated[batchMessages++] = createdNanos;
+		}
+		batch.add(msg);
+		if (batch.size() >= maxBatchSize) {
+			flush();
 		}
 	}
 
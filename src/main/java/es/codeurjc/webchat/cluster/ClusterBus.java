@@ -0,0 +1,46 @@
+package es.codeurjc.webchat.cluster;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Connects the chats of this node with the same chats on other nodes. Each
+ * node only delivers events to its own users, and forwards what its users do
+ * through the bus. Chat slots are shared by the whole cluster.
+ */
+public interface ClusterBus extends Closeable {
+
+	public String getNodeId();
+
+	/**
+	 * Where events from other nodes are delivered. Set before anything is
+	 * published.
+	 */
+	public void setListener(ClusterListener listener);
+
+	/**
+	 * Sends the event to every other node.
+	 */
+	public void publish(ClusterEvent event);
+
+	/**
+	 * Takes a cluster-wide slot for the chat, unless it already has one. Once
+	 * the slot is taken, every other node receives a
+	 * {@link ClusterEvent.Type#NEW_CHAT} event.
+	 *
+	 * @return fails with a {@link TimeoutException} if no slot became free in
+	 *         time
+	 */
+	public CompletableFuture<Void> acquireChat(String chat, long timeout, TimeUnit unit);
+
+	/**
+	 * Gives back the slot of a closed chat, and closes it on every other node.
+	 * Releasing a chat that has no slot does nothing.
+	 */
+	public void releaseChat(String chat);
+
+	@Override
+	public void close();
+}
@@ -0,0 +1,76 @@
+package es.codeurjc.webchat.cluster;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames exchanged between {@link TcpClusterBus} and {@link TcpClusterHub}.
+ * Each frame is an opcode byte followed by its fields, strings as an int
+ * length and UTF-8, -1 for null.
+ */
+final class ClusterCodec {
+
+	// Node to hub
+	static final byte HELLO = 0x01;
+	static final byte PUBLISH = 0x02;
+	static final byte ACQUIRE = 0x03;
+	static final byte RELEASE = 0x04;
+
+	// Hub to node
+	static final byte EVENT = 0x10;
+	static final byte GRANTED = 0x11;
+	static final byte TIMED_OUT = 0x12;
+
+	private ClusterCodec() {
+	}
+
+	static void writeEvent(DataOutputStream out, ClusterEvent event) throws IOException {
+		out.writeByte(event.getType().ordinal());
+		writeString(out, event.getChat());
+		writeString(out, event.getUser());
+		writeString(out, event.getColor());
+		writeString(out, event.getMessage());
+	}
+
+	static ClusterEvent readEvent(DataInputStream in) throws IOException {
+		int type = in.readUnsignedByte();
+		String chat = readString(in);
+		String user = readString(in);
+		String color = readString(in);
+		String message = readString(in);
+		switch (ClusterEvent.Type.values()[type]) {
+		case NEW_CHAT:
+			return ClusterEvent.newChat(chat);
+		case CHAT_CLOSED:
+			return ClusterEvent.chatClosed(chat);
+		case USER_JOINED:
+			return ClusterEvent.userJoined(chat, user, color);
+		case USER_LEFT:
+			return ClusterEvent.userLeft(chat, user);
+		default:
+			return ClusterEvent.message(chat, user, color, message);
+		}
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
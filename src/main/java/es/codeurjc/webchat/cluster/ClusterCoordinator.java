@@ -0,0 +1,184 @@
+package es.codeurjc.webchat.cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import es.codeurjc.webchat.ChatCapacityScheduler;
+import es.codeurjc.webchat.cluster.ClusterEvent.Type;
+
+/**
+ * The hub every node is connected to. It relays events between nodes, owns
+ * the chat slots of the cluster and keeps track of which chats exist and
+ * which users each node has in them, so that a node that connects late or
+ * goes away is reconciled with the others.
+ * <p>
+ * The slot of a chat is held by the node that asked for it. When that node
+ * goes away the slot passes to a node that still has users in the chat, or
+ * is released, closing the chat everywhere, if none does.
+ */
+class ClusterCoordinator {
+
+	interface Node {
+
+		String getId();
+
+		/**
+		 * Must not block, events to the same node are delivered in order.
+		 */
+		void send(ClusterEvent event);
+	}
+
+	private final ChatCapacityScheduler capacity;
+	private final List<Node> nodes = new ArrayList<>();
+	private final Set<String> chats = new LinkedHashSet<>();
+	private final Map<String, CompletableFuture<Void>> pendingChats = new HashMap<>();
+	// Chat -> id of the node holding its slot
+	private final Map<String, String> holders = new HashMap<>();
+
+	// Node id -> chat -> user -> color
+	private final Map<String, Map<String, Map<String, String>>> members = new HashMap<>();
+
+	ClusterCoordinator(int maxChats, ScheduledExecutorService timer) {
+		this.capacity = new ChatCapacityScheduler(maxChats, timer);
+	}
+
+	ChatCapacityScheduler getCapacityScheduler() {
+		return capacity;
+	}
+
+	synchronized void connect(Node node) {
+		for (String chat : chats) {
+			node.send(ClusterEvent.newChat(chat));
+		}
+		for (Map<String, Map<String, String>> nodeMembers : members.values()) {
+			nodeMembers.forEach((chat, users) -> users.forEach(
+					(user, color) -> node.send(ClusterEvent.userJoined(chat, user, color))));
+		}
+		nodes.add(node);
+		members.put(node.getId(), new LinkedHashMap<>());
+	}
+
+	synchronized void disconnect(Node node) {
+		if (!nodes.remove(node)) {
+			return;
+		}
+		Map<String, Map<String, String>> nodeMembers = members.remove(node.getId());
+		nodeMembers.forEach((chat, users) -> users.keySet().forEach(
+				user -> broadcast(null, ClusterEvent.userLeft(chat, user))));
+
+		List<String> held = new ArrayList<>();
+		holders.forEach((chat, holder) -> {
+			if (holder.equals(node.getId())) {
+				held.add(chat);
+			}
+		});
+		for (String chat : held) {
+			passOn(chat);
+		}
+	}
+
+	/**
+	 * Gives the slot of a chat whose holder is gone to a connected node with
+	 * users in it, or releases it.
+	 */
+	private void passOn(String chat) {
+		for (Node other : nodes) {
+			Map<String, String> users = members.get(other.getId()).get(chat);
+			if (users != null && !users.isEmpty()) {
+				holders.put(chat, other.getId());
+				return;
+			}
+		}
+		close(null, chat);
+	}
+
+	synchronized void publish(Node from, ClusterEvent event) {
+		if (!chats.contains(event.getChat())) {
+			// The chat was closed while the event was on its way
+			return;
+		}
+		if (event.getType() == Type.USER_JOINED) {
+			members.get(from.getId()).computeIfAbsent(event.getChat(), chat -> new LinkedHashMap<>())
+					.put(event.getUser(), event.getColor());
+		} else if (event.getType() == Type.USER_LEFT) {
+			Map<String, String> users = members.get(from.getId()).get(event.getChat());
+			if (users != null) {
+				users.remove(event.getUser());
+			}
+		}
+		broadcast(from, event);
+	}
+
+	/**
+	 * Requests for the same chat from several nodes share one slot, held by
+	 * the first one.
+	 */
+	synchronized CompletableFuture<Void> acquire(Node from, String chat, long timeout, TimeUnit unit) {
+		if (chats.contains(chat)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> pending = pendingChats.get(chat);
+		if (pending != null) {
+			return pending;
+		}
+		CompletableFuture<Void> creation = new CompletableFuture<>();
+		pendingChats.put(chat, creation);
+		capacity.acquire(timeout, unit).whenComplete((granted, error) -> {
+			synchronized (this) {
+				pendingChats.remove(chat);
+				if (error == null) {
+					chats.add(chat);
+					holders.put(chat, from.getId());
+					broadcast(null, ClusterEvent.newChat(chat));
+					// Asked for by a node that is gone meanwhile
+					if (!nodes.contains(from)) {
+						passOn(chat);
+					}
+				}
+			}
+			// Completed after the broadcast, so NEW_CHAT is ahead of the reply
+			if (error != null) {
+				creation.completeExceptionally(error);
+			} else {
+				creation.complete(null);
+			}
+		});
+		return creation;
+	}
+
+	synchronized void release(Node from, String chat) {
+		close(from, chat);
+	}
+
+	private void close(Node from, String chat) {
+		if (!chats.remove(chat)) {
+			return;
+		}
+		holders.remove(chat);
+		for (Map<String, Map<String, String>> nodeMembers : members.values()) {
+			nodeMembers.remove(chat);
+		}
+		broadcast(from, ClusterEvent.chatClosed(chat));
+		capacity.release();
+	}
+
+	synchronized Set<String> getChats() {
+		return new LinkedHashSet<>(chats);
+	}
+
+	private void broadcast(Node from, ClusterEvent event) {
+		for (Node node : nodes) {
+			if (node != from) {
+				node.send(event);
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package es.codeurjc.webchat.cluster;
+
+/**
+ * Something that happened in a chat on one node and has to be delivered to
+ * the local users of every other node.
+ */
+public final class ClusterEvent {
+
+	public enum Type {
+		NEW_CHAT, CHAT_CLOSED, USER_JOINED, USER_LEFT, MESSAGE
+	}
+
+	private final Type type;
+	private final String chat;
+	private final String user;
+	private final String color;
+	private final String message;
+
+	private ClusterEvent(Type type, String chat, String user, String color, String message) {
+		this.type = type;
+		this.chat = chat;
+		this.user = user;
+		this.color = color;
+		this.message = message;
+	}
+
+	public static ClusterEvent newChat(String chat) {
+		return new ClusterEvent(Type.NEW_CHAT, chat, null, null, null);
+	}
+
+	public static ClusterEvent chatClosed(String chat) {
+		return new ClusterEvent(Type.CHAT_CLOSED, chat, null, null, null);
+	}
+
+	public static ClusterEvent userJoined(String chat, String user, String color) {
+		return new ClusterEvent(Type.USER_JOINED, chat, user, color, null);
+	}
+
+	public static ClusterEvent userLeft(String chat, String user) {
+		return new ClusterEvent(Type.USER_LEFT, chat, user, null, null);
+	}
+
+	public static ClusterEvent message(String chat, String user, String color, String message) {
+		return new ClusterEvent(Type.MESSAGE, chat, user, color, message);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getChat() {
+		return chat;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getColor() {
+		return color;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return "ClusterEvent[" + type + ", " + chat + (user != null ? ", " + user : "") + "]";
+	}
+}
@@ -0,0 +1,9 @@
+package es.codeurjc.webchat.cluster;
+
+/**
+ * Receives the events of the other nodes, in the order each node sent them.
+ */
+public interface ClusterListener {
+
+	public void onEvent(ClusterEvent event);
+}
@@ -0,0 +1,106 @@
+package es.codeurjc.webchat.cluster;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cluster whose nodes all live in this JVM, for tests and for running
+ * several chat managers side by side. Each node receives its events on its
+ * own thread, in order.
+ */
+public class LoopbackCluster {
+
+	private final ScheduledExecutorService timer;
+	private final ClusterCoordinator coordinator;
+
+	public LoopbackCluster(int maxChats) {
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "webchat-loopback-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.coordinator = new ClusterCoordinator(maxChats, timer);
+	}
+
+	public ClusterBus newNode(String nodeId) {
+		return new LoopbackBus(nodeId);
+	}
+
+	public Set<String> getChats() {
+		return coordinator.getChats();
+	}
+
+	public int getAvailableChats() {
+		return coordinator.getCapacityScheduler().getAvailable();
+	}
+
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	private class LoopbackBus implements ClusterBus, ClusterCoordinator.Node {
+
+		private final String nodeId;
+		private final ExecutorService inbox;
+		private volatile ClusterListener listener;
+		private boolean connected;
+
+		LoopbackBus(String nodeId) {
+			this.nodeId = nodeId;
+			this.inbox = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "webchat-loopback-" + nodeId);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		@Override
+		public String getId() {
+			return nodeId;
+		}
+
+		@Override
+		public String getNodeId() {
+			return nodeId;
+		}
+
+		@Override
+		public synchronized void setListener(ClusterListener listener) {
+			this.listener = listener;
+			if (!connected) {
+				connected = true;
+				coordinator.connect(this);
+			}
+		}
+
+		@Override
+		public void send(ClusterEvent event) {
+			inbox.execute(() -> listener.onEvent(event));
+		}
+
+		@Override
+		public void publish(ClusterEvent event) {
+			coordinator.publish(this, event);
+		}
+
+		@Override
+		public CompletableFuture<Void> acquireChat(String chat, long timeout, TimeUnit unit) {
+			return coordinator.acquire(this, chat, timeout, unit);
+		}
+
+		@Override
+		public void releaseChat(String chat) {
+			coordinator.release(this, chat);
+		}
+
+		@Override
+		public void close() {
+			coordinator.disconnect(this);
+			inbox.shutdown();
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package es.codeurjc.webchat.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A node connected to a {@link TcpClusterHub}. Events from the hub are
+ * delivered to the listener by a single reader thread, in order, and what
+ * the node sends is queued for a single writer thread, so a slow hub never
+ * holds up the chats of the node. Once the connection is lost what is sent
+ * is dropped and counted, see {@link #getDropped()}.
+ */
+public class TcpClusterBus implements ClusterBus {
+
+	private static final Logger log = LoggerFactory.getLogger(TcpClusterBus.class);
+
+	private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+	private static final Write CLOSE = () -> {
+	};
+
+	private final String nodeId;
+	private final Socket socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final ConcurrentHashMap<Long, CompletableFuture<Void>> requests = new ConcurrentHashMap<>();
+	private final AtomicLong requestIds = new AtomicLong();
+	private final LinkedBlockingQueue<Write> outbox = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private final LongAdder dropped = new LongAdder();
+	private volatile ClusterListener listener;
+	private volatile boolean closed;
+	private volatile boolean lost;
+
+	public TcpClusterBus(String host, int port, String nodeId) throws IOException {
+		this.nodeId = nodeId;
+		this.socket = new Socket(host, port);
+		this.socket.setTcpNoDelay(true);
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.writer = new Thread(this::write, "webchat-cluster-writer-" + nodeId);
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	@Override
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	@Override
+	public synchronized void setListener(ClusterListener listener) {
+		boolean first = this.listener == null;
+		this.listener = listener;
+		if (first) {
+			send(() -> {
+				out.writeByte(ClusterCodec.HELLO);
+				ClusterCodec.writeString(out, nodeId);
+			});
+			Thread reader = new Thread(this::read, "webchat-cluster-reader-" + nodeId);
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	@Override
+	public void publish(ClusterEvent event) {
+		send(() -> {
+			out.writeByte(ClusterCodec.PUBLISH);
+			ClusterCodec.writeEvent(out, event);
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> acquireChat(String chat, long timeout, TimeUnit unit) {
+		long requestId = requestIds.incrementAndGet();
+		CompletableFuture<Void> granted = new CompletableFuture<>();
+		requests.put(requestId, granted);
+		send(() -> {
+			out.writeByte(ClusterCodec.ACQUIRE);
+			out.writeLong(requestId);
+			ClusterCodec.writeString(out, chat);
+			out.writeLong(unit.toMillis(timeout));
+		});
+		// Lost before or while asking, nobody is going to answer
+		if ((lost || closed) && requests.remove(requestId) != null) {
+			granted.completeExceptionally(new IOException("Lost the connection to the cluster hub"));
+		}
+		return granted;
+	}
+
+	@Override
+	public void releaseChat(String chat) {
+		send(() -> {
+			out.writeByte(ClusterCodec.RELEASE);
+			ClusterCodec.writeString(out, chat);
+		});
+	}
+
+	private interface Write {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Events, chat requests and releases that never reached the hub.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	private void send(Write write) {
+		if (lost || closed) {
+			dropped.increment();
+			return;
+		}
+		outbox.add(write);
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				Write next = outbox.take();
+				do {
+					if (next == CLOSE) {
+						out.flush();
+						return;
+					}
+					next.run();
+					next = outbox.poll();
+				} while (next != null);
+				// One flush for everything that was queued
+				out.flush();
+			}
+		} catch (InterruptedException e) {
+			// Closed without waiting
+		} catch (IOException e) {
+			if (!closed) {
+				log.warn("Lost the connection to the cluster hub", e);
+			}
+			// The reader fails the requests waiting for an answer
+			disconnect();
+		} finally {
+			lost = true;
+			dropped.add(outbox.size());
+			outbox.clear();
+		}
+	}
+
+	private void read() {
+		try {
+			while (true) {
+				byte opcode = in.readByte();
+				if (opcode == ClusterCodec.EVENT) {
+					listener.onEvent(ClusterCodec.readEvent(in));
+				} else if (opcode == ClusterCodec.GRANTED || opcode == ClusterCodec.TIMED_OUT) {
+					CompletableFuture<Void> request = requests.remove(in.readLong());
+					if (request == null) {
+						continue;
+					}
+					if (opcode == ClusterCodec.GRANTED) {
+						request.complete(null);
+					} else {
+						request.completeExceptionally(
+								new TimeoutException("There is no enough capacity to create a new chat"));
+					}
+				} else {
+					throw new IOException("Unknown opcode " + opcode);
+				}
+			}
+		} catch (EOFException | SocketException e) {
+			if (!closed) {
+				log.warn("Lost the connection to the cluster hub: {}", e.toString());
+			}
+		} catch (IOException e) {
+			log.warn("Lost the connection to the cluster hub", e);
+		} finally {
+			lost = true;
+			disconnect();
+			IOException error = new IOException("Lost the connection to the cluster hub");
+			for (Long requestId : requests.keySet()) {
+				CompletableFuture<Void> request = requests.remove(requestId);
+				if (request != null) {
+					request.completeExceptionally(error);
+				}
+			}
+		}
+	}
+
+	private void disconnect() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.debug("Error closing the connection to the cluster hub", e);
+		}
+	}
+
+	/**
+	 * Sends what is queued, for a few seconds at most, and disconnects.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		outbox.add(CLOSE);
+		try {
+			writer.join(CLOSE_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		disconnect();
+	}
+}
@@ -0,0 +1,215 @@
+package es.codeurjc.webchat.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinator of a cluster whose nodes connect to it over TCP, each with a
+ * {@link TcpClusterBus}. It may run inside one of the nodes or on its own.
+ * Every connection has a reader thread and a writer thread, so a slow node
+ * only delays its own events.
+ */
+public class TcpClusterHub implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(TcpClusterHub.class);
+
+	private final ServerSocket serverSocket;
+	private final ScheduledExecutorService timer;
+	private final ExecutorService threads;
+	private final ClusterCoordinator coordinator;
+	private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	/**
+	 * Listens on the loopback interface.
+	 *
+	 * @param port 0 for any free port, see {@link #getPort()}
+	 */
+	public TcpClusterHub(int port, int maxChats) throws IOException {
+		this(new ServerSocket(port, 50, InetAddress.getLoopbackAddress()), maxChats);
+	}
+
+	public TcpClusterHub(ServerSocket serverSocket, int maxChats) {
+		this.serverSocket = serverSocket;
+		this.timer = Executors.newSingleThreadScheduledExecutor(daemon("webchat-hub-timer"));
+		this.threads = Executors.newCachedThreadPool(daemon("webchat-hub"));
+		this.coordinator = new ClusterCoordinator(maxChats, timer);
+		this.threads.execute(this::accept);
+	}
+
+	private static ThreadFactory daemon(String name) {
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public Set<String> getChats() {
+		return coordinator.getChats();
+	}
+
+	public int getAvailableChats() {
+		return coordinator.getCapacityScheduler().getAvailable();
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				sockets.add(socket);
+				threads.execute(() -> serve(socket));
+			} catch (IOException e) {
+				if (!closed) {
+					log.warn("Error accepting a cluster node", e);
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		Connection connection = null;
+		try (socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+			if (in.readByte() != ClusterCodec.HELLO) {
+				return;
+			}
+			connection = new Connection(ClusterCodec.readString(in),
+					new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+			threads.execute(connection::write);
+			coordinator.connect(connection);
+
+			while (true) {
+				byte opcode = in.readByte();
+				if (opcode == ClusterCodec.PUBLISH) {
+					coordinator.publish(connection, ClusterCodec.readEvent(in));
+				} else if (opcode == ClusterCodec.ACQUIRE) {
+					acquire(connection, in.readLong(), ClusterCodec.readString(in), in.readLong());
+				} else if (opcode == ClusterCodec.RELEASE) {
+					coordinator.release(connection, ClusterCodec.readString(in));
+				} else {
+					throw new IOException("Unknown opcode " + opcode);
+				}
+			}
+		} catch (EOFException | SocketException e) {
+			// The node went away
+		} catch (IOException e) {
+			log.warn("Lost the cluster node at {}", socket.getRemoteSocketAddress(), e);
+		} finally {
+			sockets.remove(socket);
+			if (connection != null) {
+				coordinator.disconnect(connection);
+				connection.close();
+			}
+		}
+	}
+
+	private void acquire(Connection connection, long requestId, String chat, long timeoutMillis) {
+		coordinator.acquire(connection, chat, timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((granted, error) -> {
+			if (error == null) {
+				connection.reply(ClusterCodec.GRANTED, requestId);
+			} else if (error instanceof TimeoutException) {
+				connection.reply(ClusterCodec.TIMED_OUT, requestId);
+			} else {
+				log.warn("Error acquiring chat {} for a cluster node", chat, error);
+				connection.reply(ClusterCodec.TIMED_OUT, requestId);
+			}
+		});
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+		// Readers blocked on a socket don't notice the interrupt
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		threads.shutdownNow();
+		timer.shutdownNow();
+	}
+
+	private static class Connection implements ClusterCoordinator.Node {
+
+		private static final Object CLOSE = new Object();
+
+		private final String nodeId;
+		private final DataOutputStream out;
+		private final LinkedBlockingQueue<Object> outbox = new LinkedBlockingQueue<>();
+
+		Connection(String nodeId, DataOutputStream out) {
+			this.nodeId = nodeId;
+			this.out = out;
+		}
+
+		@Override
+		public String getId() {
+			return nodeId;
+		}
+
+		@Override
+		public void send(ClusterEvent event) {
+			outbox.add(event);
+		}
+
+		void reply(byte opcode, long requestId) {
+			outbox.add(new long[] { opcode, requestId });
+		}
+
+		void close() {
+			outbox.add(CLOSE);
+		}
+
+		void write() {
+			try {
+				while (true) {
+					Object next = outbox.take();
+					do {
+						if (next == CLOSE) {
+							return;
+						}
+						if (next instanceof ClusterEvent) {
+							out.writeByte(ClusterCodec.EVENT);
+							ClusterCodec.writeEvent(out, (ClusterEvent) next);
+						} else {
+							long[] reply = (long[]) next;
+							out.writeByte((byte) reply[0]);
+							out.writeLong(reply[1]);
+						}
+						next = outbox.poll();
+					} while (next != null);
+					// One flush for everything that was queued
+					out.flush();
+				}
+			} catch (InterruptedException | IOException e) {
+				// Closed, the reader thread cleans up
+			}
+		}
+	}
+}
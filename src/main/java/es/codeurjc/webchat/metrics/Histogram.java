@@ -0,0 +1,104 @@
+package es.codeurjc.webchat.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, in the manner of HdrHistogram:
+ * every power of two is split in 16 linear buckets, so any value is reported
+ * within about 6% of what was recorded, from 0 to {@link Long#MAX_VALUE}.
+ * Recording is one atomic increment and one {@link LongAdder} update; the
+ * count is the sum of the buckets.
+ */
+public final class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.getAndIncrement(index(value));
+		sum.add(value);
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	static int index(long value) {
+		if (value < LINEAR_LIMIT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	// Highest value that falls in the bucket
+	static long highestValue(int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index - shift * SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = getCount();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("count", getCount());
+		snapshot.put("mean", getMean());
+		snapshot.put("p50", getValueAtPercentile(50));
+		snapshot.put("p90", getValueAtPercentile(90));
+		snapshot.put("p99", getValueAtPercentile(99));
+		snapshot.put("p999", getValueAtPercentile(99.9));
+		snapshot.put("max", getMax());
+		return snapshot;
+	}
+}
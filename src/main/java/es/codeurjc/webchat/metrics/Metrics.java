@@ -0,0 +1,46 @@
+package es.codeurjc.webchat.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and histograms. Instruments are looked up once and
+ * kept by whoever updates them, so the hot paths only touch a
+ * {@link LongAdder} or a {@link Histogram} and never take a lock.
+ */
+public final class Metrics {
+
+	private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+	public LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, key -> new LongAdder());
+	}
+
+	/**
+	 * Registers a value read when the metrics are reported, replacing any
+	 * previous one with the same name.
+	 */
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	public Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, key -> new Histogram());
+	}
+
+	/**
+	 * Current value of every instrument, sorted by name.
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new TreeMap<>();
+		counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+		gauges.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+		histograms.forEach((name, histogram) -> snapshot.put(name, histogram.snapshot()));
+		return snapshot;
+	}
+}
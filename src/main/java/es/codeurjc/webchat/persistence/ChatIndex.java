@@ -0,0 +1,101 @@
+package es.codeurjc.webchat.persistence;
+
+import java.util.Arrays;
+
+/**
+ * Where the records of one chat are, in timestamp order. A location is the
+ * segment id in the high 32 bits and the position in the segment in the low
+ * ones. Written by the log writer only, read by anyone.
+ */
+final class ChatIndex {
+
+	private final String chat;
+	private long[] timestamps = new long[16];
+	private long[] locations = new long[16];
+	private int size;
+
+	// Latest timestamp handed out, ahead of the published entries
+	private long lastTimestamp;
+
+	ChatIndex(String chat) {
+		this.chat = chat;
+	}
+
+	String getChat() {
+		return chat;
+	}
+
+	static long location(int segment, long position) {
+		return ((long) segment << 32) | position;
+	}
+
+	static int segment(long location) {
+		return (int) (location >>> 32);
+	}
+
+	static long position(long location) {
+		return location & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Returns the timestamp the next record gets, so that timestamps of a chat
+	 * never go backwards even if the clock does.
+	 */
+	long nextTimestamp(long timestamp) {
+		lastTimestamp = Math.max(lastTimestamp, timestamp);
+		return lastTimestamp;
+	}
+
+	synchronized void add(long timestamp, long location) {
+		if (size == timestamps.length) {
+			timestamps = Arrays.copyOf(timestamps, size * 2);
+			locations = Arrays.copyOf(locations, size * 2);
+		}
+		timestamps[size] = timestamp;
+		locations[size] = location;
+		size++;
+		lastTimestamp = Math.max(lastTimestamp, timestamp);
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	synchronized long getLastTimestamp() {
+		return size == 0 ? 0 : timestamps[size - 1];
+	}
+
+	/**
+	 * Locations of the first records with timestamps in [from, to], oldest
+	 * first.
+	 */
+	synchronized long[] range(long from, long to, int limit) {
+		int start = lowerBound(from);
+		int end = start;
+		while (end < size && end - start < limit && timestamps[end] <= to) {
+			end++;
+		}
+		return Arrays.copyOfRange(locations, start, end);
+	}
+
+	/**
+	 * Locations of the last records, oldest first.
+	 */
+	synchronized long[] tail(int count) {
+		return Arrays.copyOfRange(locations, Math.max(0, size - count), size);
+	}
+
+	private int lowerBound(long timestamp) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (timestamps[middle] < timestamp) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,50 @@
+package es.codeurjc.webchat.persistence;
+
+/**
+ * A chat message as stored in the {@link MessageLog}.
+ */
+public final class LogRecord {
+
+	private final long timestamp;
+	private final String chat;
+	private final String user;
+	private final String color;
+	private final String message;
+
+	public LogRecord(long timestamp, String chat, String user, String color, String message) {
+		this.timestamp = timestamp;
+		this.chat = chat;
+		this.user = user;
+		this.color = color;
+		this.message = message;
+	}
+
+	/**
+	 * Milliseconds since the epoch, never lower than the previous record of
+	 * the same chat.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getChat() {
+		return chat;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getColor() {
+		return color;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return "LogRecord[" + chat + ", " + user + ", " + timestamp + "]";
+	}
+}
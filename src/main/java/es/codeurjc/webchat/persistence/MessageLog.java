@@ -0,0 +1,341 @@
+package es.codeurjc.webchat.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of the messages of every chat of a node, split into
+ * segment files of bounded size.
+ *
+ * Appends turn the record to UTF-8 and queue it. A single writer thread writes everything
+ * queued with one gathering write and, if enabled, one fsync (group commit),
+ * and then completes the futures of the batch. Records are indexed by chat
+ * and timestamp in memory, and the index of every full segment is saved next
+ * to it, so opening the log only has to read the last segment. A segment
+ * that ends in a torn or corrupt record is truncated to the last good one.
+ */
+public class MessageLog implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(MessageLog.class);
+
+	public static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+	private static final int MAX_BATCH = 1024;
+
+	private static final Append CLOSE = new Append(null, 0, null);
+
+	private final Path directory;
+	private final long segmentBytes;
+	private final boolean fsync;
+
+	private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, ChatIndex> index = new ConcurrentHashMap<>();
+	private final LinkedBlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private volatile boolean closed;
+
+	// Only used by the writer once it has started
+	private Segment active;
+
+	private final LongAdder appended = new LongAdder();
+	private final LongAdder commits = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	private static final class Append {
+		final String chat;
+		final long timestamp;
+		final byte[][] fields;
+		final CompletableFuture<Void> written = new CompletableFuture<>();
+
+		Append(String chat, long timestamp, byte[][] fields) {
+			this.chat = chat;
+			this.timestamp = timestamp;
+			this.fields = fields;
+		}
+	}
+
+	public MessageLog(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_BYTES, false);
+	}
+
+	/**
+	 * @param segmentBytes size at which a new segment is started, at most 2GB
+	 * @param fsync whether a write is only complete once it is on disk
+	 */
+	public MessageLog(Path directory, long segmentBytes, boolean fsync) throws IOException {
+		if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid segment size " + segmentBytes);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.fsync = fsync;
+
+		Files.createDirectories(directory);
+		load();
+
+		this.writer = new Thread(this::write, "webchat-log-" + directory.getFileName());
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	private void load() throws IOException {
+		List<Integer> ids = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + Segment.LOG_SUFFIX)) {
+			for (Path file : files) {
+				ids.add(Segment.parseId(file));
+			}
+		}
+		Collections.sort(ids);
+
+		for (int i = 0; i < ids.size(); i++) {
+			Segment segment = Segment.open(directory, ids.get(i));
+			segments.put(segment.getId(), segment);
+			Segment.EntryConsumer indexer = (chat, timestamp, position) -> index
+					.computeIfAbsent(chat, ChatIndex::new)
+					.add(timestamp, ChatIndex.location(segment.getId(), position));
+
+			boolean last = i == ids.size() - 1;
+			if (last) {
+				// Still open for appending, it never has a saved index
+				segment.deleteIndex();
+				segment.recover(indexer);
+				active = segment;
+			} else if (!segment.loadIndex(indexer)) {
+				segment.recover(indexer);
+				segment.seal();
+			}
+		}
+
+		if (active == null) {
+			active = Segment.open(directory, 0);
+			segments.put(0, active);
+		}
+	}
+
+	/**
+	 * Queues a message to be written.
+	 *
+	 * @return completed once the message has been written, and synced to
+	 *         disk if the log was opened with fsync. Failed if the log is
+	 *         closed, and the message counted as dropped, or right away if
+	 *         anything but the color is null.
+	 */
+	public CompletableFuture<Void> append(String chat, String user, String color, String message) {
+		byte[][] fields;
+		try {
+			fields = Segment.fields(chat, user, color, message);
+		} catch (IllegalArgumentException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		Append append = new Append(chat, System.currentTimeMillis(), fields);
+		if (!closed) {
+			queue.add(append);
+			// If it was closed meanwhile the writer may be gone without taking it
+			if (!closed || !queue.remove(append)) {
+				return append.written;
+			}
+		}
+		drop(append);
+		return append.written;
+	}
+
+	private void drop(Append append) {
+		dropped.increment();
+		append.written.completeExceptionally(new IllegalStateException("The message log is closed"));
+	}
+
+	public Set<String> getChats() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	/**
+	 * Timestamp of the last written message of the chat, 0 if there is none.
+	 */
+	public long getLastTimestamp(String chat) {
+		ChatIndex chatIndex = index.get(chat);
+		return chatIndex == null ? 0 : chatIndex.getLastTimestamp();
+	}
+
+	/**
+	 * The first written messages of the chat with timestamps in [from, to],
+	 * oldest first.
+	 */
+	public List<LogRecord> read(String chat, long from, long to, int limit) {
+		ChatIndex chatIndex = index.get(chat);
+		return chatIndex == null ? Collections.emptyList() : read(chatIndex.range(from, to, limit));
+	}
+
+	/**
+	 * The last written messages of the chat, oldest first.
+	 */
+	public List<LogRecord> tail(String chat, int count) {
+		ChatIndex chatIndex = index.get(chat);
+		return chatIndex == null ? Collections.emptyList() : read(chatIndex.tail(count));
+	}
+
+	private List<LogRecord> read(long[] locations) {
+		List<LogRecord> records = new ArrayList<>(locations.length);
+		try {
+			for (long location : locations) {
+				records.add(segments.get(ChatIndex.segment(location)).read(ChatIndex.position(location)));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return records;
+	}
+
+	public boolean isFsync() {
+		return fsync;
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	public long getAppended() {
+		return appended.sum();
+	}
+
+	/**
+	 * Writes made so far, each one covering every message queued at the time.
+	 */
+	public long getCommits() {
+		return commits.sum();
+	}
+
+	/**
+	 * Messages appended after the log was closed, and never written.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	private void write() {
+		List<Append> batch = new ArrayList<>(MAX_BATCH);
+		boolean closing = false;
+		while (!closing) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch, MAX_BATCH - 1);
+			closing = batch.remove(CLOSE);
+
+			try {
+				commit(batch);
+				for (Append append : batch) {
+					append.written.complete(null);
+				}
+			} catch (IOException | RuntimeException e) {
+				log.error("Error writing the message log in {}", directory, e);
+				for (Append append : batch) {
+					append.written.completeExceptionally(e);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	private void commit(List<Append> batch) throws IOException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+		String[] chats = new String[batch.size()];
+		long[] timestamps = new long[batch.size()];
+		ChatIndex[] indexes = new ChatIndex[batch.size()];
+
+		int start = 0;
+		long bytes = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			Append append = batch.get(i);
+			indexes[i] = index.computeIfAbsent(append.chat, ChatIndex::new);
+			chats[i] = append.chat;
+			timestamps[i] = indexes[i].nextTimestamp(append.timestamp);
+			buffers[i] = Segment.encode(timestamps[i], append.fields);
+
+			if (active.size() + bytes + buffers[i].remaining() > segmentBytes && active.size() + bytes > 0) {
+				flush(start, i, buffers, chats, timestamps, indexes);
+				roll();
+				start = i;
+				bytes = 0;
+			}
+			bytes += buffers[i].remaining();
+		}
+		flush(start, batch.size(), buffers, chats, timestamps, indexes);
+		appended.add(batch.size());
+		commits.increment();
+	}
+
+	private void flush(int from, int to, ByteBuffer[] buffers, String[] chats, long[] timestamps,
+			ChatIndex[] indexes) throws IOException {
+		if (from == to) {
+			return;
+		}
+		long position = active.size();
+		active.write(Arrays.copyOfRange(buffers, from, to), Arrays.copyOfRange(chats, from, to),
+				Arrays.copyOfRange(timestamps, from, to));
+		if (fsync) {
+			active.force();
+		}
+		// Only index what is written, readers go straight to the file
+		for (int i = from; i < to; i++) {
+			indexes[i].add(timestamps[i], ChatIndex.location(active.getId(), position));
+			position += buffers[i].limit();
+		}
+	}
+
+	private void roll() throws IOException {
+		active.seal();
+		Segment next = Segment.open(directory, active.getId() + 1);
+		segments.put(next.getId(), next);
+		active = next;
+	}
+
+	/**
+	 * Writes everything queued so far and closes the files.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		queue.add(CLOSE);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// Appends that raced with closing
+		Append append;
+		while ((append = queue.poll()) != null) {
+			drop(append);
+		}
+		if (fsync) {
+			active.force();
+		}
+		for (Segment segment : segments.values()) {
+			segment.close();
+		}
+	}
+}
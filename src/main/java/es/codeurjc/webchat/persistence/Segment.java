@@ -0,0 +1,311 @@
+package es.codeurjc.webchat.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the log. Records are
+ *
+ * <pre>
+ * int length, int crc32, then length bytes of:
+ * long timestamp, and chat, user, color and message as int length + UTF-8
+ * </pre>
+ *
+ * A full segment is sealed by saving, next to it, the index of the records it
+ * holds: an int magic, the long segment length it covers, an int count and
+ * then chat (int length + UTF-8), long timestamp and int position per record.
+ */
+final class Segment {
+
+	static final String LOG_SUFFIX = ".log";
+	static final String INDEX_SUFFIX = ".idx";
+
+	private static final int HEADER_BYTES = 8;
+	// Indexes saved with another magic are rebuilt from their segment
+	private static final int INDEX_MAGIC = 0x57434959;
+
+	interface EntryConsumer {
+		void accept(String chat, long timestamp, long position);
+	}
+
+	private final int id;
+	private final Path file;
+	private final Path indexFile;
+	private final FileChannel channel;
+	private long size;
+
+	// Index of the records written since the segment was opened for appending
+	private ByteArrayOutputStream pendingIndex;
+	private DataOutputStream pendingIndexOut;
+	private int pendingEntries;
+
+	private Segment(Path directory, int id) throws IOException {
+		this.id = id;
+		this.file = directory.resolve(String.format("%010d", id) + LOG_SUFFIX);
+		this.indexFile = directory.resolve(String.format("%010d", id) + INDEX_SUFFIX);
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.size = channel.size();
+	}
+
+	static Segment open(Path directory, int id) throws IOException {
+		return new Segment(directory, id);
+	}
+
+	static int parseId(Path file) {
+		String name = file.getFileName().toString();
+		return Integer.parseInt(name.substring(0, name.length() - LOG_SUFFIX.length()));
+	}
+
+	int getId() {
+		return id;
+	}
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * The fields of a record as UTF-8, built by the thread appending it so
+	 * that a bad record fails on its own. A missing color is written empty.
+	 *
+	 * @throws IllegalArgumentException if the chat, user or message is null
+	 */
+	static byte[][] fields(String chat, String user, String color, String message) {
+		if (chat == null || user == null || message == null) {
+			throw new IllegalArgumentException("A log record needs a chat, a user and a message");
+		}
+		return new byte[][] { chat.getBytes(StandardCharsets.UTF_8), user.getBytes(StandardCharsets.UTF_8),
+				color != null ? color.getBytes(StandardCharsets.UTF_8) : new byte[0],
+				message.getBytes(StandardCharsets.UTF_8) };
+	}
+
+	static ByteBuffer encode(long timestamp, byte[][] fields) {
+		byte[] chat = fields[0];
+		byte[] user = fields[1];
+		byte[] color = fields[2];
+		byte[] message = fields[3];
+		int length = 8 + 16 + chat.length + user.length + color.length + message.length;
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + length);
+		buffer.putInt(length).putInt(0).putLong(timestamp);
+		putBytes(buffer, chat);
+		putBytes(buffer, user);
+		putBytes(buffer, color);
+		putBytes(buffer, message);
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), HEADER_BYTES, length);
+		buffer.putInt(4, (int) crc.getValue());
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		buffer.putInt(bytes.length).put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+			throw new IllegalArgumentException("Invalid string length " + length);
+		}
+		String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+				StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return value;
+	}
+
+	/**
+	 * Writes the records and remembers them for the index of the segment.
+	 * The buffers must have been built by {@link #encode}.
+	 */
+	void write(ByteBuffer[] buffers, String[] chats, long[] timestamps) throws IOException {
+		long[] positions = new long[buffers.length];
+		long position = size;
+		for (int i = 0; i < buffers.length; i++) {
+			positions[i] = position;
+			position += buffers[i].remaining();
+		}
+		long remaining = position - size;
+		channel.position(size);
+		while (remaining > 0) {
+			remaining -= channel.write(buffers);
+		}
+		// Only once written, a failed write is overwritten by the next one
+		for (int i = 0; i < buffers.length; i++) {
+			addToIndex(chats[i], timestamps[i], positions[i]);
+		}
+		size = position;
+	}
+
+	void force() throws IOException {
+		channel.force(false);
+	}
+
+	LogRecord read(long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		readFully(header, position);
+		ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+		readFully(body, position + HEADER_BYTES);
+		body.flip();
+		return decode(body);
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Record beyond the end of " + file);
+			}
+		}
+	}
+
+	private static LogRecord decode(ByteBuffer body) {
+		long timestamp = body.getLong();
+		String chat = getString(body);
+		String user = getString(body);
+		String color = getString(body);
+		String message = getString(body);
+		return new LogRecord(timestamp, chat, user, color.isEmpty() ? null : color, message);
+	}
+
+	/**
+	 * Reads every record, reporting where it is, and truncates the segment
+	 * after the last one that is complete and passes its checksum.
+	 */
+	void recover(EntryConsumer consumer) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		CRC32 crc = new CRC32();
+		long position = 0;
+		long fileSize = channel.size();
+
+		while (position + HEADER_BYTES <= fileSize) {
+			header.clear();
+			readFully(header, position);
+			int length = header.getInt(0);
+			if (length < 24 || position + HEADER_BYTES + length > fileSize) {
+				break;
+			}
+			ByteBuffer body = ByteBuffer.allocate(length);
+			readFully(body, position + HEADER_BYTES);
+			crc.reset();
+			crc.update(body.array(), 0, length);
+			if ((int) crc.getValue() != header.getInt(4)) {
+				break;
+			}
+			body.flip();
+			LogRecord record;
+			try {
+				record = decode(body);
+			} catch (RuntimeException e) {
+				break;
+			}
+			consumer.accept(record.getChat(), record.getTimestamp(), position);
+			addToIndex(record.getChat(), record.getTimestamp(), position);
+			position += HEADER_BYTES + length;
+		}
+
+		if (position < fileSize) {
+			channel.truncate(position);
+			channel.force(true);
+		}
+		size = position;
+	}
+
+	private void addToIndex(String chat, long timestamp, long position) throws IOException {
+		if (pendingIndexOut == null) {
+			pendingIndex = new ByteArrayOutputStream();
+			pendingIndexOut = new DataOutputStream(pendingIndex);
+		}
+		byte[] name = chat.getBytes(StandardCharsets.UTF_8);
+		pendingIndexOut.writeInt(name.length);
+		pendingIndexOut.write(name);
+		pendingIndexOut.writeLong(timestamp);
+		pendingIndexOut.writeInt((int) position);
+		pendingEntries++;
+	}
+
+	/**
+	 * Saves the index of the segment, which won't receive more records.
+	 */
+	void seal() throws IOException {
+		channel.force(false);
+		Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+		try (OutputStream file = Files.newOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(file)) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeLong(size);
+			out.writeInt(pendingEntries);
+			if (pendingIndex != null) {
+				pendingIndex.writeTo(out);
+			}
+		}
+		Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		pendingIndex = null;
+		pendingIndexOut = null;
+		pendingEntries = 0;
+	}
+
+	/**
+	 * Loads the index saved when the segment was sealed.
+	 *
+	 * @return false if there is no usable index, so the segment has to be
+	 *         recovered by reading it
+	 */
+	boolean loadIndex(EntryConsumer consumer) throws IOException {
+		if (!Files.exists(indexFile)) {
+			return false;
+		}
+		try (InputStream file = Files.newInputStream(indexFile);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+			if (in.readInt() != INDEX_MAGIC || in.readLong() != size) {
+				return false;
+			}
+			int count = in.readInt();
+			String[] chats = new String[count];
+			long[] timestamps = new long[count];
+			long[] positions = new long[count];
+			for (int i = 0; i < count; i++) {
+				int length = in.readInt();
+				if (length < 0 || length > size) {
+					return false;
+				}
+				byte[] name = new byte[length];
+				in.readFully(name);
+				chats[i] = new String(name, StandardCharsets.UTF_8);
+				timestamps[i] = in.readLong();
+				positions[i] = in.readInt() & 0xFFFFFFFFL;
+			}
+			// Only report entries once the whole index has been read
+			for (int i = 0; i < count; i++) {
+				consumer.accept(chats[i], timestamps[i], positions[i]);
+			}
+			return true;
+		} catch (IOException e) {
+			// Truncated or corrupt, reading the segment rebuilds it
+			return false;
+		}
+	}
+
+	void deleteIndex() throws IOException {
+		Files.deleteIfExists(indexFile);
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
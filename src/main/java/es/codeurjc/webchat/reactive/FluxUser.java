@@ -0,0 +1,216 @@
+package es.codeurjc.webchat.reactive;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.FrameEncoder;
+import es.codeurjc.webchat.SendPolicy;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.metrics.Histogram;
+import es.codeurjc.webchat.metrics.Metrics;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.util.concurrent.Queues;
+
+/**
+ * User whose frames become the outbound {@link Flux} of a reactive WebSocket
+ * session, which Reactor Netty only pulls from as fast as the socket takes
+ * them. Frames wait in between, and a client that lets more bytes pile up
+ * than the {@link SendPolicy} allows is disconnected.
+ */
+class FluxUser implements User {
+
+	// The servlet stack's SESSION_NOT_RELIABLE, which WebFlux does not define
+	private static final CloseStatus SESSION_NOT_RELIABLE = new CloseStatus(4500);
+
+	private static class Frame {
+		final org.springframework.web.socket.WebSocketMessage<?> message;
+		// Receive time of the chat message in the frame, 0 if there is none
+		final long created;
+
+		Frame(org.springframework.web.socket.WebSocketMessage<?> message, long created) {
+			this.message = message;
+			this.created = created;
+		}
+	}
+
+	private final WebSocketSession session;
+	private final String name;
+	private final String color;
+	private final FrameEncoder encoder;
+	private final long bufferSizeLimit;
+
+	// Written from the user's mailbox only, so emissions are never concurrent
+	private final Sinks.Many<Frame> outbound = Sinks.many().unicast()
+			.onBackpressureBuffer(Queues.<Frame>unbounded().get());
+	private final AtomicLong bufferedBytes = new AtomicLong();
+
+	private final Histogram deliveryLatency;
+	private final LongAdder terminations;
+	private final AtomicBoolean terminated = new AtomicBoolean();
+	private volatile boolean goingAway;
+	private volatile Runnable onTerminated = () -> {
+	};
+
+	FluxUser(WebSocketSession session, String name, String color, Metrics metrics, SendPolicy sendPolicy) {
+		this.session = session;
+		this.name = name;
+		this.color = color;
+		this.encoder = FrameEncoder.forProtocol(session.getHandshakeInfo().getSubProtocol());
+		this.bufferSizeLimit = sendPolicy.getBufferSizeLimit();
+		this.deliveryLatency = metrics.histogram("delivery.latency.nanos");
+		this.terminations = metrics.counter("websocket.sessions.terminated");
+	}
+
+	void setOnTerminated(Runnable onTerminated) {
+		this.onTerminated = onTerminated;
+	}
+
+	/**
+	 * The frames to write to the session, as the socket asks for them.
+	 */
+	Flux<WebSocketMessage> frames() {
+		return outbound.asFlux().map(this::toSocket).doOnComplete(() -> {
+			if (goingAway) {
+				session.close(CloseStatus.GOING_AWAY).subscribe();
+			}
+		});
+	}
+
+	/**
+	 * Ends the outbound stream once the session is gone.
+	 */
+	void complete() {
+		// May race with a frame being emitted from the mailbox
+		outbound.emitComplete(Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1)));
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getColor() {
+		return color;
+	}
+
+	@Override
+	public void newChat(Chat chat) {
+		send(encoder.newChat(chat), 0);
+	}
+
+	@Override
+	public void chatClosed(Chat chat) {
+		send(encoder.chatClosed(chat), 0);
+	}
+
+	@Override
+	public void chatListChanged(List<Chat> opened, List<Chat> closed) {
+		List<org.springframework.web.socket.WebSocketMessage<?>> frames = new ArrayList<>(
+				opened.size() + closed.size());
+		for (Chat chat : closed) {
+			frames.add(encoder.chatClosed(chat));
+		}
+		for (Chat chat : opened) {
+			frames.add(encoder.newChat(chat));
+		}
+		send(frames.size() == 1 ? frames.get(0) : encoder.batch(frames), 0);
+	}
+
+	@Override
+	public void newUserInChat(Chat chat, User user) {
+		send(encoder.newUserInChat(chat, user), 0);
+	}
+
+	@Override
+	public void userExitedFromChat(Chat chat, User user) {
+		send(encoder.userExitedFromChat(chat, user), 0);
+	}
+
+	@Override
+	public void newMessage(Chat chat, User user, String message) {
+		newMessage(new ChatMessage(chat, user, message));
+	}
+
+	@Override
+	public void newMessage(ChatMessage message) {
+		send(encoder.newMessage(message), message.getCreatedNanos());
+	}
+
+	@Override
+	public void messageHistory(Chat chat, List<ChatMessage> messages) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		List<org.springframework.web.socket.WebSocketMessage<?>> frames = new ArrayList<>(messages.size());
+		for (ChatMessage message : messages) {
+			frames.add(encoder.newMessage(message));
+		}
+		send(frames.size() == 1 ? frames.get(0) : encoder.batch(frames), 0);
+	}
+
+	@Override
+	public void disconnect() {
+		terminate(SESSION_NOT_RELIABLE);
+	}
+
+	/**
+	 * Ends the frames, and closes the session as going away once the socket
+	 * has taken those already emitted.
+	 */
+	@Override
+	public void shutdown() {
+		if (!terminated.compareAndSet(false, true)) {
+			return;
+		}
+		goingAway = true;
+		complete();
+	}
+
+	private void send(org.springframework.web.socket.WebSocketMessage<?> message, long created) {
+		if (terminated.get()) {
+			return;
+		}
+		long buffered = bufferedBytes.addAndGet(message.getPayloadLength());
+		if (bufferSizeLimit > 0 && buffered > bufferSizeLimit) {
+			terminate(SESSION_NOT_RELIABLE.withReason("Send buffer limit exceeded"));
+			return;
+		}
+		outbound.tryEmitNext(new Frame(message, created));
+	}
+
+	private WebSocketMessage toSocket(Frame frame) {
+		bufferedBytes.addAndGet(-frame.message.getPayloadLength());
+		if (frame.created != 0) {
+			deliveryLatency.record(System.nanoTime() - frame.created);
+		}
+		if (frame.message instanceof TextMessage) {
+			return session.textMessage(((TextMessage) frame.message).getPayload());
+		}
+		ByteBuffer payload = ((BinaryMessage) frame.message).getPayload().duplicate();
+		return session.binaryMessage(factory -> factory.wrap(payload));
+	}
+
+	private void terminate(CloseStatus status) {
+		if (!terminated.compareAndSet(false, true)) {
+			return;
+		}
+		terminations.increment();
+		onTerminated.run();
+		session.close(status).subscribe();
+	}
+}
@@ -0,0 +1,70 @@
+package es.codeurjc.webchat.reactive;
+
+import java.util.Map;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+import org.springframework.web.reactive.handler.SimpleUrlHandlerMapping;
+import org.springframework.web.reactive.socket.server.WebSocketService;
+import org.springframework.web.reactive.socket.server.support.HandshakeWebSocketService;
+import org.springframework.web.reactive.socket.server.upgrade.ReactorNettyRequestUpgradeStrategy;
+
+import es.codeurjc.webchat.ChatHandler;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.MetricsController;
+
+/**
+ * Runs the chat on Spring WebFlux and Reactor Netty instead of the servlet
+ * stack of {@link es.codeurjc.webchat.App}. It is not a component, so the
+ * servlet app does not pick it up when scanning.
+ */
+@EnableAutoConfiguration
+public class ReactiveApp implements WebFluxConfigurer {
+
+	@Bean
+	public ReactiveChatHandler reactiveChatHandler() {
+		return new ReactiveChatHandler(ChatHandler.newChatManager());
+	}
+
+	@Bean
+	public ChatManager chatManager(ReactiveChatHandler reactiveChatHandler) {
+		return reactiveChatHandler.getChatManager();
+	}
+
+	@Bean
+	public MetricsController metricsController(ChatManager chatManager) {
+		return new MetricsController(chatManager);
+	}
+
+	@Bean
+	public HandlerMapping chatHandlerMapping(ReactiveChatHandler reactiveChatHandler) {
+		return new SimpleUrlHandlerMapping(Map.of("/chat", reactiveChatHandler), -1);
+	}
+
+	// Tomcat is on the classpath too and would otherwise be preferred, both
+	// to serve and to upgrade to WebSocket
+	@Bean
+	public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+		return new NettyReactiveWebServerFactory();
+	}
+
+	@Override
+	public WebSocketService getWebSocketService() {
+		return new HandshakeWebSocketService(new ReactorNettyRequestUpgradeStrategy());
+	}
+
+	public static SpringApplication application() {
+		SpringApplication application = new SpringApplication(ReactiveApp.class);
+		application.setWebApplicationType(WebApplicationType.REACTIVE);
+		return application;
+	}
+
+	public static void main(String[] args) {
+		application().run(args);
+	}
+}
@@ -0,0 +1,121 @@
+package es.codeurjc.webchat.reactive;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+
+import es.codeurjc.webchat.BinaryMessageDecoder;
+import es.codeurjc.webchat.BinaryProtocol;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatSession;
+import es.codeurjc.webchat.InboundMessage;
+import es.codeurjc.webchat.JsonMessageDecoder;
+import es.codeurjc.webchat.SendPolicy;
+import es.codeurjc.webchat.User;
+import reactor.core.publisher.Mono;
+
+/**
+ * The /chat endpoint on Spring WebFlux, speaking the same protocols as
+ * {@link es.codeurjc.webchat.ChatHandler} on top of the same chat manager.
+ */
+public class ReactiveChatHandler implements WebSocketHandler {
+
+	private static final SendPolicy SEND_POLICY = SendPolicy.fromSystemProperties();
+
+	private JsonMessageDecoder decoder = new JsonMessageDecoder();
+
+	private BinaryMessageDecoder binaryDecoder = new BinaryMessageDecoder();
+
+	private ChatManager chatManager;
+
+	private String[] colors = { "007AFF", "FF7000", "15E25F", "CFC700", "CFC700",
+			"CF1100", "CF00BE", "F00" };
+
+	private volatile int colorIndex = 0;
+
+	public ReactiveChatHandler(ChatManager chatManager) {
+		this.chatManager = chatManager;
+	}
+
+	public ChatManager getChatManager() {
+		return chatManager;
+	}
+
+	@Override
+	public List<String> getSubProtocols() {
+		return Arrays.asList(BinaryProtocol.BINARY_SUBPROTOCOL, BinaryProtocol.JSON_SUBPROTOCOL);
+	}
+
+	/**
+	 * What the handler knows of one session. Reactive sessions carry no
+	 * mutable attributes, so it lives here.
+	 */
+	private class Connection {
+		final WebSocketSession session;
+		final ChatSession chats;
+		// Completed with the user on its first join, or with null if it never joins
+		final CompletableFuture<FluxUser> joined = new CompletableFuture<>();
+
+		Connection(WebSocketSession session) {
+			this.session = session;
+			this.chats = new ChatSession(chatManager, this::newUser, error -> session
+					.close(new CloseStatus(CloseStatus.SERVICE_OVERLOAD.getCode(), error.getMessage())).subscribe());
+		}
+
+		private User newUser(String userName) {
+			FluxUser user = new FluxUser(session, userName, colors[colorIndex],
+					chatManager.getDispatcher().getMetrics(), SEND_POLICY);
+			colorIndex = (colorIndex+1) % colors.length;
+
+			// A client that can't keep up leaves before its session is closed
+			user.setOnTerminated(this::leave);
+			joined.complete(user);
+			return user;
+		}
+
+		void leave() {
+			chats.close();
+			// Also ends the frames of a user whose registration failed
+			joined.complete(null);
+			FluxUser user = joined.getNow(null);
+			if (user != null) {
+				user.complete();
+			}
+		}
+	}
+
+	@Override
+	public Mono<Void> handle(WebSocketSession session) {
+		Connection connection = new Connection(session);
+		Mono<Void> inbound = session.receive()
+				.doOnNext(message -> connection.chats.handle(decode(message)))
+				.doFinally(signal -> connection.leave())
+				.then();
+		// Frames are only pulled once the user joins
+		Mono<Void> outbound = session.send(Mono.fromFuture(connection.joined).flatMapMany(FluxUser::frames));
+		return Mono.when(inbound, outbound);
+	}
+
+	private InboundMessage decode(WebSocketMessage message) {
+		try {
+			if (message.getType() == WebSocketMessage.Type.BINARY) {
+				DataBuffer payload = message.getPayload();
+				byte[] bytes = new byte[payload.readableByteCount()];
+				payload.read(bytes);
+				return binaryDecoder.decode(ByteBuffer.wrap(bytes));
+			}
+			return decoder.decode(message.getPayloadAsText());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.BatchPolicy;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.WebSocketUser;
+import es.sidelab.webchat.bench.NullWebSocketSession;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchingTests {
+    private final int numMessages = 10;
+    private Dispatcher dispatcher;
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private static class RecordingSession extends NullWebSocketSession {
+        private final List<String> frames = new CopyOnWriteArrayList<>();
+
+        RecordingSession() {
+            super("recording");
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            frames.add((String) message.getPayload());
+        }
+    }
+
+    private RecordingSession deliver(BatchPolicy policy) throws Exception {
+        dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST, policy);
+        ChatManager manager = new ChatManager(1, dispatcher);
+        Chat chat = manager.newChat("BatchChat", 5, TimeUnit.SECONDS);
+        RecordingSession session = new RecordingSession();
+        WebSocketUser user = new WebSocketUser(session, "receiver", "007AFF", policy);
+        manager.newUser(user);
+        chat.addUser(user);
+
+        TestUser sender = new TestUser("sender");
+        for (int i = 1; i <= numMessages; i++) {
+            chat.sendMessage(sender, Integer.toString(i));
+        }
+        return session;
+    }
+
+    private static int countMessages(List<String> frames) {
+        int count = 0;
+        for (String frame : frames) {
+            count += frame.split("\"message\"").length - 1;
+        }
+        return count;
+    }
+
+    private static void awaitFrames(RecordingSession session, int count, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (session.frames.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void lingerMergesMessagesIntoOneFrame() throws Exception {
+        final long linger = 500;
+        long start = System.currentTimeMillis();
+        RecordingSession session = deliver(new BatchPolicy(64, linger));
+
+        awaitFrames(session, 1, 5000);
+        assertTrue("Frame sent before linger time", System.currentTimeMillis() - start >= linger);
+        assertEquals("Messages not merged", 1, session.frames.size());
+        assertTrue("Batch is not a JSON array", session.frames.get(0).startsWith("[{"));
+        assertEquals("Messages lost", numMessages, countMessages(session.frames));
+    }
+
+    @Test
+    public void maxBatchSizeCapsFrames() throws Exception {
+        final int maxBatchSize = 4;
+        final long linger = 2000;
+        long start = System.currentTimeMillis();
+        RecordingSession session = deliver(new BatchPolicy(maxBatchSize, linger));
+
+        awaitFrames(session, numMessages / maxBatchSize, linger);
+        assertEquals("Full batches not sent", numMessages / maxBatchSize, session.frames.size());
+        assertTrue("Full batches waited for linger", System.currentTimeMillis() - start < linger);
+        awaitFrames(session, numMessages / maxBatchSize + 1, 5000);
+        assertEquals("Remaining messages not flushed", numMessages / maxBatchSize + 1, session.frames.size());
+        assertEquals("Messages lost", numMessages, countMessages(session.frames));
+    }
+
+    @Test
+    public void oneFramePerEventWithoutBatching() throws Exception {
+        RecordingSession session = deliver(BatchPolicy.NONE);
+
+        awaitFrames(session, numMessages, 5000);
+        assertEquals(numMessages, session.frames.size());
+        assertTrue("Unexpected batch", session.frames.get(0).startsWith("{"));
+    }
+}
@@ -0,0 +1,138 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.BinaryFrameEncoder;
+import es.codeurjc.webchat.BinaryMessageDecoder;
+import es.codeurjc.webchat.BinaryProtocol;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.InboundMessage;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryProtocolTests {
+
+    private static ByteBuffer frame(byte opcode, String... strings) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(opcode);
+        for (String s : strings) {
+            BinaryProtocol.writeString(out, s);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    @Test
+    public void decodesJoinAndMessage() throws IOException {
+        BinaryMessageDecoder decoder = new BinaryMessageDecoder();
+
+        InboundMessage join = decoder.decode(frame(BinaryProtocol.JOIN, "room", "ñandú"));
+        assertEquals(InboundMessage.Type.JOIN, join.getType());
+        assertEquals("room", join.getChat());
+        assertEquals("ñandú", join.getUser());
+        assertFalse(join.isLobby());
+
+        ByteBuffer lobbyFrame = frame(BinaryProtocol.JOIN, "room", "ñandú");
+        ByteBuffer withLobby = ByteBuffer.allocate(lobbyFrame.remaining() + 1).put(lobbyFrame).put((byte) 1);
+        withLobby.flip();
+        assertTrue(decoder.decode(withLobby).isLobby());
+
+        InboundMessage msg = decoder.decode(frame(BinaryProtocol.SEND, "hello"));
+        assertEquals(InboundMessage.Type.MESSAGE, msg.getType());
+        assertEquals("hello", msg.getMessage());
+    }
+
+    @Test
+    public void decodesLeaveAndMessageToAChat() throws IOException {
+        BinaryMessageDecoder decoder = new BinaryMessageDecoder();
+
+        InboundMessage leave = decoder.decode(frame(BinaryProtocol.LEAVE, "room"));
+        assertEquals(InboundMessage.Type.LEAVE, leave.getType());
+        assertEquals("room", leave.getChat());
+
+        InboundMessage msg = decoder.decode(frame(BinaryProtocol.SEND_TO, "other", "hello"));
+        assertEquals(InboundMessage.Type.MESSAGE, msg.getType());
+        assertEquals("other", msg.getChat());
+        assertEquals("hello", msg.getMessage());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFrames() throws IOException {
+        ByteBuffer join = frame(BinaryProtocol.JOIN, "room", "user");
+        join.limit(join.limit() - 2);
+        new BinaryMessageDecoder().decode(join);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNegativeStringLengths() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryProtocol.SEND);
+        BinaryProtocol.writeVarint(out, -1);
+        out.write('x');
+        new BinaryMessageDecoder().decode(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    @Test
+    public void definesIdsOnlyOnce() {
+        BinaryFrameEncoder encoder = new BinaryFrameEncoder();
+        Chat chat = new Chat(new ChatManager(1), "room");
+        TestUser sender = new TestUser("sender");
+
+        ByteBuffer first = (ByteBuffer) encoder.newMessage(new ChatMessage(chat, sender, "one")).getPayload();
+        assertEquals(BinaryProtocol.CHAT, first.get());
+        assertEquals(0, BinaryProtocol.readVarint(first));
+        assertEquals("room", BinaryProtocol.readString(first));
+        assertEquals(BinaryProtocol.USER, first.get());
+        assertEquals(0, BinaryProtocol.readVarint(first));
+        assertEquals("sender", BinaryProtocol.readString(first));
+        assertEquals("007AFF", BinaryProtocol.readString(first));
+        assertEquals(BinaryProtocol.MESSAGE, first.get());
+
+        ByteBuffer second = (ByteBuffer) encoder.newMessage(new ChatMessage(chat, sender, "two")).getPayload();
+        assertEquals(BinaryProtocol.MESSAGE, second.get());
+        assertEquals(0, BinaryProtocol.readVarint(second));
+        assertEquals(0, BinaryProtocol.readVarint(second));
+        assertEquals("two", BinaryProtocol.readString(second));
+        assertEquals(0, second.remaining());
+    }
+
+    @Test
+    public void userJoiningAgainIsDefinedWithItsCurrentColor() {
+        BinaryFrameEncoder encoder = new BinaryFrameEncoder();
+        ChatManager manager = new ChatManager(1);
+        Chat chat = new Chat(manager, "room");
+        TestUser user = new TestUser("user");
+        manager.newUser(user);
+        encoder.newUserInChat(chat, user);
+
+        ByteBuffer again = (ByteBuffer) encoder.newUserInChat(chat, user).getPayload();
+        assertEquals(BinaryProtocol.USER, again.get());
+        assertEquals(manager.getIdentities().of(user).getId(), BinaryProtocol.readVarint(again));
+        assertEquals("user", BinaryProtocol.readString(again));
+        assertEquals("007AFF", BinaryProtocol.readString(again));
+        assertEquals(BinaryProtocol.USER_JOINED, again.get());
+    }
+
+    @Test
+    public void closedChatIsDefinedAgainIfItComesBack() {
+        BinaryFrameEncoder encoder = new BinaryFrameEncoder();
+        Chat chat = new Chat(new ChatManager(1), "room");
+
+        ByteBuffer opened = (ByteBuffer) encoder.newChat(chat).getPayload();
+        assertEquals(BinaryProtocol.CHAT, opened.get());
+        ByteBuffer closed = (ByteBuffer) encoder.chatClosed(chat).getPayload();
+        assertEquals(BinaryProtocol.CHAT_CLOSED, closed.get());
+
+        // A late event after the close still comes with its definition
+        ByteBuffer late = (ByteBuffer) encoder.newMessage(new ChatMessage(chat, new TestUser("sender"), "late"))
+                .getPayload();
+        assertEquals(BinaryProtocol.CHAT, late.get());
+        assertEquals(chat.getIdentity().getId(), BinaryProtocol.readVarint(late));
+    }
+}
@@ -0,0 +1,125 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatCapacityScheduler;
+import es.codeurjc.webchat.ChatManager;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChatCapacitySchedulerTests {
+    private final int numChats = 2;
+    private final ChatManager manager = new ChatManager(numChats);
+    private final ChatCapacityScheduler capacity = manager.getCapacityScheduler();
+
+    private void fillCapacity() throws Exception {
+        for (int i = 0; i < numChats; i++) {
+            manager.newChat("full-" + i, 1, TimeUnit.SECONDS);
+        }
+        assertEquals(0, capacity.getAvailable());
+    }
+
+    @Test
+    public void waitingCreationsAreGrantedInOrder() throws Exception {
+        fillCapacity();
+        List<CompletableFuture<Chat>> waiting = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            waiting.add(manager.newChatAsync("waiting-" + i, 5, TimeUnit.SECONDS));
+        }
+        assertEquals("Wrong queue length", 3, capacity.getQueueLength());
+
+        String[] released = {"full-0", "full-1", "waiting-0"};
+        for (int i = 0; i < 3; i++) {
+            assertFalse("Granted without capacity", waiting.get(i).isDone());
+            manager.closeChat(manager.getChat(released[i]));
+            assertEquals("Not granted in order", "waiting-" + i, waiting.get(i).get(1, TimeUnit.SECONDS).getName());
+        }
+        assertEquals(0, capacity.getQueueLength());
+    }
+
+    @Test
+    public void pendingChatIsNotVisibleAndIsShared() throws Exception {
+        fillCapacity();
+        CompletableFuture<Chat> first = manager.newChatAsync("shared", 5, TimeUnit.SECONDS);
+        CompletableFuture<Chat> second = manager.newChatAsync("shared", 5, TimeUnit.SECONDS);
+
+        assertNull("Chat visible before it has capacity", manager.getChat("shared"));
+        assertEquals("Same chat queued twice", 1, capacity.getQueueLength());
+
+        manager.closeChat(manager.getChat("full-0"));
+        assertSame(first.get(1, TimeUnit.SECONDS), second.get(1, TimeUnit.SECONDS));
+        assertSame(first.get(), manager.getChat("shared"));
+    }
+
+    @Test
+    public void asyncCreationTimesOutWithoutBlocking() throws Exception {
+        fillCapacity();
+        long start = System.nanoTime();
+        CompletableFuture<Chat> chat = manager.newChatAsync("late", 200, TimeUnit.MILLISECONDS);
+        assertTrue("Caller was blocked", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+
+        try {
+            chat.get(5, TimeUnit.SECONDS);
+            fail("Chat created without capacity");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, capacity.getTimedOut());
+        assertEquals(0, capacity.getQueueLength());
+        assertNull(manager.getChat("late"));
+    }
+
+    @Test
+    public void interruptedCreationGivesItsSlotBack() throws Exception {
+        fillCapacity();
+        Thread waiting = new Thread(() -> {
+            try {
+                manager.newChat("interrupted", 5, TimeUnit.SECONDS);
+            } catch (InterruptedException | TimeoutException e) {
+                // Expected
+            }
+        });
+        waiting.start();
+        while (capacity.getQueueLength() == 0) {
+            Thread.sleep(10);
+        }
+        waiting.interrupt();
+        waiting.join(5000);
+
+        manager.closeChat(manager.getChat("full-0"));
+        assertNull("Chat created for nobody", manager.getChat("interrupted"));
+        assertEquals(1, capacity.getAvailable());
+        assertEquals(0, capacity.getQueueLength());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasingAFreeSlotFails() {
+        capacity.release();
+    }
+
+    @Test
+    public void idleChatsAreReclaimed() throws Exception {
+        manager.reclaimIdleChats(0, TimeUnit.MILLISECONDS);
+        Chat busy = manager.newChat("busy", 1, TimeUnit.SECONDS);
+        busy.addUser(new TestUser("member"));
+        Chat idle = manager.newChat("idle", 1, TimeUnit.SECONDS);
+
+        Chat created = manager.newChat("new", 1, TimeUnit.SECONDS);
+
+        assertSame(created, manager.getChat("new"));
+        assertSame(busy, manager.getChat("busy"));
+        assertNull("Idle chat not reclaimed", manager.getChat(idle.getName()));
+    }
+}
@@ -0,0 +1,48 @@
+package es.sidelab.webchat;
+
+import es.sidelab.webchat.load.LoadGenerator;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the /chat endpoint of a server started in this JVM with many
+ * WebSocket clients and prints throughput and latencies. Run with
+ * {@code mvn test -Pload}, sizing the run with webchat.load.clients,
+ * webchat.load.rooms, webchat.load.rate and webchat.load.seconds.
+ */
+public class ChatEndpointLoadTests {
+
+    @Before
+    public void onlyWhenRequested() {
+        Assume.assumeTrue("Load tests disabled, run with -Pload", Boolean.getBoolean("webchat.loadtests"));
+    }
+
+    @Test
+    public void endpointUnderLoad() throws Exception {
+        LoadGenerator.Options options = new LoadGenerator.Options();
+        options.clients = Integer.getInteger("webchat.load.clients", 2000);
+        options.rooms = Integer.getInteger("webchat.load.rooms", 10);
+        options.messagesPerSecond = Integer.getInteger("webchat.load.rate", 200);
+        options.duration = Duration.ofSeconds(Integer.getInteger("webchat.load.seconds", 10));
+        System.setProperty("webchat.chats.max", Integer.toString(options.rooms));
+
+        ConfigurableApplicationContext server = LoadGenerator.startServer();
+        try {
+            options.uri = LoadGenerator.chatUri(server);
+            LoadGenerator.Report report = new LoadGenerator(options).run();
+            System.out.println(report);
+
+            assertEquals("Clients failed to join", 0, report.failedClients);
+            assertTrue("Nothing delivered", report.received > 0);
+        } finally {
+            server.close();
+        }
+    }
+}
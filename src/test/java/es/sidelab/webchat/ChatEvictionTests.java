@@ -0,0 +1,179 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.EvictionPolicy;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChatEvictionTests {
+
+    private ChatManager manager;
+
+    @After
+    public void closeManager() {
+        manager.close();
+    }
+
+    private ChatManager newManager(int maxChats, long emptyTtlMillis, long idleTtlMillis) {
+        manager = new ChatManager(maxChats, Dispatcher.getDefault(),
+                new EvictionPolicy(emptyTtlMillis, idleTtlMillis));
+        return manager;
+    }
+
+    private static void awaitClosed(Chat chat, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!chat.isClosed() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void emptyChatIsClosedAndFreesCapacity() throws Exception {
+        newManager(1, 100, 0);
+        CountDownLatch closed = new CountDownLatch(1);
+        manager.newUser(new TestUser("observer") {
+            @Override
+            public void chatClosed(Chat chat) {
+                closed.countDown();
+            }
+        });
+
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        TestUser user = new TestUser("user");
+        chat.addUser(user);
+        chat.removeUser(user);
+
+        assertTrue("Users not notified", closed.await(2, TimeUnit.SECONDS));
+        assertTrue(chat.isClosed());
+        assertNull(manager.getChat("chat"));
+        assertEquals("Capacity not released", 1, manager.getCapacityScheduler().getAvailable());
+    }
+
+    @Test
+    public void chatWithUsersIsKeptUntilItIsIdle() throws Exception {
+        newManager(2, 50, 0);
+        Chat occupied = manager.newChat("occupied", 1, TimeUnit.SECONDS);
+        occupied.addUser(new TestUser("user"));
+
+        Thread.sleep(300);
+        assertFalse("Chat with users evicted", occupied.isClosed());
+        assertSame(occupied, manager.getChat("occupied"));
+
+        manager.close();
+        newManager(2, 0, 100);
+        Chat idle = manager.newChat("idle", 1, TimeUnit.SECONDS);
+        idle.addUser(new TestUser("user"));
+        awaitClosed(idle, 2000);
+        assertTrue("Idle chat not evicted", idle.isClosed());
+    }
+
+    @Test
+    public void activityPostponesEviction() throws Exception {
+        newManager(1, 200, 0);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        TestUser user = new TestUser("user");
+
+        for (int i = 0; i < 10; i++) {
+            chat.addUser(user);
+            chat.removeUser(user);
+            Thread.sleep(50);
+        }
+        assertFalse("Active chat evicted", chat.isClosed());
+
+        awaitClosed(chat, 2000);
+        assertTrue(chat.isClosed());
+    }
+
+    @Test
+    public void joiningAnEvictedChatFails() throws Exception {
+        newManager(1, 50, 0);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        awaitClosed(chat, 2000);
+
+        try {
+            chat.addUser(new TestUser("user"));
+        } catch (IllegalStateException e) {
+            assertTrue(chat.getUsers().isEmpty());
+            assertFalse(manager.newChat("chat", 1, TimeUnit.SECONDS).isClosed());
+            return;
+        }
+        throw new AssertionError("User joined a closed chat");
+    }
+
+    @Test
+    public void evictionRacesWithJoinAndLeave() throws Exception {
+        final int numChats = 4;
+        final int numThreads = 8;
+        final int numIterations = 500;
+
+        newManager(numChats, 10, 0);
+        AtomicInteger rejectedJoins = new AtomicInteger();
+        AtomicInteger evictions = new AtomicInteger();
+        manager.newUser(new TestUser("observer") {
+            @Override
+            public void chatClosed(Chat chat) {
+                evictions.incrementAndGet();
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> results = new ArrayList<>();
+
+        for (int t = 0; t < numThreads; t++) {
+            TestUser user = new TestUser("user" + t);
+            manager.newUser(user);
+            results.add(executor.submit(() -> {
+                for (int i = 0; i < numIterations; i++) {
+                    CompletableFuture<Chat> future = manager.newChatAsync("chat" + (i % numChats), 5,
+                            TimeUnit.SECONDS);
+                    Chat chat = future.get();
+                    // Give the evictor a chance to close it before we get in
+                    Thread.sleep(i % 11 == 0 ? 15 : 0);
+                    try {
+                        chat.addUser(user);
+                    } catch (IllegalStateException e) {
+                        rejectedJoins.incrementAndGet();
+                        assertTrue(chat.isClosed());
+                        continue;
+                    }
+                    // Joined chats are never evicted under their users
+                    assertFalse("Evicted with a user in it", chat.isClosed());
+                    assertNotNull(chat.getUser(user.getName()));
+                    Thread.sleep(i % 3);
+                    assertFalse("Evicted with a user in it", chat.isClosed());
+                    chat.removeUser(user);
+                    Thread.sleep(i % 13 == 0 ? 15 : 0);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        Thread.sleep(300);
+        assertTrue("Empty chats not evicted", manager.getChats().isEmpty());
+        assertEquals("Capacity leaked", numChats, manager.getCapacityScheduler().getAvailable());
+        assertTrue("Nothing evicted during the race", evictions.get() > numChats);
+        System.out.println("Evictions: " + evictions.get() + ", joins rejected: " + rejectedJoins.get());
+    }
+}
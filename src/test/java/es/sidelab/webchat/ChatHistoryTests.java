@@ -0,0 +1,254 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.EvictionPolicy;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.WebSocketUser;
+import es.sidelab.webchat.bench.NullWebSocketSession;
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChatHistoryTests {
+
+    private static class RecordingUser extends TestUser {
+        final List<ChatMessage> received = new CopyOnWriteArrayList<>();
+        final List<Integer> replays = new CopyOnWriteArrayList<>();
+
+        RecordingUser(String name) {
+            super(name);
+        }
+
+        @Override
+        public void newMessage(ChatMessage message) {
+            received.add(message);
+        }
+
+        @Override
+        public void messageHistory(Chat chat, List<ChatMessage> messages) {
+            replays.add(messages.size());
+            received.addAll(messages);
+        }
+    }
+
+    private static void awaitMessages(RecordingUser user, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (user.received.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static ChatManager newManager(int historySize) {
+        return new ChatManager(1, Dispatcher.getDefault(), EvictionPolicy.NONE, historySize);
+    }
+
+    @Test
+    public void newMemberGetsHistoryInOneReplay() throws Exception {
+        ChatManager manager = newManager(16);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        TestUser sender = new TestUser("sender");
+        for (int i = 0; i < 5; i++) {
+            chat.sendMessage(sender, "message " + i);
+        }
+
+        RecordingUser joiner = new RecordingUser("joiner");
+        manager.newUser(joiner);
+        chat.addUser(joiner);
+        chat.sendMessage(sender, "live");
+        awaitMessages(joiner, 6);
+
+        assertEquals("History not replayed at once", List.of(5), joiner.replays);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("message " + i, joiner.received.get(i).getMessage());
+        }
+        assertEquals("live", joiner.received.get(5).getMessage());
+    }
+
+    @Test
+    public void historyKeepsOnlyTheLastMessages() throws Exception {
+        ChatManager manager = newManager(8);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        TestUser sender = new TestUser("sender");
+        for (int i = 0; i < 20; i++) {
+            chat.sendMessage(sender, Integer.toString(i));
+        }
+
+        List<ChatMessage> history = chat.getHistory();
+        assertEquals(8, history.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(Integer.toString(12 + i), history.get(i).getMessage());
+        }
+    }
+
+    @Test
+    public void replayIsOneWebSocketFrame() throws Exception {
+        ChatManager manager = newManager(16);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        TestUser sender = new TestUser("sender");
+        for (int i = 0; i < 3; i++) {
+            chat.sendMessage(sender, "message " + i);
+        }
+
+        List<String> frames = new CopyOnWriteArrayList<>();
+        NullWebSocketSession session = new NullWebSocketSession("joiner") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) {
+                frames.add((String) message.getPayload());
+            }
+        };
+        User joiner = new WebSocketUser(session, "joiner", "007AFF");
+        manager.newUser(joiner);
+        chat.addUser(joiner);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (frames.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, frames.size());
+        assertTrue("Not a batch: " + frames.get(0), frames.get(0).startsWith("["));
+        assertEquals(3, frames.get(0).split("\"message\"").length - 1);
+    }
+
+    @Test
+    public void joinersRacingWithSendersGetEveryMessageOnce() throws Exception {
+        final int numSenders = 4;
+        final int numMessages = 500;
+        final int numJoiners = 20;
+
+        // Large enough mailboxes that a slow joiner never drops messages
+        Dispatcher dispatcher = new Dispatcher(DispatchMode.PLATFORM, 4, 2 * numSenders * numMessages,
+                OverflowPolicy.DROP_NEWEST);
+        ChatManager manager = new ChatManager(1, dispatcher, EvictionPolicy.NONE, numSenders * numMessages);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(numSenders + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+
+        for (int s = 0; s < numSenders; s++) {
+            TestUser sender = new TestUser("sender" + s);
+            results.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < numMessages; i++) {
+                    chat.sendMessage(sender, Integer.toString(i));
+                }
+                return null;
+            }));
+        }
+        List<RecordingUser> joiners = new ArrayList<>();
+        results.add(executor.submit(() -> {
+            start.await();
+            for (int j = 0; j < numJoiners; j++) {
+                RecordingUser joiner = new RecordingUser("joiner" + j);
+                manager.newUser(joiner);
+                chat.addUser(joiner);
+                joiners.add(joiner);
+                Thread.sleep(1);
+            }
+            return null;
+        }));
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        for (RecordingUser joiner : joiners) {
+            awaitMessages(joiner, numSenders * numMessages);
+            assertEquals(joiner + " got duplicates or gaps", numSenders * numMessages, joiner.received.size());
+
+            boolean[] seen = new boolean[numSenders * numMessages];
+            Map<String, Integer> lastBySender = new HashMap<>();
+            for (ChatMessage message : joiner.received) {
+                int sequence = (int) message.getSequence();
+                assertTrue("Duplicated " + sequence, !seen[sequence]);
+                seen[sequence] = true;
+
+                int number = Integer.parseInt(message.getMessage());
+                Integer last = lastBySender.put(message.getUser().getName(), number);
+                assertTrue("Out of order for " + joiner, last == null || last < number);
+            }
+        }
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void membersGetMessagesInTheOrderOfTheHistory() throws Exception {
+        final int numSenders = 4;
+        final int numMessages = 500;
+        Dispatcher dispatcher = new Dispatcher(DispatchMode.PLATFORM, 4, 2 * numSenders * numMessages,
+                OverflowPolicy.DROP_NEWEST);
+        ChatManager manager = new ChatManager(1, dispatcher, EvictionPolicy.NONE, 16);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        List<RecordingUser> members = new ArrayList<>();
+        for (int m = 0; m < 3; m++) {
+            RecordingUser member = new RecordingUser("member" + m);
+            manager.newUser(member);
+            chat.addUser(member);
+            members.add(member);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numSenders);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int s = 0; s < numSenders; s++) {
+            TestUser sender = new TestUser("sender" + s);
+            results.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < numMessages; i++) {
+                    chat.sendMessage(sender, Integer.toString(i));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        for (RecordingUser member : members) {
+            awaitMessages(member, numSenders * numMessages);
+            long last = -1;
+            for (ChatMessage message : member.received) {
+                assertTrue("Not in history order for " + member, message.getSequence() > last);
+                last = message.getSequence();
+            }
+        }
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void messagesToAClosedChatAreDropped() throws Exception {
+        ChatManager manager = newManager(16);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        RecordingUser member = new RecordingUser("member");
+        manager.newUser(member);
+        chat.addUser(member);
+
+        chat.close();
+        chat.sendMessage(member, "too late");
+
+        assertTrue(chat.getHistory().isEmpty());
+        assertEquals(0, chat.getMessageCount());
+        Thread.sleep(100);
+        assertTrue(member.received.isEmpty());
+    }
+}
@@ -0,0 +1,100 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.User;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChatMembershipTests {
+
+    private Dispatcher dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST);
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private static Set<String> names(Chat chat) {
+        Set<String> names = new HashSet<>();
+        for (User user : chat.getUsers()) {
+            names.add(user.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void membersMatchTheUsersAfterConcurrentJoinsAndLeaves() throws Exception {
+        final int threads = 4;
+        final int usersPerThread = 200;
+
+        ChatManager manager = new ChatManager(1, dispatcher);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.submit(() -> {
+                for (int i = 0; i < usersPerThread; i++) {
+                    TestUser user = new TestUser("user" + thread + "-" + i);
+                    chat.addUser(user);
+                    // Every other user joins twice and every fourth one leaves
+                    if (i % 2 == 0) {
+                        chat.addUser(user);
+                    }
+                    if (i % 4 == 0) {
+                        chat.removeUser(user);
+                    }
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        Set<String> expected = new HashSet<>();
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < usersPerThread; i++) {
+                if (i % 4 != 0) {
+                    expected.add("user" + t + "-" + i);
+                }
+            }
+        }
+        assertEquals(expected.size(), chat.getUsers().size());
+        assertEquals(expected, names(chat));
+        for (String name : expected) {
+            assertEquals(name, chat.getUser(name).getName());
+        }
+        assertNull(chat.getUser("user0-0"));
+    }
+
+    @Test
+    public void rejoiningReplacesTheMember() throws Exception {
+        ChatManager manager = new ChatManager(1, dispatcher);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        chat.addUser(new TestUser("first"));
+        chat.addUser(new TestUser("second"));
+        chat.addUser(new TestUser("first"));
+
+        assertEquals(2, chat.getUsers().size());
+        assertEquals(Set.of("first", "second"), names(chat));
+
+        chat.removeUser(new TestUser("first"));
+        chat.removeUser(new TestUser("unknown"));
+        assertEquals(Set.of("second"), names(chat));
+    }
+}
@@ -0,0 +1,179 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.BatchPolicy;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+public class ChatShardingTests {
+
+    private static final int SHARDS = 4;
+
+    private Dispatcher dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST,
+            BatchPolicy.NONE, SHARDS);
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private static class CountingUser extends TestUser {
+
+        final AtomicInteger newChats = new AtomicInteger();
+        final AtomicInteger closedChats = new AtomicInteger();
+
+        CountingUser(String name) {
+            super(name);
+        }
+
+        @Override
+        public void newChat(Chat chat) {
+            newChats.incrementAndGet();
+        }
+
+        @Override
+        public void chatClosed(Chat chat) {
+            closedChats.incrementAndGet();
+        }
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void chatsAndUsersOfEveryShardAreFound() throws Exception {
+        final int numChats = 20;
+        final int numUsers = 100;
+
+        ChatManager manager = new ChatManager(numChats, dispatcher);
+        Set<String> chatNames = new HashSet<>();
+        for (int i = 0; i < numChats; i++) {
+            Chat chat = manager.newChat("chat" + i, 1, TimeUnit.SECONDS);
+            assertSame(chat, manager.getChat("chat" + i));
+            chatNames.add(chat.getName());
+        }
+        Set<String> userNames = new HashSet<>();
+        for (int i = 0; i < numUsers; i++) {
+            manager.newUser(new TestUser("user" + i));
+            userNames.add("user" + i);
+        }
+
+        assertEquals(numChats, manager.getChats().size());
+        Set<String> listedChats = new HashSet<>();
+        manager.getChats().forEach(chat -> listedChats.add(chat.getName()));
+        assertEquals(chatNames, listedChats);
+
+        assertEquals(numUsers, manager.getUsers().size());
+        Set<String> listedUsers = new HashSet<>();
+        manager.getUsers().forEach(user -> listedUsers.add(user.getName()));
+        assertEquals(userNames, listedUsers);
+        for (String name : userNames) {
+            assertEquals(name, manager.getUser(name).getName());
+        }
+    }
+
+    @Test
+    public void everyUserIsToldAboutNewAndClosedChats() throws Exception {
+        final int numChats = 10;
+        final int numUsers = 200;
+
+        ChatManager manager = new ChatManager(numChats, dispatcher);
+        List<CountingUser> users = new ArrayList<>();
+        for (int i = 0; i < numUsers; i++) {
+            CountingUser user = new CountingUser("user" + i);
+            manager.newUser(user);
+            users.add(user);
+        }
+
+        for (int i = 0; i < numChats; i++) {
+            Chat chat = manager.newChat("chat" + i, 1, TimeUnit.SECONDS);
+            manager.closeChat(chat);
+        }
+
+        for (CountingUser user : users) {
+            awaitCount(user.closedChats, numChats);
+            assertEquals(user.getName() + " missed new chats", numChats, user.newChats.get());
+            assertEquals(user.getName() + " missed closed chats", numChats, user.closedChats.get());
+        }
+    }
+
+    @Test
+    public void usersArrivingAfterAChatAreNotToldAboutIt() throws Exception {
+        ChatManager manager = new ChatManager(1, dispatcher);
+        manager.newChat("chat", 1, TimeUnit.SECONDS);
+
+        List<CountingUser> users = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            CountingUser user = new CountingUser("user" + i);
+            manager.newUser(user);
+            users.add(user);
+        }
+        manager.awaitNotifications();
+        Thread.sleep(100);
+
+        for (CountingUser user : users) {
+            assertEquals(user.getName() + " told about an older chat", 0, user.newChats.get());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void cancelledCreationDoesNotBlockTheShardLoop() throws Exception {
+        Dispatcher single = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST,
+                BatchPolicy.NONE, 1);
+        try {
+            ChatManager manager = new ChatManager(10, single);
+            CountingUser lobby = new CountingUser("lobby");
+            manager.newUser(lobby);
+
+            // Creations complete on the loop, so this holds it until released,
+            // unless the creation completed before the callback was added
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch blocked = new CountDownLatch(1);
+            for (int i = 0; i < 5 && blocked.getCount() > 0; i++) {
+                manager.newChatAsync("blocker" + i, 1, TimeUnit.SECONDS).thenRun(() -> {
+                    if (!Thread.currentThread().getName().startsWith("webchat-shard-")) {
+                        return;
+                    }
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                blocked.await(1, TimeUnit.SECONDS);
+            }
+            assertEquals("Shard loop not blocked", 0, blocked.getCount());
+            CompletableFuture<Chat> cancelled = manager.newChatAsync("cancelled", 1, TimeUnit.SECONDS);
+            cancelled.cancel(false);
+            release.countDown();
+
+            assertNotNull(manager.newChat("after", 5, TimeUnit.SECONDS));
+            awaitCount(lobby.closedChats, 1);
+            assertEquals(1, lobby.closedChats.get());
+        } finally {
+            single.shutdown();
+        }
+    }
+}
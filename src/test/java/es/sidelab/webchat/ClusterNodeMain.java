@@ -0,0 +1,48 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.EvictionPolicy;
+import es.codeurjc.webchat.cluster.TcpClusterBus;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A chat node run in its own JVM by {@link ClusterTests}: it joins the room of
+ * the hub at the given port, says hello and waits to be told goodbye.
+ */
+public class ClusterNodeMain {
+
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        String nodeId = args[1];
+
+        CountDownLatch bye = new CountDownLatch(1);
+        TestUser user = new TestUser("user-" + nodeId) {
+            @Override
+            public void newMessage(ChatMessage message) {
+                if (message.getMessage().equals("bye")) {
+                    bye.countDown();
+                }
+            }
+        };
+
+        try (TcpClusterBus bus = new TcpClusterBus("localhost", port, nodeId)) {
+            ChatManager manager = new ChatManager(1, Dispatcher.getDefault(), EvictionPolicy.NONE, 16, null, bus);
+            manager.newUser(user);
+            Chat room = manager.newChat("room", 5, TimeUnit.SECONDS);
+            room.addUser(user);
+            room.sendMessage(user, "hello from " + nodeId);
+
+            if (!bye.await(20, TimeUnit.SECONDS)) {
+                System.exit(1);
+            }
+            room.removeUser(user);
+            System.out.println("bye received by " + nodeId);
+        }
+        System.exit(0);
+    }
+}
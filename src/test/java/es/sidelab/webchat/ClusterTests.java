@@ -0,0 +1,293 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.EvictionPolicy;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.cluster.ClusterBus;
+import es.codeurjc.webchat.cluster.LoopbackCluster;
+import es.codeurjc.webchat.cluster.TcpClusterBus;
+import es.codeurjc.webchat.cluster.TcpClusterHub;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClusterTests {
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    private static class RecordingUser extends TestUser {
+        final List<String> events = new CopyOnWriteArrayList<>();
+
+        RecordingUser(String name) {
+            super(name);
+        }
+
+        @Override
+        public void newChat(Chat chat) {
+            events.add("newChat " + chat.getName());
+        }
+
+        @Override
+        public void chatClosed(Chat chat) {
+            events.add("chatClosed " + chat.getName());
+        }
+
+        @Override
+        public void newUserInChat(Chat chat, User user) {
+            events.add("joined " + user.getName());
+        }
+
+        @Override
+        public void userExitedFromChat(Chat chat, User user) {
+            events.add("left " + user.getName());
+        }
+
+        @Override
+        public void newMessage(ChatMessage message) {
+            events.add(message.getUser().getName() + ": " + message.getMessage());
+        }
+    }
+
+    @After
+    public void close() throws Exception {
+        for (int i = resources.size() - 1; i >= 0; i--) {
+            resources.get(i).close();
+        }
+    }
+
+    private ChatManager node(ClusterBus bus) {
+        resources.add(bus);
+        return new ChatManager(1, Dispatcher.getDefault(), EvictionPolicy.NONE, 16, null, bus);
+    }
+
+    private static void await(String description, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + description);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void roomSpansNodes(ChatManager nodeA, ChatManager nodeB) throws Exception {
+        RecordingUser alice = new RecordingUser("alice");
+        RecordingUser bob = new RecordingUser("bob");
+        nodeA.newUser(alice);
+        nodeB.newUser(bob);
+
+        Chat roomA = nodeA.newChat("room", 1, TimeUnit.SECONDS);
+        roomA.addUser(alice);
+        await("the room on node B", () -> nodeB.getChat("room") != null);
+        await("bob being told about the room", () -> bob.events.contains("newChat room"));
+
+        Chat roomB = nodeB.newChat("room", 1, TimeUnit.SECONDS);
+        assertSame(roomB, nodeB.getChat("room"));
+        roomB.addUser(bob);
+        await("bob on node A", () -> alice.events.contains("joined bob"));
+        await("alice on node B", () -> roomB.getRemoteUsers().size() == 1);
+
+        roomA.sendMessage(alice, "hi bob");
+        roomB.sendMessage(bob, "hi alice");
+        await("alice's message", () -> bob.events.contains("alice: hi bob"));
+        await("bob's message", () -> alice.events.contains("bob: hi alice"));
+        assertEquals("Delivered twice", 1, bob.events.stream().filter("alice: hi bob"::equals).count());
+
+        roomB.removeUser(bob);
+        await("bob leaving", () -> alice.events.contains("left bob"));
+
+        roomA.close();
+        await("the room closing on node B", () -> nodeB.getChat("room") == null);
+        await("bob being told", () -> bob.events.contains("chatClosed room"));
+    }
+
+    @Test
+    public void loopbackRoomSpansNodes() throws Exception {
+        LoopbackCluster cluster = new LoopbackCluster(10);
+        resources.add(cluster::shutdown);
+        roomSpansNodes(node(cluster.newNode("a")), node(cluster.newNode("b")));
+        assertEquals(10, cluster.getAvailableChats());
+    }
+
+    @Test
+    public void tcpRoomSpansNodes() throws Exception {
+        TcpClusterHub hub = new TcpClusterHub(0, 10);
+        resources.add(hub);
+        roomSpansNodes(node(new TcpClusterBus("localhost", hub.getPort(), "a")),
+                node(new TcpClusterBus("localhost", hub.getPort(), "b")));
+        await("the slot to be released", () -> hub.getAvailableChats() == 10);
+    }
+
+    @Test
+    public void remoteMembersAreForgottenWhenTheirChatCloses() throws Exception {
+        LoopbackCluster cluster = new LoopbackCluster(10);
+        resources.add(cluster::shutdown);
+        ChatManager nodeA = node(cluster.newNode("a"));
+        ChatManager nodeB = node(cluster.newNode("b"));
+
+        Chat room = nodeA.newChat("room", 1, TimeUnit.SECONDS);
+        nodeB.newChat("room", 1, TimeUnit.SECONDS);
+        RecordingUser alice = new RecordingUser("alice");
+        nodeA.newUser(alice);
+        room.addUser(alice);
+        await("alice held on node B", () -> nodeB.getIdentities().size() == 1);
+
+        room.close();
+        await("alice forgotten on node B", () -> nodeB.getIdentities().size() == 0);
+        assertNull(nodeB.getChat("room"));
+    }
+
+    @Test
+    public void capacityIsSharedByTheCluster() throws Exception {
+        LoopbackCluster cluster = new LoopbackCluster(2);
+        resources.add(cluster::shutdown);
+        ChatManager nodeA = node(cluster.newNode("a"));
+        ChatManager nodeB = node(cluster.newNode("b"));
+
+        nodeA.newChat("first", 1, TimeUnit.SECONDS);
+        Chat second = nodeB.newChat("second", 1, TimeUnit.SECONDS);
+        // Joining an existing chat takes no new slot
+        assertNotNull(nodeA.newChat("second", 100, TimeUnit.MILLISECONDS));
+
+        try {
+            nodeB.newChat("third", 200, TimeUnit.MILLISECONDS);
+            fail("Created a chat over the cluster capacity");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+
+        second.close();
+        assertNotNull(nodeA.newChat("third", 1, TimeUnit.SECONDS));
+        assertNull(nodeB.getChat("second"));
+    }
+
+    @Test
+    public void nodesLeavingAndJoiningAreReconciled() throws Exception {
+        LoopbackCluster cluster = new LoopbackCluster(10);
+        resources.add(cluster::shutdown);
+        ChatManager nodeA = node(cluster.newNode("a"));
+        ClusterBus busB = cluster.newNode("b");
+        ChatManager nodeB = new ChatManager(1, Dispatcher.getDefault(), EvictionPolicy.NONE, 16, null, busB);
+
+        RecordingUser alice = new RecordingUser("alice");
+        nodeA.newUser(alice);
+        Chat roomA = nodeA.newChat("room", 1, TimeUnit.SECONDS);
+        roomA.addUser(alice);
+        nodeB.newChat("room", 1, TimeUnit.SECONDS).addUser(new TestUser("bob"));
+        await("bob on node A", () -> alice.events.contains("joined bob"));
+
+        busB.close();
+        await("bob's node leaving", () -> alice.events.contains("left bob"));
+        assertTrue(roomA.getRemoteUsers().isEmpty());
+
+        ChatManager nodeC = node(cluster.newNode("c"));
+        await("the room on a new node", () -> nodeC.getChat("room") != null);
+        await("alice on a new node", () -> nodeC.getChat("room").getRemoteUsers().size() == 1);
+    }
+
+    @Test
+    public void slotsOfANodeThatLeavesArePassedOnOrReleased() throws Exception {
+        LoopbackCluster cluster = new LoopbackCluster(10);
+        resources.add(cluster::shutdown);
+        ClusterBus busA = cluster.newNode("a");
+        ChatManager nodeA = new ChatManager(1, Dispatcher.getDefault(), EvictionPolicy.NONE, 16, null, busA);
+        ChatManager nodeB = node(cluster.newNode("b"));
+
+        nodeA.newChat("empty", 1, TimeUnit.SECONDS);
+        nodeA.newChat("shared", 1, TimeUnit.SECONDS);
+        await("the chats on node B", () -> nodeB.getChat("shared") != null);
+        Chat shared = nodeB.getChat("shared");
+        shared.addUser(new TestUser("bob"));
+        assertEquals(8, cluster.getAvailableChats());
+
+        busA.close();
+        await("the empty chat being released", () -> cluster.getAvailableChats() == 9);
+        assertEquals(Set.of("shared"), cluster.getChats());
+
+        // Node B holds the slot now
+        shared.close();
+        await("the shared chat being released", () -> cluster.getAvailableChats() == 10);
+    }
+
+    @Test
+    public void losingTheHubNeverFailsLocalChats() throws Exception {
+        TcpClusterHub hub = new TcpClusterHub(0, 10);
+        TcpClusterBus bus = new TcpClusterBus("localhost", hub.getPort(), "a");
+        ChatManager node = node(bus);
+        RecordingUser alice = new RecordingUser("alice");
+        TestUser bob = new TestUser("bob");
+        node.newUser(alice);
+        node.newUser(bob);
+        Chat room = node.newChat("room", 1, TimeUnit.SECONDS);
+        room.addUser(alice);
+        room.addUser(bob);
+
+        hub.close();
+        await("the connection being lost", () -> {
+            room.sendMessage(bob, "anyone?");
+            return bus.getDropped() > 0;
+        });
+
+        room.removeUser(bob);
+        node.removeUser(bob);
+        assertNull(node.getUser("bob"));
+        await("bob leaving", () -> alice.events.contains("left bob"));
+        assertTrue(alice.events.contains("bob: anyone?"));
+    }
+
+    @Test
+    public void nodesInSeparateJvms() throws Exception {
+        TcpClusterHub hub = new TcpClusterHub(0, 10);
+        resources.add(hub);
+        ChatManager local = node(new TcpClusterBus("localhost", hub.getPort(), "local"));
+        RecordingUser alice = new RecordingUser("alice");
+        local.newUser(alice);
+        Chat room = local.newChat("room", 1, TimeUnit.SECONDS);
+        room.addUser(alice);
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        for (String nodeId : new String[] { "jvm1", "jvm2" }) {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ClusterNodeMain.class.getName(), Integer.toString(hub.getPort()), nodeId)
+                    .redirectErrorStream(true).start());
+        }
+        try {
+            await("hello from both JVMs", () -> alice.events.contains("user-jvm1: hello from jvm1")
+                    && alice.events.contains("user-jvm2: hello from jvm2"));
+            room.sendMessage(alice, "bye");
+
+            for (Process process : processes) {
+                assertTrue("Node did not finish", process.waitFor(20, TimeUnit.SECONDS));
+                String output;
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                    output = reader.lines().reduce("", (a, b) -> a + b + "\n");
+                }
+                assertEquals(output, 0, process.exitValue());
+                assertTrue(output, output.contains("bye received"));
+            }
+        } finally {
+            processes.forEach(Process::destroyForcibly);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.User;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares platform and virtual dispatch modes delivering one message to every
+ * simulated user. Each delivery blocks for a while, as a socket write does.
+ * Run with {@code mvn test -Pload} on Java 21 or newer.
+ */
+public class DispatchModeLoadTests {
+    private final int roomSize = 100;
+    private final long blockingWriteMillis = 1;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    @Before
+    public void onlyWhenRequested() {
+        Assume.assumeTrue("Load tests disabled, run with -Pload", Boolean.getBoolean("webchat.loadtests"));
+    }
+
+    private static class Result {
+        long heapBytes;
+        long p50Micros;
+        long p99Micros;
+        long maxMicros;
+        long totalMillis;
+    }
+
+    private Result run(DispatchMode mode, int numUsers) throws Exception {
+        Dispatcher dispatcher = new Dispatcher(mode, Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        int numRooms = numUsers / roomSize;
+        ChatManager manager = new ChatManager(numRooms, dispatcher);
+        CountDownLatch cl = new CountDownLatch(numUsers);
+        long[] latencies = new long[numUsers];
+        AtomicInteger received = new AtomicInteger();
+        AtomicLong sentAt = new AtomicLong();
+
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        List<Chat> rooms = new ArrayList<>();
+        for (int r = 0; r < numRooms; r++) {
+            Chat chat = manager.newChat("room-" + r, 5, TimeUnit.SECONDS);
+            rooms.add(chat);
+            for (int i = 0; i < roomSize; i++) {
+                TestUser user = new TestUser("user-" + r + "-" + i) {
+                    @Override
+                    public void newMessage(Chat chat, User user, String message) {
+                        try {
+                            Thread.sleep(blockingWriteMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        latencies[received.getAndIncrement()] = System.nanoTime() - sentAt.get();
+                        cl.countDown();
+                    }
+                };
+                manager.newUser(user);
+                chat.addUser(user);
+            }
+        }
+
+        TestUser sender = new TestUser("sender");
+        Result result = new Result();
+        long peakHeap = 0;
+        sentAt.set(System.nanoTime());
+        for (Chat chat : rooms) {
+            chat.sendMessage(sender, "Load message");
+        }
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+        while (!cl.await(10, TimeUnit.MILLISECONDS)) {
+            assertTrue("Not every user received the message", System.nanoTime() < deadline);
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+        }
+        result.totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt.get());
+        result.heapBytes = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed()) - heapBefore;
+
+        Arrays.sort(latencies);
+        result.p50Micros = TimeUnit.NANOSECONDS.toMicros(latencies[numUsers / 2]);
+        result.p99Micros = TimeUnit.NANOSECONDS.toMicros(latencies[(int) (numUsers * 0.99)]);
+        result.maxMicros = TimeUnit.NANOSECONDS.toMicros(latencies[numUsers - 1]);
+
+        dispatcher.shutdown();
+        return result;
+    }
+
+    @Test
+    public void platformVersusVirtual() throws Exception {
+        List<DispatchMode> modes = new ArrayList<>(Arrays.asList(DispatchMode.PLATFORM));
+        if (Dispatcher.isVirtualThreadSupported()) {
+            modes.add(DispatchMode.VIRTUAL);
+        } else {
+            System.out.println("Virtual threads not supported on Java " + System.getProperty("java.version"));
+        }
+
+        System.out.println(String.format("%-8s %8s %12s %10s %10s %10s %10s",
+                "mode", "users", "heap(MB)", "p50(us)", "p99(us)", "max(us)", "total(ms)"));
+        for (int numUsers : new int[] {10_000, 50_000, 100_000}) {
+            for (DispatchMode mode : modes) {
+                Result r = run(mode, numUsers);
+                System.out.println(String.format("%-8s %8d %12.1f %10d %10d %10d %10d",
+                        mode, numUsers, r.heapBytes / (1024.0 * 1024.0), r.p50Micros, r.p99Micros,
+                        r.maxMicros, r.totalMillis));
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.User;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DispatcherScalingTests {
+    private final int poolSize = 4;
+    private final Dispatcher dispatcher = new Dispatcher(poolSize);
+    private final ChatManager manager = new ChatManager(10, dispatcher);
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private int deliverToUsers(Chat chat, int numUsers) throws Exception {
+        CountDownLatch cl = new CountDownLatch(numUsers);
+        List<User> added = new ArrayList<>();
+        for (int i = 0; i < numUsers; i++) {
+            TestUser user = new TestUser("user-" + numUsers + "-" + i) {
+                @Override
+                public void newMessage(Chat chat, User user, String message) {
+                    cl.countDown();
+                }
+            };
+            manager.newUser(user);
+            chat.addUser(user);
+            added.add(user);
+        }
+
+        TestUser sender = new TestUser("sender-" + numUsers);
+        manager.newUser(sender);
+        chat.sendMessage(sender, "Hello " + numUsers);
+        assertTrue("Messages not delivered", cl.await(30, TimeUnit.SECONDS));
+        int liveThreads = threads.getThreadCount();
+
+        for (User user : added) {
+            chat.removeUser(user);
+            manager.removeUser(user);
+        }
+        manager.removeUser(sender);
+        return liveThreads;
+    }
+
+    @Test
+    public void threadCountStaysFlatAsUsersGrow() throws Exception {
+        Chat chat = manager.newChat("ScalingChat", 5, TimeUnit.SECONDS);
+
+        int baseline = deliverToUsers(chat, 10);
+        for (int numUsers : new int[] {100, 1000, 5000}) {
+            int liveThreads = deliverToUsers(chat, numUsers);
+            System.out.println(numUsers + " users -> " + liveThreads + " live threads (baseline " + baseline + ")");
+            assertTrue("Thread count grew with users: " + liveThreads + " > " + baseline,
+                    liveThreads <= baseline + poolSize);
+        }
+    }
+
+    @Test
+    public void removedUsersStopReceivingEvents() throws Exception {
+        Chat chat = manager.newChat("RemovedChat", 5, TimeUnit.SECONDS);
+        CountDownLatch cl = new CountDownLatch(1);
+        TestUser leaving = new TestUser("leaving") {
+            @Override
+            public void newMessage(Chat chat, User user, String message) {
+                cl.countDown();
+            }
+        };
+        TestUser sender = new TestUser("sender");
+        manager.newUser(leaving);
+        manager.newUser(sender);
+        chat.addUser(leaving);
+        chat.addUser(sender);
+
+        chat.removeUser(leaving);
+        manager.removeUser(leaving);
+        chat.sendMessage(sender, "Nobody listening");
+
+        assertTrue("Removed user received a message", !cl.await(200, TimeUnit.MILLISECONDS));
+        assertTrue("Removed user still registered", manager.getUser("leaving") == null);
+    }
+
+    @Test
+    public void virtualModeFallsBackToPlatformThreadsWhenUnsupported() {
+        System.setProperty("webchat.dispatcher.mode", "virtual");
+        Dispatcher configured = Dispatcher.fromSystemProperties();
+        try {
+            assertEquals(Dispatcher.isVirtualThreadSupported() ? DispatchMode.VIRTUAL : DispatchMode.PLATFORM,
+                    configured.getMode());
+        } finally {
+            configured.shutdown();
+            System.clearProperty("webchat.dispatcher.mode");
+        }
+    }
+}
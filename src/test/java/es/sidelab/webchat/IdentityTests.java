@@ -0,0 +1,173 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.BinaryFrameEncoder;
+import es.codeurjc.webchat.BinaryProtocol;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.EvictionPolicy;
+import es.codeurjc.webchat.Identity;
+import es.codeurjc.webchat.JsonFrameEncoder;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.persistence.MessageLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.web.socket.TextMessage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IdentityTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void registeredUserKeepsItsIdUntilItLeaves() {
+        ChatManager manager = new ChatManager(2);
+        TestUser user = new TestUser("user");
+
+        manager.newUser(user);
+        Identity identity = manager.getIdentities().of(user);
+        assertSame(identity, manager.getIdentities().of(new TestUser("user")));
+        assertEquals(1, manager.getIdentities().size());
+
+        manager.removeUser(user);
+        assertEquals(0, manager.getIdentities().size());
+
+        // Ids are not reused, so clients never mistake one user for another
+        manager.newUser(user);
+        assertNotEquals(identity.getId(), manager.getIdentities().of(user).getId());
+    }
+
+    @Test
+    public void lookupsAreNotInterned() {
+        ChatManager manager = new ChatManager(1);
+        Identity stranger = manager.getIdentities().of(new TestUser("stranger"));
+        assertSame(stranger, manager.getIdentities().of(new TestUser("stranger")));
+        assertEquals(0, manager.getIdentities().size());
+
+        // Registering keeps the id it was looked up with
+        TestUser user = new TestUser("stranger");
+        manager.newUser(user);
+        assertSame(stranger, manager.getIdentities().of(user));
+        manager.removeUser(user);
+        assertEquals(0, manager.getIdentities().size());
+
+        // Only the last names looked up are remembered
+        Identity first = manager.getIdentities().user("first", "007AFF");
+        for (int i = 0; i < 2048; i++) {
+            manager.getIdentities().user("author" + i, "007AFF");
+        }
+        assertEquals(0, manager.getIdentities().size());
+        assertNotEquals(first.getId(), manager.getIdentities().user("first", "007AFF").getId());
+    }
+
+    @Test
+    public void sessionsShareTheIdsOfTheServer() throws Exception {
+        Chat chat = new ChatManager(1).newChat("room", 1, TimeUnit.SECONDS);
+        ChatMessage message = new ChatMessage(chat, new TestUser("sender"), "hello");
+
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer frame = (ByteBuffer) new BinaryFrameEncoder().newMessage(message).getPayload();
+            assertEquals(BinaryProtocol.CHAT, frame.get());
+            assertEquals(chat.getIdentity().getId(), BinaryProtocol.readVarint(frame));
+            BinaryProtocol.readString(frame);
+            assertEquals(BinaryProtocol.USER, frame.get());
+            assertEquals(message.getSender().getId(), BinaryProtocol.readVarint(frame));
+        }
+    }
+
+    @Test
+    public void escapedNamesBuildValidJson() throws Exception {
+        Chat chat = new ChatManager(1).newChat("\"quoted\" \\ room", 1, TimeUnit.SECONDS);
+        TestUser user = new TestUser("ñandú\n\"x\"");
+        ObjectMapper mapper = new ObjectMapper();
+
+        JsonNode message = mapper.readTree(((TextMessage) JsonFrameEncoder.INSTANCE
+                .newMessage(new ChatMessage(chat, user, "say \"hi\"\t"))).getPayload());
+        assertEquals(chat.getName(), message.get("chat").asText());
+        assertEquals(user.getName(), message.get("name").asText());
+        assertEquals("007AFF", message.get("color").asText());
+        assertEquals("say \"hi\"\t", message.get("message").asText());
+
+        JsonNode joined = mapper.readTree(((TextMessage) JsonFrameEncoder.INSTANCE.newUserInChat(chat, user))
+                .getPayload());
+        assertEquals("system", joined.get("type").asText());
+        assertEquals(chat.getName(), joined.get("chat").asText());
+        assertEquals("New user '" + user.getName() + "' in chat '" + chat.getName() + "'",
+                joined.get("message").asText());
+    }
+
+    @Test
+    public void eventsDeliveredAfterUnregisteringKeepTheIdentity() throws Exception {
+        ChatManager manager = new ChatManager(1);
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        AtomicReference<User> left = new AtomicReference<>();
+        CountDownLatch exited = new CountDownLatch(1);
+        TestUser member = new TestUser("member") {
+            @Override
+            public void userExitedFromChat(Chat chat, User user) {
+                left.set(user);
+                exited.countDown();
+            }
+        };
+        TestUser leaving = new TestUser("leaving");
+        manager.newUser(member);
+        manager.newUser(leaving);
+        chat.addUser(member);
+        chat.addUser(leaving);
+        int id = manager.getIdentities().of(leaving).getId();
+
+        chat.removeUser(leaving);
+        manager.removeUser(leaving);
+
+        assertTrue("Exit not delivered", exited.await(5, TimeUnit.SECONDS));
+        assertEquals("leaving", left.get().getName());
+        assertEquals(id, manager.getIdentities().of(left.get()).getId());
+        // Only the member is still interned
+        assertEquals(1, manager.getIdentities().size());
+    }
+
+    @Test
+    public void restoredAuthorsKeepTheirIdUntilTheChatCloses() throws Exception {
+        try (MessageLog log = new MessageLog(folder.getRoot().toPath(), 4096, true)) {
+            log.append("room", "author", "FF0000", "before the restart").get();
+            ChatManager manager = new ChatManager(1, Dispatcher.getDefault(), EvictionPolicy.NONE, 4, log);
+            Chat room = manager.getChat("room");
+            Identity author = room.getHistory().get(0).getSender();
+            assertEquals(1, manager.getIdentities().size());
+
+            // Back with another color, under the same id
+            TestUser user = new TestUser("author") {
+                @Override
+                public String getColor() {
+                    return "00FF00";
+                }
+            };
+            manager.newUser(user);
+            assertSame(author, manager.getIdentities().of(user));
+            assertEquals("00FF00", author.getColor());
+
+            // Still held by the history of the room
+            manager.removeUser(user);
+            assertEquals(1, manager.getIdentities().size());
+
+            manager.closeChat(room);
+            assertEquals(0, manager.getIdentities().size());
+            manager.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.InboundMessage;
+import es.codeurjc.webchat.JsonMessageDecoder;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JsonMessageDecoderTests {
+    private final JsonMessageDecoder decoder = new JsonMessageDecoder();
+
+    @Test
+    public void decodesJoin() throws IOException {
+        InboundMessage msg = decoder.decode("{\"chat\":\"room\",\"user\":\"alice\"}");
+        assertEquals(InboundMessage.Type.JOIN, msg.getType());
+        assertEquals("room", msg.getChat());
+        assertEquals("alice", msg.getUser());
+        assertFalse(msg.isLobby());
+    }
+
+    @Test
+    public void decodesLobbySubscription() throws IOException {
+        InboundMessage msg = decoder.decode("{\"chat\":\"room\",\"user\":\"alice\",\"lobby\":true}");
+        assertEquals(InboundMessage.Type.JOIN, msg.getType());
+        assertTrue(msg.isLobby());
+    }
+
+    @Test
+    public void decodesMessageIgnoringUnknownFields() throws IOException {
+        InboundMessage msg = decoder.decode(
+                "{\"extra\":{\"nested\":[1,2]},\"message\":\"hi \\\"there\\\"\",\"user\":\"alice\"}");
+        assertEquals(InboundMessage.Type.MESSAGE, msg.getType());
+        assertEquals("hi \"there\"", msg.getMessage());
+    }
+
+    @Test
+    public void nullChatIsAMessage() throws IOException {
+        InboundMessage msg = decoder.decode("{\"chat\":null,\"message\":42}");
+        assertEquals(InboundMessage.Type.MESSAGE, msg.getType());
+        assertEquals("42", msg.getMessage());
+        assertNull(msg.getChat());
+    }
+
+    @Test
+    public void messageWithAChatGoesToThatChat() throws IOException {
+        InboundMessage msg = decoder.decode("{\"chat\":\"room\",\"message\":\"hi\"}");
+        assertEquals(InboundMessage.Type.MESSAGE, msg.getType());
+        assertEquals("room", msg.getChat());
+        assertEquals("hi", msg.getMessage());
+    }
+
+    @Test
+    public void decodesLeave() throws IOException {
+        InboundMessage msg = decoder.decode("{\"leave\":\"room\"}");
+        assertEquals(InboundMessage.Type.LEAVE, msg.getType());
+        assertEquals("room", msg.getChat());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNonObjects() throws IOException {
+        decoder.decode("[\"chat\"]");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFramesWithoutMessageOrChat() throws IOException {
+        decoder.decode("{\"user\":\"nobody\"}");
+    }
+}
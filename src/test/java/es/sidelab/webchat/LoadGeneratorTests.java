@@ -0,0 +1,48 @@
+package es.sidelab.webchat;
+
+import es.sidelab.webchat.load.LoadGenerator;
+import org.junit.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTests {
+
+    @Test
+    public void smallRunDeliversEveryMessage() throws Exception {
+        smallRun(false);
+    }
+
+    @Test
+    public void reactiveServerDeliversEveryMessage() throws Exception {
+        smallRun(true);
+    }
+
+    private void smallRun(boolean reactive) throws Exception {
+        LoadGenerator.Options options = new LoadGenerator.Options();
+        options.clients = 20;
+        options.rooms = 2;
+        options.messagesPerSecond = 100;
+        options.duration = Duration.ofSeconds(1);
+
+        ConfigurableApplicationContext server = LoadGenerator.startServer(reactive);
+        try {
+            options.uri = LoadGenerator.chatUri(server);
+            LoadGenerator.Report report = new LoadGenerator(options).run();
+
+            assertEquals(0, report.failedClients);
+            assertEquals(20, report.connect.getCount());
+            assertEquals(20, report.join.getCount());
+            assertTrue("Too few messages sent: " + report.sent, report.sent >= 90);
+            // Every message reaches the ten members of its room
+            assertEquals(report.sent * 10, report.expected);
+            assertEquals(report.expected, report.received);
+            assertEquals(report.received, report.latency.getCount());
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.User;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LobbyTests {
+
+    private Dispatcher dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST);
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private static class LobbyUser extends TestUser {
+
+        final AtomicInteger notifications = new AtomicInteger();
+        final List<List<String>> digests = new CopyOnWriteArrayList<>();
+        final CountDownLatch firstDigest = new CountDownLatch(1);
+
+        LobbyUser(String name) {
+            super(name);
+        }
+
+        @Override
+        public void newChat(Chat chat) {
+            notifications.incrementAndGet();
+        }
+
+        @Override
+        public void chatClosed(Chat chat) {
+            notifications.incrementAndGet();
+        }
+
+        @Override
+        public void chatListChanged(List<Chat> opened, List<Chat> closed) {
+            List<String> digest = new ArrayList<>();
+            closed.forEach(chat -> digest.add("-" + chat.getName()));
+            opened.forEach(chat -> digest.add("+" + chat.getName()));
+            digests.add(digest);
+            firstDigest.countDown();
+        }
+    }
+
+    @Test
+    public void onlyLobbyUsersHearAboutChats() throws Exception {
+        ChatManager manager = new ChatManager(5, dispatcher);
+        LobbyUser inLobby = new LobbyUser("inLobby");
+        LobbyUser inRoom = new LobbyUser("inRoom");
+        manager.newUser(inLobby, true);
+        manager.newUser(inRoom, false);
+
+        for (int i = 0; i < 5; i++) {
+            manager.closeChat(manager.newChat("chat" + i, 1, TimeUnit.SECONDS));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (inLobby.notifications.get() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, inLobby.notifications.get());
+        assertEquals(0, inRoom.notifications.get());
+    }
+
+    @Test
+    public void roomMembersOutsideTheLobbyStillHearAboutTheirRoom() throws Exception {
+        ChatManager manager = new ChatManager(1, dispatcher);
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+
+        CountDownLatch joined = new CountDownLatch(1);
+        TestUser member = new TestUser("member") {
+            @Override
+            public void newUserInChat(Chat chat, User user) {
+                joined.countDown();
+            }
+        };
+        manager.newUser(member, false);
+        chat.addUser(member);
+        chat.addUser(new TestUser("other"));
+
+        assertTrue("Member not told about the new user", joined.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void membersAreToldTheirChatClosedOnce() throws Exception {
+        ChatManager manager = new ChatManager(5, dispatcher);
+        LobbyUser inLobby = new LobbyUser("inLobby");
+        LobbyUser inRoom = new LobbyUser("inRoom");
+        manager.newUser(inLobby, true);
+        manager.newUser(inRoom, false);
+
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        chat.addUser(inLobby);
+        chat.addUser(inRoom);
+        manager.closeChat(chat);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((inLobby.notifications.get() < 2 || inRoom.notifications.get() < 1)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(2, inLobby.notifications.get());
+        assertEquals(1, inRoom.notifications.get());
+    }
+
+    @Test
+    public void digestLeavesOutTheChatsAMemberWasToldAbout() throws Exception {
+        ChatManager manager = new ChatManager(10, dispatcher);
+        manager.coalesceLobby(200, TimeUnit.MILLISECONDS);
+        LobbyUser member = new LobbyUser("member");
+        LobbyUser other = new LobbyUser("other");
+        manager.newUser(member);
+        manager.newUser(other);
+
+        Chat room = manager.newChat("room", 1, TimeUnit.SECONDS);
+        assertTrue("No digest", other.firstDigest.await(5, TimeUnit.SECONDS));
+        room.addUser(member);
+        manager.closeChat(room);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (other.digests.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(300);
+
+        assertEquals(List.of(List.of("+room"), List.of("-room")), other.digests);
+        assertEquals(List.of(List.of("+room")), member.digests);
+        assertEquals(1, member.notifications.get());
+        manager.close();
+    }
+
+    @Test
+    public void digestCoalescesChangesOfAnInterval() throws Exception {
+        ChatManager manager = new ChatManager(10, dispatcher);
+        manager.coalesceLobby(200, TimeUnit.MILLISECONDS);
+        LobbyUser user = new LobbyUser("user");
+        manager.newUser(user);
+
+        Chat kept = manager.newChat("kept", 1, TimeUnit.SECONDS);
+        Chat shortLived = manager.newChat("shortLived", 1, TimeUnit.SECONDS);
+        manager.closeChat(shortLived);
+        manager.newChat("other", 1, TimeUnit.SECONDS);
+
+        assertTrue("No digest", user.firstDigest.await(5, TimeUnit.SECONDS));
+        manager.closeChat(kept);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (user.digests.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, user.notifications.get());
+        assertEquals(2, user.digests.size());
+        assertEquals(List.of("+kept", "+other"), user.digests.get(0));
+        assertEquals(List.of("-kept"), user.digests.get(1));
+        manager.close();
+    }
+}
@@ -0,0 +1,205 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.BatchPolicy;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.QueuedUser;
+import es.codeurjc.webchat.User;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MailboxOverflowTests {
+    private final int capacity = 4;
+    private final int numMessages = 10;
+    private Dispatcher dispatcher;
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private class StalledUser extends TestUser {
+        private final CountDownLatch clStalled = new CountDownLatch(1);
+        private final CountDownLatch clRelease = new CountDownLatch(1);
+        private final CountDownLatch clDisconnected = new CountDownLatch(1);
+        private final List<String> messages = new CopyOnWriteArrayList<>();
+
+        StalledUser() {
+            super("stalled");
+        }
+
+        @Override
+        public void newMessage(Chat chat, User user, String message) {
+            clStalled.countDown();
+            try {
+                clRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            messages.add(message);
+        }
+
+        @Override
+        public void disconnect() {
+            clDisconnected.countDown();
+        }
+    }
+
+    private ChatManager manager(OverflowPolicy policy) {
+        dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, capacity, policy);
+        return new ChatManager(2, dispatcher);
+    }
+
+    private StalledUser stall(ChatManager manager, Chat chat, TestUser sender) throws InterruptedException {
+        StalledUser user = new StalledUser();
+        manager.newUser(user);
+        chat.addUser(user);
+        chat.sendMessage(sender, "1");
+        assertTrue("Consumer not stalled", user.clStalled.await(5, TimeUnit.SECONDS));
+        for (int i = 2; i <= numMessages; i++) {
+            chat.sendMessage(sender, Integer.toString(i));
+        }
+        return user;
+    }
+
+    private void awaitMessages(StalledUser user, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (user.messages.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void dropOldestKeepsLatestMessages() throws Exception {
+        ChatManager manager = manager(OverflowPolicy.DROP_OLDEST);
+        Chat chat = manager.newChat("DropOldest", 5, TimeUnit.SECONDS);
+        StalledUser user = stall(manager, chat, new TestUser("sender"));
+        QueuedUser queued = (QueuedUser) manager.getUser(user.getName());
+
+        assertEquals("Queue not bounded", capacity, queued.getQueueDepth());
+        assertEquals("Wrong drop count", numMessages - 1 - capacity, queued.getDroppedEvents());
+
+        user.clRelease.countDown();
+        awaitMessages(user, capacity + 1);
+        assertEquals(Arrays.asList("1", "7", "8", "9", "10"), user.messages);
+    }
+
+    @Test
+    public void dropOldestKeepsThePendingFlush() throws Exception {
+        dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, capacity, OverflowPolicy.DROP_OLDEST,
+                new BatchPolicy(64, 100));
+        ChatManager manager = new ChatManager(1, dispatcher);
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        CountDownLatch batched = new CountDownLatch(1);
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch flushed = new CountDownLatch(1);
+        TestUser user = new TestUser("user") {
+            @Override
+            public void newMessage(Chat chat, User user, String message) {
+                batched.countDown();
+                if (message.equals("stall")) {
+                    stalled.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+
+            @Override
+            public void flush() {
+                flushed.countDown();
+            }
+        };
+        manager.newUser(user);
+        chat.addUser(user);
+        TestUser sender = new TestUser("sender");
+
+        // The first message leaves a batch to flush after the linger time,
+        // which comes due while the user is stalled and the queue fills up
+        chat.sendMessage(sender, "batched");
+        assertTrue(batched.await(5, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        chat.sendMessage(sender, "stall");
+        assertTrue(stalled.await(5, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        for (int i = 0; i < numMessages; i++) {
+            chat.sendMessage(sender, Integer.toString(i));
+        }
+        release.countDown();
+
+        assertTrue("Batch never flushed", flushed.await(5, TimeUnit.SECONDS));
+        assertTrue(manager.close(5, TimeUnit.SECONDS).isComplete());
+    }
+
+    @Test
+    public void dropNewestKeepsEarliestMessages() throws Exception {
+        ChatManager manager = manager(OverflowPolicy.DROP_NEWEST);
+        Chat chat = manager.newChat("DropNewest", 5, TimeUnit.SECONDS);
+        StalledUser user = stall(manager, chat, new TestUser("sender"));
+        QueuedUser queued = (QueuedUser) manager.getUser(user.getName());
+
+        assertEquals("Queue not bounded", capacity, queued.getQueueDepth());
+        assertEquals("Wrong drop count", numMessages - 1 - capacity, queued.getDroppedEvents());
+
+        user.clRelease.countDown();
+        awaitMessages(user, capacity + 1);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), user.messages);
+    }
+
+    @Test
+    public void coalesceSystemDiscardsNotificationsBeforeMessages() throws Exception {
+        ChatManager manager = manager(OverflowPolicy.COALESCE_SYSTEM);
+        Chat chat = manager.newChat("Coalesce", 5, TimeUnit.SECONDS);
+        TestUser sender = new TestUser("sender");
+        StalledUser user = new StalledUser();
+        manager.newUser(user);
+        chat.addUser(user);
+        chat.sendMessage(sender, "1");
+        assertTrue("Consumer not stalled", user.clStalled.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < capacity; i++) {
+            TestUser other = new TestUser("other-" + i);
+            chat.addUser(other);
+            chat.removeUser(other);
+        }
+        chat.sendMessage(sender, "2");
+        chat.sendMessage(sender, "3");
+
+        QueuedUser queued = (QueuedUser) manager.getUser(user.getName());
+        assertEquals("Queue not bounded", capacity, queued.getQueueDepth());
+        // Two notifications per other user plus two messages, only capacity of them fit
+        assertEquals("Wrong drop count", capacity + 2, queued.getDroppedEvents());
+
+        user.clRelease.countDown();
+        awaitMessages(user, 3);
+        assertEquals(Arrays.asList("1", "2", "3"), user.messages);
+    }
+
+    @Test
+    public void disconnectDropsSlowConsumer() throws Exception {
+        ChatManager manager = manager(OverflowPolicy.DISCONNECT);
+        Chat chat = manager.newChat("Disconnect", 5, TimeUnit.SECONDS);
+        StalledUser user = stall(manager, chat, new TestUser("sender"));
+        QueuedUser queued = (QueuedUser) manager.getUser(user.getName());
+
+        assertTrue("Slow consumer not disconnected", user.clDisconnected.await(5, TimeUnit.SECONDS));
+        assertEquals("Queue not released", 0, queued.getQueueDepth());
+        assertEquals("Wrong drop count", capacity + 1, queued.getDroppedEvents());
+        user.clRelease.countDown();
+    }
+}
@@ -0,0 +1,232 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.EvictionPolicy;
+import es.codeurjc.webchat.persistence.LogRecord;
+import es.codeurjc.webchat.persistence.MessageLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageLogTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void appendAll(MessageLog log, String chat, int from, int to) throws Exception {
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            writes.add(log.append(chat, "user", "007AFF", "message " + i));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+    }
+
+    private static List<String> messages(List<LogRecord> records) {
+        return records.stream().map(LogRecord::getMessage).collect(Collectors.toList());
+    }
+
+    private static List<String> expected(int from, int to) {
+        List<String> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add("message " + i);
+        }
+        return messages;
+    }
+
+    private static List<Path> files(Path directory, String suffix) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.toString().endsWith(suffix)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void messagesAreReadBackByChatAndTimestamp() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (MessageLog log = new MessageLog(directory, 4096, true)) {
+            appendAll(log, "a", 0, 10);
+            appendAll(log, "b", 0, 5);
+            long middle = log.getLastTimestamp("a");
+            Thread.sleep(5);
+            appendAll(log, "a", 10, 20);
+
+            assertEquals(expected(0, 20), messages(log.read("a", 0, Long.MAX_VALUE, 100)));
+            assertEquals(expected(10, 20), messages(log.read("a", middle + 1, Long.MAX_VALUE, 100)));
+            assertEquals(expected(0, 3), messages(log.read("a", 0, Long.MAX_VALUE, 3)));
+            assertEquals(expected(2, 5), messages(log.tail("b", 3)));
+            assertTrue(log.read("c", 0, Long.MAX_VALUE, 10).isEmpty());
+        }
+    }
+
+    @Test
+    public void reopeningUsesTheSavedIndexes() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (MessageLog log = new MessageLog(directory, 1024, false)) {
+            appendAll(log, "chat", 0, 200);
+            assertTrue("No segments rolled", log.getSegmentCount() > 3);
+        }
+        List<Path> segments = files(directory, ".log");
+        assertEquals("Every full segment needs an index", segments.size() - 1, files(directory, ".idx").size());
+
+        try (MessageLog log = new MessageLog(directory, 1024, false)) {
+            assertEquals(expected(0, 200), messages(log.read("chat", 0, Long.MAX_VALUE, 1000)));
+            appendAll(log, "chat", 200, 210);
+            assertEquals(expected(190, 210), messages(log.tail("chat", 20)));
+        }
+    }
+
+    @Test
+    public void tornRecordIsTruncated() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (MessageLog log = new MessageLog(directory, 1 << 20, false)) {
+            appendAll(log, "chat", 0, 10);
+        }
+        Path segment = files(directory, ".log").get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        try (MessageLog log = new MessageLog(directory, 1 << 20, false)) {
+            assertEquals(expected(0, 9), messages(log.tail("chat", 100)));
+            appendAll(log, "chat", 9, 12);
+        }
+        try (MessageLog log = new MessageLog(directory, 1 << 20, false)) {
+            assertEquals(expected(0, 12), messages(log.tail("chat", 100)));
+        }
+    }
+
+    @Test
+    public void corruptTailIsTruncated() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (MessageLog log = new MessageLog(directory, 1 << 20, false)) {
+            appendAll(log, "chat", 0, 10);
+        }
+        Path segment = files(directory, ".log").get(0);
+        long validLength = Files.size(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // A preallocated, never written tail and a record with a wrong checksum
+            file.setLength(validLength + 4096);
+            file.seek(validLength);
+            file.writeInt(40);
+            file.writeInt(12345);
+            file.seek(validLength - 3);
+            file.write('x');
+        }
+
+        try (MessageLog log = new MessageLog(directory, 1 << 20, false)) {
+            assertEquals(expected(0, 9), messages(log.tail("chat", 100)));
+        }
+        assertTrue(Files.size(segment) < validLength);
+    }
+
+    @Test
+    public void missingOrStaleIndexIsRebuilt() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (MessageLog log = new MessageLog(directory, 1024, false)) {
+            appendAll(log, "chat", 0, 100);
+        }
+        List<Path> indexes = files(directory, ".idx");
+        Files.delete(indexes.get(0));
+        Files.write(indexes.get(1), new byte[] { 1, 2, 3 });
+
+        try (MessageLog log = new MessageLog(directory, 1024, false)) {
+            assertEquals(expected(0, 100), messages(log.tail("chat", 1000)));
+        }
+        assertEquals(indexes.size(), files(directory, ".idx").size());
+    }
+
+    @Test
+    public void chatNamesOverModifiedUtf8LimitAreIndexed() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        String chat = "ñ".repeat(40_000);
+        try (MessageLog log = new MessageLog(directory, 1024, false)) {
+            appendAll(log, chat, 0, 3);
+        }
+        assertFalse(files(directory, ".idx").isEmpty());
+
+        try (MessageLog log = new MessageLog(directory, 1024, false)) {
+            assertEquals(expected(0, 3), messages(log.tail(chat, 10)));
+        }
+    }
+
+    @Test
+    public void appendsAfterCloseAreDropped() throws Exception {
+        MessageLog log = new MessageLog(folder.getRoot().toPath(), 1024, false);
+        log.close();
+
+        CompletableFuture<Void> write = log.append("chat", "user", "007AFF", "late");
+        assertTrue(write.isCompletedExceptionally());
+        assertEquals(1, log.getDropped());
+    }
+
+    @Test
+    public void aBadRecordFailsOnItsOwn() throws Exception {
+        try (MessageLog log = new MessageLog(folder.getRoot().toPath(), 1 << 20, false)) {
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                writes.add(log.append("chat", "user", "007AFF", "message " + i));
+            }
+            CompletableFuture<Void> bad = log.append("chat", "user", "007AFF", null);
+            CompletableFuture<Void> colorless = log.append("chat", "remote", null, "no color");
+            for (CompletableFuture<Void> write : writes) {
+                write.get();
+            }
+            colorless.get();
+
+            assertTrue(bad.isCompletedExceptionally());
+            List<LogRecord> tail = log.tail("chat", 2);
+            assertEquals("message 99", tail.get(0).getMessage());
+            assertEquals("no color", tail.get(1).getMessage());
+            assertNull(tail.get(1).getColor());
+        }
+    }
+
+    @Test
+    public void chatManagerRestoresChatsFromTheLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (MessageLog log = new MessageLog(directory, 4096, true)) {
+            ChatManager manager = new ChatManager(2, Dispatcher.getDefault(), EvictionPolicy.NONE, 4, log);
+            TestUser sender = new TestUser("sender");
+            for (String name : new String[] { "old", "middle", "recent" }) {
+                Chat chat = manager.newChat(name, 1, TimeUnit.SECONDS);
+                for (int i = 0; i < 10; i++) {
+                    chat.sendMessage(sender, "message " + i);
+                }
+                chat.close();
+                Thread.sleep(5);
+            }
+            manager.close();
+        }
+
+        try (MessageLog log = new MessageLog(directory, 4096, true)) {
+            ChatManager manager = new ChatManager(2, Dispatcher.getDefault(), EvictionPolicy.NONE, 4, log);
+            assertEquals("Only as many chats as fit", 2, manager.getChats().size());
+            Chat recent = manager.getChat("recent");
+            assertNotNull(manager.getChat("middle"));
+            assertNotNull(recent);
+
+            List<ChatMessage> history = recent.getHistory();
+            assertEquals(expected(6, 10), history.stream().map(ChatMessage::getMessage).collect(Collectors.toList()));
+            assertEquals("sender", history.get(0).getUser().getName());
+            manager.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.BatchPolicy;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.MetricsController;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.WebSocketUser;
+import es.codeurjc.webchat.metrics.Histogram;
+import es.codeurjc.webchat.metrics.Metrics;
+import es.sidelab.webchat.bench.NullWebSocketSession;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTests {
+
+    private Dispatcher dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST);
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void histogramReportsPercentilesWithinItsPrecision() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 0.001);
+        assertWithin(5000, histogram.getValueAtPercentile(50));
+        assertWithin(9900, histogram.getValueAtPercentile(99));
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 1.07);
+    }
+
+    @Test
+    public void chatCountsMessagesAndFanOut() throws Exception {
+        ChatManager manager = new ChatManager(1, dispatcher);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        TestUser sender = new TestUser("sender");
+        for (int i = 0; i < 3; i++) {
+            chat.addUser(new TestUser("member" + i));
+        }
+        for (int i = 0; i < 10; i++) {
+            chat.sendMessage(sender, "message " + i);
+        }
+
+        Map<String, Object> snapshot = dispatcher.getMetrics().snapshot();
+        assertEquals(10, chat.getMessageCount());
+        assertEquals(10L, snapshot.get("chat.messages"));
+        assertEquals(1L, snapshot.get("chat.opened"));
+        Histogram fanOut = dispatcher.getMetrics().histogram("chat.fanout");
+        assertEquals(10, fanOut.getCount());
+        assertEquals(3, fanOut.getMax());
+        assertEquals(1, dispatcher.getMetrics().histogram("chat.capacity.wait.nanos").getCount());
+    }
+
+    @Test
+    public void webSocketUserRecordsLatencyAndFailures() throws Exception {
+        Metrics metrics = new Metrics();
+        ChatManager manager = new ChatManager(1, dispatcher);
+        Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+        TestUser sender = new TestUser("sender");
+
+        WebSocketUser user = new WebSocketUser(new NullWebSocketSession("ok"), "ok", "007AFF",
+                new BatchPolicy(4, 0), metrics);
+        for (int i = 0; i < 6; i++) {
+            user.newMessage(new ChatMessage(chat, sender, "message " + i));
+        }
+        // Four went out as a batch, the other two only once flushed
+        assertEquals(4, metrics.histogram("delivery.latency.nanos").getCount());
+        user.flush();
+        assertEquals(6, metrics.histogram("delivery.latency.nanos").getCount());
+
+        NullWebSocketSession broken = new NullWebSocketSession("broken") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        WebSocketUser failing = new WebSocketUser(broken, "broken", "007AFF", BatchPolicy.NONE, metrics);
+        failing.newMessage(new ChatMessage(chat, sender, "lost"));
+
+        assertEquals(1L, metrics.snapshot().get("websocket.send.failures"));
+        assertEquals(6, metrics.histogram("delivery.latency.nanos").getCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void endpointReportsChatsAndMailboxes() throws Exception {
+        ChatManager manager = new ChatManager(1, dispatcher);
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        TestUser member = new TestUser("member");
+        manager.newUser(member);
+        chat.addUser(member);
+        chat.sendMessage(member, "hello");
+
+        Map<String, Object> metrics = new MetricsController(manager).metrics();
+
+        List<Map<String, Object>> chats = (List<Map<String, Object>>) metrics.get("chat.stats");
+        assertEquals(1, chats.size());
+        assertEquals("room", chats.get(0).get("name"));
+        assertEquals(1, chats.get(0).get("members"));
+        assertEquals(1L, chats.get(0).get("messages"));
+        assertEquals(1L, metrics.get("users"));
+        assertTrue(metrics.containsKey("mailbox.depth.max"));
+    }
+}
@@ -0,0 +1,144 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatSession;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.InboundMessage;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.User;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MultiRoomSessionTests {
+
+    private Dispatcher dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST);
+    private ChatManager manager = new ChatManager(5, dispatcher);
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private static class RecordingUser extends TestUser {
+
+        final List<String> received = new CopyOnWriteArrayList<>();
+
+        RecordingUser(String name) {
+            super(name);
+        }
+
+        @Override
+        public void newMessage(Chat chat, User user, String message) {
+            received.add(chat.getName() + ":" + message);
+        }
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitMembers(Chat chat, int members) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (chat.getUsers().size() != members && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void oneSessionJoinsLeavesAndPostsToSeveralChats() throws Exception {
+        RecordingUser alice = new RecordingUser("alice");
+        ChatSession session = new ChatSession(manager, name -> alice, error -> {
+        });
+        session.handle(InboundMessage.join("first", "alice"));
+        session.handle(InboundMessage.join("second", "ignored"));
+        session.handle(InboundMessage.join("third", "ignored"));
+
+        Chat first = manager.newChat("first", 1, TimeUnit.SECONDS);
+        Chat second = manager.newChat("second", 1, TimeUnit.SECONDS);
+        Chat third = manager.newChat("third", 1, TimeUnit.SECONDS);
+        for (Chat chat : List.of(first, second, third)) {
+            awaitMembers(chat, 1);
+        }
+        assertEquals(Set.of("first", "second", "third"), session.getChats());
+        // One user, so one mailbox, for every chat of the session
+        assertEquals(1, manager.getUsers().size());
+        assertSame(first.getUsers().iterator().next(), third.getUsers().iterator().next());
+
+        TestUser bob = new TestUser("bob");
+        for (Chat chat : List.of(first, second, third)) {
+            chat.sendMessage(bob, "hi");
+        }
+        awaitSize(alice.received, 3);
+        assertEquals(Set.of("first:hi", "second:hi", "third:hi"), Set.copyOf(alice.received));
+
+        session.handle(InboundMessage.leave("second"));
+        assertEquals(0, second.getUsers().size());
+        session.handle(InboundMessage.message("third", "to third"));
+        session.handle(InboundMessage.message("default"));
+        session.handle(InboundMessage.message("second", "not a member any more"));
+        // Besides the greeting from bob
+        assertEquals(2, third.getHistory().size());
+        assertEquals("to third", third.getHistory().get(1).getMessage());
+        assertEquals("default", first.getHistory().get(1).getMessage());
+        assertEquals(1, second.getHistory().size());
+
+        session.close();
+        assertEquals(0, first.getUsers().size());
+        assertEquals(0, third.getUsers().size());
+        assertNull(manager.getUser("alice"));
+    }
+
+    @Test
+    public void aClosedChatCanBeJoinedAgain() throws Exception {
+        RecordingUser alice = new RecordingUser("alice");
+        ChatSession session = new ChatSession(manager, name -> alice, error -> {
+        });
+        session.handle(InboundMessage.join("room", "alice"));
+        Chat room = manager.newChat("room", 1, TimeUnit.SECONDS);
+        awaitMembers(room, 1);
+
+        manager.closeChat(room);
+        session.handle(InboundMessage.message("room", "into the closed chat"));
+        assertEquals(Set.of(), session.getChats());
+        assertEquals(0, room.getHistory().size());
+
+        session.handle(InboundMessage.join("room", "ignored"));
+        Chat reopened = manager.newChat("room", 1, TimeUnit.SECONDS);
+        assertNotSame(room, reopened);
+        awaitMembers(reopened, 1);
+        session.handle(InboundMessage.message("room", "hello again"));
+        assertEquals("hello again", reopened.getHistory().get(0).getMessage());
+        session.close();
+    }
+
+    @Test
+    public void nullMessagesAreDropped() throws Exception {
+        RecordingUser alice = new RecordingUser("alice");
+        ChatSession session = new ChatSession(manager, name -> alice, error -> {
+        });
+        session.handle(InboundMessage.join("room", "alice"));
+        Chat room = manager.newChat("room", 1, TimeUnit.SECONDS);
+        awaitMembers(room, 1);
+
+        session.handle(InboundMessage.message("room", null));
+        session.handle(InboundMessage.message("room", "after"));
+        assertEquals(1, room.getHistory().size());
+        assertEquals("after", room.getHistory().get(0).getMessage());
+        session.close();
+    }
+}
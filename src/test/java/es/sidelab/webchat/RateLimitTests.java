@@ -0,0 +1,127 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatSession;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.InboundMessage;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.RateLimit;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimitTests {
+
+    // Slow enough that nothing is refilled while a test runs
+    private static final double NO_REFILL = 0.001;
+
+    private Dispatcher dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST);
+    private ChatManager manager = new ChatManager(1, dispatcher);
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private ChatSession join(String user, Chat chat) throws InterruptedException {
+        ChatSession session = new ChatSession(manager, TestUser::new, error -> {
+        });
+        session.handle(InboundMessage.join(chat.getName(), user));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!chat.getUsers().stream().anyMatch(u -> u.getName().equals(user))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return session;
+    }
+
+    private long rejected(String limit) {
+        return (Long) dispatcher.getMetrics().snapshot().get("ratelimit." + limit + ".rejected");
+    }
+
+    @Test
+    public void sessionSendsItsBurstAndThenWaitsForTheRefill() throws Exception {
+        manager.limitMessages(new RateLimit(10, 3), RateLimit.NONE);
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        ChatSession session = join("spammer", chat);
+
+        for (int i = 0; i < 10; i++) {
+            session.send("room", "spam " + i);
+        }
+        assertEquals(3, chat.getHistory().size());
+        assertEquals(7, rejected("session"));
+
+        // One message every 100ms
+        Thread.sleep(250);
+        session.send("room", "later");
+        assertEquals(4, chat.getHistory().size());
+    }
+
+    @Test
+    public void chatLimitIsSharedByItsSenders() throws Exception {
+        manager.limitMessages(RateLimit.NONE, new RateLimit(NO_REFILL, 4));
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        ChatSession alice = join("alice", chat);
+        ChatSession bob = join("bob", chat);
+
+        for (int i = 0; i < 3; i++) {
+            alice.send("room", "alice " + i);
+            bob.send("room", "bob " + i);
+        }
+
+        assertEquals(4, chat.getHistory().size());
+        assertEquals(2, rejected("chat"));
+        assertEquals(0, rejected("session"));
+    }
+
+    @Test
+    public void concurrentSendersNeverGetMoreThanTheBurst() throws Exception {
+        int senders = 8;
+        int messages = 200;
+        int burst = 50;
+        manager.limitMessages(RateLimit.NONE, new RateLimit(NO_REFILL, burst));
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        List<ChatSession> sessions = new ArrayList<>();
+        for (int i = 0; i < senders; i++) {
+            sessions.add(join("user" + i, chat));
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (ChatSession session : sessions) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < messages; i++) {
+                    session.send("room", "message " + i);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        assertEquals(senders * messages - burst, rejected("chat"));
+        assertTrue(chat.getHistory().size() <= burst);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void limitNeedsABurst() {
+        new RateLimit(10, 0);
+    }
+}
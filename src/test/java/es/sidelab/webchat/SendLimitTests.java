@@ -0,0 +1,203 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.BatchPolicy;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.SendPolicy;
+import es.codeurjc.webchat.WebSocketUser;
+import es.codeurjc.webchat.metrics.Metrics;
+import es.sidelab.webchat.bench.NullWebSocketSession;
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SendLimitTests {
+
+    private Dispatcher dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST);
+    private Chat chat;
+    private TestUser sender = new TestUser("sender");
+
+    @Before
+    public void openChat() throws Exception {
+        chat = new ChatManager(1, dispatcher).newChat("chat", 1, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    /**
+     * Session whose container writes only complete when the test says so.
+     */
+    private static class AsyncSession extends NullWebSocketSession implements NativeWebSocketSession {
+
+        final List<String> writes = new CopyOnWriteArrayList<>();
+        final List<SendHandler> pending = new CopyOnWriteArrayList<>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile CloseStatus closeStatus;
+
+        private final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { RemoteEndpoint.Async.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("sendText") && args.length == 2) {
+                        writes.add((String) args[0]);
+                        pending.add((SendHandler) args[1]);
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+
+        private final Session nativeSession = (Session) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Session.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("getAsyncRemote")) {
+                        return remote;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+
+        AsyncSession() {
+            super("async");
+        }
+
+        void complete(SendResult result) {
+            pending.remove(0).onResult(result);
+        }
+
+        @Override
+        public Object getNativeSession() {
+            return nativeSession;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T getNativeSession(Class<T> requiredType) {
+            return requiredType.isInstance(nativeSession) ? (T) nativeSession : null;
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+            closeStatus = status;
+            closed.countDown();
+        }
+    }
+
+    private void send(WebSocketUser user, String text) {
+        user.newMessage(new ChatMessage(chat, sender, text));
+    }
+
+    @Test
+    public void framesAreWrittenOneAtATimeInOrder() throws Exception {
+        Metrics metrics = new Metrics();
+        AsyncSession session = new AsyncSession();
+        WebSocketUser user = new WebSocketUser(session, "user", "007AFF", BatchPolicy.NONE, metrics,
+                SendPolicy.UNLIMITED);
+        assertTrue(user.isAsync());
+
+        for (int i = 0; i < 3; i++) {
+            send(user, "message " + i);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, session.writes.size());
+            assertEquals(1, session.pending.size());
+            assertTrue(session.writes.get(i).contains("message " + i));
+            session.complete(new SendResult());
+        }
+
+        assertEquals(3, metrics.histogram("delivery.latency.nanos").getCount());
+        assertEquals(3, metrics.histogram("websocket.send.nanos").getCount());
+    }
+
+    @Test
+    public void slowClientIsDisconnectedWhenItsBufferFills() throws Exception {
+        Metrics metrics = new Metrics();
+        AsyncSession session = new AsyncSession();
+        WebSocketUser user = new WebSocketUser(session, "user", "007AFF", BatchPolicy.NONE, metrics,
+                new SendPolicy(0, 1000));
+        AtomicInteger terminated = new AtomicInteger();
+        user.setOnTerminated(terminated::incrementAndGet);
+
+        for (int i = 0; i < 100; i++) {
+            send(user, "message " + i);
+        }
+
+        assertTrue("Session not closed", session.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(CloseStatus.SESSION_NOT_RELIABLE.getCode(), session.closeStatus.getCode());
+        assertEquals(1, terminated.get());
+        assertEquals(1L, metrics.snapshot().get("websocket.sessions.terminated"));
+
+        // Nothing else is written once the client is gone
+        session.complete(new SendResult());
+        assertEquals(1, session.writes.size());
+    }
+
+    @Test
+    public void stuckWriteExceedsTheTimeLimit() throws Exception {
+        AsyncSession session = new AsyncSession();
+        WebSocketUser user = new WebSocketUser(session, "user", "007AFF", BatchPolicy.NONE, new Metrics(),
+                new SendPolicy(50, 0));
+        AtomicInteger terminated = new AtomicInteger();
+        user.setOnTerminated(terminated::incrementAndGet);
+
+        send(user, "first");
+        send(user, "second");
+        assertEquals(0, terminated.get());
+        Thread.sleep(100);
+        send(user, "third");
+
+        assertTrue("Session not closed", session.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, terminated.get());
+    }
+
+    @Test
+    public void stuckWriteIsClosedWithoutFurtherTraffic() throws Exception {
+        AsyncSession session = new AsyncSession();
+        WebSocketUser user = new WebSocketUser(session, "user", "007AFF", BatchPolicy.NONE, new Metrics(),
+                new SendPolicy(50, 0));
+        AtomicInteger terminated = new AtomicInteger();
+        user.setOnTerminated(terminated::incrementAndGet);
+
+        send(user, "only");
+
+        assertTrue("Session not closed", session.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, terminated.get());
+    }
+
+    @Test
+    public void failedWriteIsCountedAndEndsTheSession() throws Exception {
+        Metrics metrics = new Metrics();
+        AsyncSession session = new AsyncSession();
+        WebSocketUser user = new WebSocketUser(session, "user", "007AFF", BatchPolicy.NONE, metrics,
+                SendPolicy.UNLIMITED);
+
+        send(user, "first");
+        send(user, "second");
+        session.complete(new SendResult(new IOException("Connection reset")));
+
+        assertTrue("Session not closed", session.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1L, metrics.snapshot().get("websocket.send.failures"));
+        assertEquals(1, session.writes.size());
+        assertEquals(0, metrics.histogram("delivery.latency.nanos").getCount());
+    }
+}
@@ -0,0 +1,214 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.BatchPolicy;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatSession;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.DrainReport;
+import es.codeurjc.webchat.EvictionPolicy;
+import es.codeurjc.webchat.InboundMessage;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.persistence.MessageLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShutdownTests {
+
+    private Dispatcher dispatcher = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST);
+    private ChatManager manager = new ChatManager(1, dispatcher);
+
+    {
+        manager.shutDownDispatcherOnClose();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records the events it gets, and whether it was shut down.
+     */
+    private static class RecordingUser extends TestUser {
+        final List<String> events = new CopyOnWriteArrayList<>();
+        final CountDownLatch shutdown = new CountDownLatch(1);
+
+        RecordingUser(String name) {
+            super(name);
+        }
+
+        @Override
+        public void newMessage(Chat chat, User user, String message) {
+            events.add(message);
+        }
+
+        @Override
+        public void chatClosed(Chat chat) {
+            events.add("closed " + chat.getName());
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown.countDown();
+        }
+    }
+
+    @Test
+    public void pendingMessagesAreDeliveredBeforeTheChatIsClosed() throws Exception {
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        RecordingUser sender = new RecordingUser("sender");
+        RecordingUser receiver = new RecordingUser("receiver");
+        manager.newUser(sender);
+        manager.newUser(receiver);
+        chat.addUser(sender);
+        chat.addUser(receiver);
+
+        for (int i = 0; i < 100; i++) {
+            chat.sendMessage(sender, "message " + i);
+        }
+        DrainReport report = manager.close(5, TimeUnit.SECONDS);
+
+        assertTrue(report.toString(), report.isComplete());
+        assertEquals(0, report.getDropped());
+        assertEquals(1, report.getChats());
+        assertEquals(2, report.getUsers());
+        assertEquals(101, receiver.events.size());
+        assertEquals("message 99", receiver.events.get(99));
+        assertEquals("closed room", receiver.events.get(100));
+        assertTrue(receiver.shutdown.await(1, TimeUnit.SECONDS));
+        assertTrue(manager.getUsers().isEmpty());
+        assertTrue(manager.getChats().isEmpty());
+        assertEquals(0, manager.getIdentities().size());
+    }
+
+    @Test
+    public void eventsStillQueuedAtTheDeadlineAreDropped() throws Exception {
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingUser stuck = new RecordingUser("stuck") {
+            @Override
+            public void newMessage(Chat chat, User user, String message) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        TestUser sender = new TestUser("sender");
+        manager.newUser(stuck);
+        manager.newUser(sender);
+        chat.addUser(stuck);
+        chat.addUser(sender);
+
+        chat.sendMessage(sender, "first");
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            chat.sendMessage(sender, "message " + i);
+        }
+        try {
+            DrainReport report = manager.close(100, TimeUnit.MILLISECONDS);
+            assertFalse(report.isComplete());
+            // The ten messages and the chat closed notice
+            assertEquals(11, report.getDropped());
+            assertTrue(stuck.shutdown.await(1, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void lingeringBatchesAreFlushedBeforeTheDrainEnds() throws Exception {
+        Dispatcher batching = new Dispatcher(DispatchMode.PLATFORM, 2, 1024, OverflowPolicy.DROP_OLDEST,
+                new BatchPolicy(64, 200));
+        ChatManager manager = new ChatManager(1, batching);
+        manager.shutDownDispatcherOnClose();
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        CountDownLatch flushed = new CountDownLatch(1);
+        TestUser user = new TestUser("user") {
+            @Override
+            public void flush() {
+                flushed.countDown();
+            }
+        };
+        manager.newUser(user);
+        chat.addUser(user);
+        chat.sendMessage(user, "batched");
+
+        DrainReport report = manager.close(5, TimeUnit.SECONDS);
+        assertTrue(report.toString(), report.isComplete());
+        assertEquals(0, flushed.getCount());
+    }
+
+    @Test
+    public void nothingGetsInOnceClosed() throws Exception {
+        RecordingUser user = new RecordingUser("user");
+        DrainReport report = manager.close(1, TimeUnit.SECONDS);
+        assertSame(report, manager.close(1, TimeUnit.SECONDS));
+
+        try {
+            manager.newUser(user);
+            fail("User registered after close");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        CompletableFuture<Chat> chat = manager.newChatAsync("room", 1, TimeUnit.SECONDS);
+        try {
+            chat.get();
+            fail("Chat opened after close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        AtomicReference<Throwable> joinError = new AtomicReference<>();
+        ChatSession session = new ChatSession(manager, TestUser::new, joinError::set);
+        session.handle(InboundMessage.join("room", "late"));
+        assertTrue(joinError.get() instanceof IllegalStateException);
+        assertTrue(manager.getUsers().isEmpty());
+    }
+
+    @Test
+    public void ownedDispatcherThreadsAreReleased() throws Exception {
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        RecordingUser user = new RecordingUser("user");
+        manager.newUser(user);
+        chat.addUser(user);
+        chat.sendMessage(user, "hi");
+
+        manager.close(1, TimeUnit.SECONDS);
+        assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void messageLogIsWrittenAndClosed() throws Exception {
+        MessageLog log = new MessageLog(folder.getRoot().toPath(), 4096, false);
+        ChatManager manager = new ChatManager(1, dispatcher, EvictionPolicy.NONE, 4, log);
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        chat.sendMessage(new TestUser("sender"), "kept");
+
+        assertTrue(manager.close(5, TimeUnit.SECONDS).isComplete());
+        assertTrue(log.append("room", "late", "007AFF", "dropped").isCompletedExceptionally());
+        try (MessageLog reopened = new MessageLog(folder.getRoot().toPath(), 4096, false)) {
+            assertEquals("kept", reopened.tail("room", 4).get(0).getMessage());
+        }
+        dispatcher.shutdown();
+    }
+}
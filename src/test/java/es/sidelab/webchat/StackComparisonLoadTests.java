@@ -0,0 +1,65 @@
+package es.sidelab.webchat;
+
+import es.sidelab.webchat.load.LoadGenerator;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the same load against the servlet and the WebFlux servers, one after
+ * the other in this JVM, and prints delivered messages per second and
+ * connections per GB of heap side by side. The heap includes the clients,
+ * which are the same in both runs. Run with {@code mvn test -Pload}, sizing it
+ * like {@link ChatEndpointLoadTests}.
+ */
+public class StackComparisonLoadTests {
+
+    @Before
+    public void onlyWhenRequested() {
+        Assume.assumeTrue("Load tests disabled, run with -Pload", Boolean.getBoolean("webchat.loadtests"));
+    }
+
+    @Test
+    public void servletAndReactiveSideBySide() throws Exception {
+        LoadGenerator.Report servlet = run(false);
+        LoadGenerator.Report reactive = run(true);
+
+        System.out.printf("%-22s %12s %12s%n", "", "servlet", "reactive");
+        System.out.printf("%-22s %12.0f %12.0f%n", "delivered/s", servlet.getDeliveredPerSecond(),
+                reactive.getDeliveredPerSecond());
+        System.out.printf("%-22s %12.2f %12.2f%n", "latency p99 (ms)", servlet.latency.getValueAtPercentile(99) / 1e6,
+                reactive.latency.getValueAtPercentile(99) / 1e6);
+        System.out.printf("%-22s %12.1f %12.1f%n", "heap connected (MB)", servlet.connectedHeapBytes / 1e6,
+                reactive.connectedHeapBytes / 1e6);
+        System.out.printf("%-22s %12.0f %12.0f%n", "connections/GB", servlet.getConnectionsPerGigabyte(),
+                reactive.getConnectionsPerGigabyte());
+
+        assertEquals("Clients failed to join the servlet server", 0, servlet.failedClients);
+        assertEquals("Clients failed to join the reactive server", 0, reactive.failedClients);
+    }
+
+    private static LoadGenerator.Report run(boolean reactive) throws Exception {
+        LoadGenerator.Options options = new LoadGenerator.Options();
+        options.clients = Integer.getInteger("webchat.load.clients", 2000);
+        options.rooms = Integer.getInteger("webchat.load.rooms", 10);
+        options.messagesPerSecond = Integer.getInteger("webchat.load.rate", 200);
+        options.duration = Duration.ofSeconds(Integer.getInteger("webchat.load.seconds", 10));
+        options.measureHeap = true;
+        System.setProperty("webchat.chats.max", Integer.toString(options.rooms));
+
+        ConfigurableApplicationContext server = LoadGenerator.startServer(reactive);
+        try {
+            options.uri = LoadGenerator.chatUri(server);
+            LoadGenerator.Report report = new LoadGenerator(options).run();
+            System.out.println((reactive ? "reactive" : "servlet") + System.lineSeparator() + report);
+            return report;
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package es.sidelab.webchat;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.FrameEncoder;
+import es.codeurjc.webchat.JsonFrameEncoder;
+import org.junit.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SystemFrameTests {
+
+    private final FrameEncoder encoder = JsonFrameEncoder.INSTANCE;
+
+    private static String text(WebSocketMessage<?> frame) {
+        return ((TextMessage) frame).getPayload();
+    }
+
+    @Test
+    public void everyRecipientGetsTheSameFrame() throws Exception {
+        Chat chat = new ChatManager(1).newChat("room", 1, TimeUnit.SECONDS);
+        TestUser user = new TestUser("user");
+
+        assertSame(encoder.newChat(chat), encoder.newChat(chat));
+        assertSame(encoder.chatClosed(chat), encoder.chatClosed(chat));
+        assertSame(encoder.newUserInChat(chat, user), encoder.newUserInChat(chat, new TestUser("user")));
+        assertSame(encoder.userExitedFromChat(chat, user), encoder.userExitedFromChat(chat, user));
+
+        assertEquals("{\"type\":\"system\",\"chat\":\"room\",\"message\":\"New user 'user' in chat 'room'\"}",
+                text(encoder.newUserInChat(chat, user)));
+    }
+
+    @Test
+    public void eventsOfDifferentChatsAreNotConfused() throws Exception {
+        ChatManager manager = new ChatManager(2);
+        Chat chat = manager.newChat("room", 1, TimeUnit.SECONDS);
+        Chat other = new ChatManager(1).newChat("room", 1, TimeUnit.SECONDS);
+        Chat third = manager.newChat("hall", 1, TimeUnit.SECONDS);
+
+        // Same name and id in another manager, a different chat all the same
+        assertEquals(chat.getIdentity().getId(), other.getIdentity().getId());
+        assertNotSame(encoder.newChat(chat), encoder.newChat(other));
+        assertEquals(text(encoder.newChat(chat)), text(encoder.newChat(other)));
+        assertEquals("{\"type\":\"system\",\"chat\":\"hall\",\"message\":\"New chat 'hall'\"}",
+                text(encoder.newChat(third)));
+        assertEquals("{\"type\":\"system\",\"chat\":\"room\",\"message\":\"Chat 'room' closed\"}",
+                text(encoder.chatClosed(chat)));
+    }
+}
@@ -0,0 +1,81 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.BatchPolicy;
+import es.codeurjc.webchat.BinaryProtocol;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.WebSocketUser;
+
+/**
+ * Delivery of a burst of events pending in a busy mailbox, one frame per
+ * event ({@code maxBatchSize=1}) against frames batching several events. Every
+ * frame pays a simulated write cost. Results are per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchingBenchmark {
+
+	private static final int BURST = 64;
+
+	@Param({ "1", "8", "64" })
+	public int maxBatchSize;
+
+	@Param({ BinaryProtocol.JSON_SUBPROTOCOL, BinaryProtocol.BINARY_SUBPROTOCOL })
+	public String protocol;
+
+	@Param({ "0", "2000" })
+	public long frameCost;
+
+	private NullWebSocketSession session;
+	private WebSocketUser receiver;
+	private ChatMessage message;
+	private long bursts;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		session = new NullWebSocketSession("receiver", protocol);
+		session.setFrameCost(frameCost);
+		receiver = new WebSocketUser(session, "receiver", "FF7000", new BatchPolicy(maxBatchSize, 0));
+		Chat chat = new Chat(new ChatManager(1), "bench");
+		message = new ChatMessage(chat, new BenchUser("sender"), "Hello everybody in the room!");
+	}
+
+	@TearDown(Level.Trial)
+	public void report() {
+		System.out.println(String.format("%nmaxBatchSize %d: %.1f events/frame, %.1f bytes/event",
+				maxBatchSize, (double) bursts * BURST / session.getMessagesSent(),
+				(double) session.getBytesSent() / (bursts * BURST)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void deliverBurst() {
+		for (int i = 0; i < BURST; i++) {
+			receiver.newMessage(message);
+		}
+		receiver.flush();
+		bursts++;
+	}
+}
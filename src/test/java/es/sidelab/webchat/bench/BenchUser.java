@@ -0,0 +1,56 @@
+package es.sidelab.webchat.bench;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.User;
+
+/**
+ * User that counts the events it receives and does nothing else.
+ */
+public class BenchUser implements User {
+
+	private final String name;
+	private volatile long events;
+
+	public BenchUser(String name) {
+		this.name = name;
+	}
+
+	public long getEvents() {
+		return events;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getColor() {
+		return "007AFF";
+	}
+
+	@Override
+	public void newChat(Chat chat) {
+		events++;
+	}
+
+	@Override
+	public void chatClosed(Chat chat) {
+		events++;
+	}
+
+	@Override
+	public void newUserInChat(Chat chat, User user) {
+		events++;
+	}
+
+	@Override
+	public void userExitedFromChat(Chat chat, User user) {
+		events++;
+	}
+
+	@Override
+	public void newMessage(Chat chat, User user, String message) {
+		events++;
+	}
+}
@@ -0,0 +1,69 @@
+package es.sidelab.webchat.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.WebSocketUser;
+
+/**
+ * Encoding cost of delivering one chat message to every member of a room:
+ * one JSON encode per recipient against one shared frame for the whole room.
+ * Run with {@code mvn test -Pbench -Dbench=BroadcastEncodingBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastEncodingBenchmark {
+
+	@Param({ "10", "100", "2000" })
+	public int roomSize;
+
+	private Chat chat;
+	private User sender;
+	private List<User> members;
+
+	@Setup
+	public void setup() {
+		chat = new Chat(new ChatManager(1), "bench");
+		sender = new WebSocketUser(new NullWebSocketSession("sender"), "sender", "007AFF");
+		members = new ArrayList<>();
+		for (int i = 0; i < roomSize; i++) {
+			members.add(new WebSocketUser(new NullWebSocketSession("s" + i), "user" + i, "FF7000"));
+		}
+	}
+
+	@Benchmark
+	public void encodePerRecipient() {
+		for (User member : members) {
+			member.newMessage(chat, sender, "Hello everybody in the room!");
+		}
+	}
+
+	@Benchmark
+	public void encodeOnce() {
+		ChatMessage message = new ChatMessage(chat, sender, "Hello everybody in the room!");
+		for (User member : members) {
+			member.newMessage(message);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+
+/**
+ * Several threads creating and closing chats against the chat capacity of a
+ * {@link ChatManager}. With fewer chats than threads they contend for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ChatCreationBenchmark {
+
+	@Param({ "1", "4", "64" })
+	public int maxChats;
+
+	@Param({ "0", "100" })
+	public int registeredUsers;
+
+	private Dispatcher dispatcher;
+	private ChatManager manager;
+
+	@State(Scope.Thread)
+	public static class ChatName {
+		private static int threads;
+		private final String prefix;
+		private long count;
+
+		public ChatName() {
+			synchronized (ChatName.class) {
+				prefix = "chat-" + threads++ + "-";
+			}
+		}
+
+		String next() {
+			return prefix + count++;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		dispatcher = new Dispatcher(DispatchMode.PLATFORM, 4, 1024, OverflowPolicy.DROP_OLDEST);
+		manager = new ChatManager(maxChats, dispatcher);
+		for (int i = 0; i < registeredUsers; i++) {
+			manager.newUser(new BenchUser("user" + i));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	@Benchmark
+	public Chat newAndCloseChat(ChatName name) throws Exception {
+		Chat chat = manager.newChat(name.next(), 10, TimeUnit.SECONDS);
+		manager.closeChat(chat);
+		return chat;
+	}
+}
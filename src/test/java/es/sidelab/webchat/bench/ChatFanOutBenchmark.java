@@ -0,0 +1,65 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+
+/**
+ * Cost for the sender of {@link Chat#sendMessage} fanning a message out to the
+ * mailboxes of every member of the room.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatFanOutBenchmark {
+
+	@Param({ "1", "10", "100", "1000" })
+	public int roomSize;
+
+	private Dispatcher dispatcher;
+	private Chat chat;
+	private BenchUser sender;
+
+	@Setup
+	public void setup() throws Exception {
+		dispatcher = new Dispatcher(DispatchMode.PLATFORM, 4, 1024, OverflowPolicy.DROP_OLDEST);
+		ChatManager manager = new ChatManager(1, dispatcher);
+		chat = manager.newChat("bench", 1, TimeUnit.SECONDS);
+		sender = new BenchUser("sender");
+		for (int i = 0; i < roomSize; i++) {
+			BenchUser user = new BenchUser("user" + i);
+			manager.newUser(user);
+			chat.addUser(user);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	@Benchmark
+	public void sendMessage() {
+		chat.sendMessage(sender, "Hello everybody in the room!");
+	}
+}
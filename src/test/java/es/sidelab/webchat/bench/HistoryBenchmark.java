@@ -0,0 +1,85 @@
+package es.sidelab.webchat.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.EvictionPolicy;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.WebSocketUser;
+
+/**
+ * Cost of keeping the chat history: appending a message to an empty room, and
+ * taking and encoding the replay a new member gets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+
+	@Param({ "0", "64", "1024" })
+	public int historySize;
+
+	@Param({ "json", "binary" })
+	public String protocol;
+
+	private Dispatcher dispatcher;
+	private Chat chat;
+	private BenchUser sender;
+	private WebSocketUser joiner;
+	private NullWebSocketSession session;
+
+	@Setup
+	public void setup() throws Exception {
+		dispatcher = new Dispatcher(DispatchMode.PLATFORM, 4, 1024, OverflowPolicy.DROP_OLDEST);
+		ChatManager manager = new ChatManager(1, dispatcher, EvictionPolicy.NONE, historySize);
+		chat = manager.newChat("bench", 1, TimeUnit.SECONDS);
+		sender = new BenchUser("sender");
+		for (int i = 0; i < historySize; i++) {
+			chat.sendMessage(sender, "Hello, this is message number " + i);
+		}
+		session = new NullWebSocketSession("joiner", "binary".equals(protocol) ? "webchat.binary" : null);
+		joiner = new WebSocketUser(session, "joiner", "007AFF");
+	}
+
+	@TearDown
+	public void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	@Benchmark
+	public void append() {
+		chat.sendMessage(sender, "Hello, this is a message");
+	}
+
+	@Benchmark
+	public List<ChatMessage> snapshot() {
+		return chat.getHistory();
+	}
+
+	@Benchmark
+	public long replay() {
+		joiner.messageHistory(chat, chat.getHistory());
+		return session.getBytesSent();
+	}
+}
@@ -0,0 +1,52 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import es.codeurjc.webchat.InboundMessage;
+import es.codeurjc.webchat.JsonMessageDecoder;
+
+/**
+ * Time and allocation per inbound frame: building a {@link JsonNode} tree as
+ * the handler used to, against the streaming {@link JsonMessageDecoder}.
+ * Look at {@code gc.alloc.rate.norm} for bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InboundDecodingBenchmark {
+
+	private static final String MESSAGE = "{\"message\":\"Hello everybody in the room!\",\"user\":\"user42\"}";
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final JsonMessageDecoder decoder = new JsonMessageDecoder();
+
+	@Benchmark
+	public String readTree() throws Exception {
+		JsonNode jsonMsg = mapper.readTree(MESSAGE);
+		if (jsonMsg.hasNonNull("chat")) {
+			return jsonMsg.get("chat").asText();
+		}
+		return jsonMsg.get("message").asText();
+	}
+
+	@Benchmark
+	public InboundMessage streaming() throws Exception {
+		return decoder.decode(MESSAGE);
+	}
+}
@@ -0,0 +1,70 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.BatchPolicy;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+
+/**
+ * Cost of chats churning with many users online, when every user is in the
+ * lobby, when it gets a digest of the changes, and when nobody is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LobbyBenchmark {
+
+	@Param({ "all", "digest", "none" })
+	public String lobby;
+
+	@Param({ "50000" })
+	public int users;
+
+	private Dispatcher dispatcher;
+	private ChatManager manager;
+
+	@Setup
+	public void setup() {
+		dispatcher = new Dispatcher(DispatchMode.PLATFORM, Runtime.getRuntime().availableProcessors(), 64,
+				OverflowPolicy.DROP_OLDEST, BatchPolicy.NONE, Runtime.getRuntime().availableProcessors());
+		manager = new ChatManager(1, dispatcher);
+		if ("digest".equals(lobby)) {
+			manager.coalesceLobby(100, TimeUnit.MILLISECONDS);
+		}
+		for (int i = 0; i < users; i++) {
+			manager.newUser(new BenchUser("user" + i), !"none".equals(lobby));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		manager.close();
+		dispatcher.shutdown();
+	}
+
+	@Benchmark
+	public void newChatAndClose() throws Exception {
+		Chat chat = manager.newChat("chat", 1, TimeUnit.SECONDS);
+		manager.closeChat(chat);
+	}
+}
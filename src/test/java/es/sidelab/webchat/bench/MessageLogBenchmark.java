@@ -0,0 +1,74 @@
+package es.sidelab.webchat.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.persistence.MessageLog;
+
+/**
+ * Messages per second the message log makes durable, waiting for each write.
+ * With several writers, group commit shares every write and fsync among all
+ * the messages queued meanwhile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageLogBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean fsync;
+
+	private Path directory;
+	private MessageLog log;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("webchat-log-bench");
+		log = new MessageLog(directory, MessageLog.DEFAULT_SEGMENT_BYTES, fsync);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		log.close();
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	private void appendAndWait() {
+		log.append("bench", "user", "007AFF", "Hello, this is a message of a typical length").join();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void oneWriter() {
+		appendAndWait();
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void sixteenWriters() {
+		appendAndWait();
+	}
+}
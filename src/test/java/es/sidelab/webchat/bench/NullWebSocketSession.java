@@ -0,0 +1,141 @@
+package es.sidelab.webchat.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Session that discards what is sent, only counting the payload bytes so the
+ * encoding work can't be optimized away.
+ */
+public class NullWebSocketSession implements WebSocketSession {
+
+	private final String id;
+	private final String protocol;
+	private final Map<String, Object> attributes = new HashMap<>();
+	private long bytesSent;
+	private long messagesSent;
+	private long frameCostTokens;
+
+	public NullWebSocketSession(String id) {
+		this(id, null);
+	}
+
+	public NullWebSocketSession(String id, String protocol) {
+		this.id = id;
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Burns some CPU on every frame sent, standing in for the syscall and frame
+	 * header of a real socket write.
+	 */
+	public void setFrameCost(long tokens) {
+		this.frameCostTokens = tokens;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public URI getUri() {
+		return URI.create("ws://localhost/chat");
+	}
+
+	@Override
+	public HttpHeaders getHandshakeHeaders() {
+		return new HttpHeaders();
+	}
+
+	@Override
+	public Map<String, Object> getAttributes() {
+		return attributes;
+	}
+
+	@Override
+	public Principal getPrincipal() {
+		return null;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return null;
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		return null;
+	}
+
+	@Override
+	public String getAcceptedProtocol() {
+		return protocol;
+	}
+
+	@Override
+	public void setTextMessageSizeLimit(int messageSizeLimit) {
+	}
+
+	@Override
+	public int getTextMessageSizeLimit() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+	}
+
+	@Override
+	public int getBinaryMessageSizeLimit() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public List<WebSocketExtension> getExtensions() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void sendMessage(WebSocketMessage<?> message) throws IOException {
+		bytesSent += message.getPayloadLength();
+		messagesSent++;
+		if (frameCostTokens > 0) {
+			Blackhole.consumeCPU(frameCostTokens);
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public void close(CloseStatus status) {
+	}
+}
@@ -0,0 +1,75 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.BinaryProtocol;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.WebSocketUser;
+
+/**
+ * Encode cost and bytes on the wire for the JSON and binary subprotocols, for
+ * a recipient receiving messages from a few recurring senders. Bytes per
+ * message are printed when each trial ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+	@Param({ BinaryProtocol.JSON_SUBPROTOCOL, BinaryProtocol.BINARY_SUBPROTOCOL })
+	public String protocol;
+
+	private Chat chat;
+	private User[] senders;
+	private NullWebSocketSession session;
+	private WebSocketUser receiver;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		chat = new Chat(new ChatManager(1), "bench-room");
+		senders = new User[8];
+		for (int i = 0; i < senders.length; i++) {
+			senders[i] = new BenchUser("sender-" + i);
+		}
+		session = new NullWebSocketSession("receiver", protocol);
+		receiver = new WebSocketUser(session, "receiver", "FF7000");
+	}
+
+	@TearDown(Level.Trial)
+	public void report() {
+		System.out.println(String.format("%n%s: %.1f bytes/message", protocol,
+				(double) session.getBytesSent() / session.getMessagesSent()));
+	}
+
+	@Benchmark
+	public void newMessage() {
+		User sender = senders[next++ & (senders.length - 1)];
+		receiver.newMessage(new ChatMessage(chat, sender, "Hello everybody in the room!"));
+	}
+
+	@Benchmark
+	public void newUserInChat() {
+		receiver.newUserInChat(chat, senders[next++ & (senders.length - 1)]);
+	}
+}
@@ -0,0 +1,75 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMessage;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.User;
+
+/**
+ * Cost of handing one event to a {@link es.codeurjc.webchat.QueuedUser}
+ * mailbox while the dispatcher drains it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueuedUserBenchmark {
+
+	@Param({ "PLATFORM" })
+	public DispatchMode mode;
+
+	@Param({ "DROP_OLDEST", "COALESCE_SYSTEM" })
+	public OverflowPolicy policy;
+
+	private Dispatcher dispatcher;
+	private User queued;
+	private Chat chat;
+	private ChatMessage message;
+	private BenchUser sender;
+
+	@Setup
+	public void setup() throws Exception {
+		dispatcher = new Dispatcher(mode, 4, 1024, policy);
+		ChatManager manager = new ChatManager(1, dispatcher);
+		manager.newUser(new BenchUser("receiver"));
+		queued = manager.getUser("receiver");
+		chat = manager.newChat("bench", 1, TimeUnit.SECONDS);
+		sender = new BenchUser("sender");
+		message = new ChatMessage(chat, sender, "Hello!");
+	}
+
+	@TearDown
+	public void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	@Benchmark
+	public void enqueueMessage() {
+		queued.newMessage(message);
+	}
+
+	@Benchmark
+	public void enqueueSystemEvent() {
+		queued.newUserInChat(chat, sender);
+	}
+}
@@ -0,0 +1,78 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.OverflowPolicy;
+
+/**
+ * Messages sent to a room whose members rarely change: a visitor joins and
+ * leaves once every so many messages, so the copy of the member list on
+ * every change is paid for by the broadcasts in between.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadHeavyRoomBenchmark {
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int roomSize;
+
+	@Param({ "1000" })
+	public int messagesPerChange;
+
+	private Dispatcher dispatcher;
+	private Chat chat;
+	private BenchUser sender;
+	private BenchUser visitor;
+	private int sent;
+
+	@Setup
+	public void setup() throws Exception {
+		dispatcher = new Dispatcher(DispatchMode.PLATFORM, 4, 1024, OverflowPolicy.DROP_OLDEST);
+		ChatManager manager = new ChatManager(1, dispatcher);
+		chat = manager.newChat("bench", 1, TimeUnit.SECONDS);
+		sender = new BenchUser("sender");
+		for (int i = 0; i < roomSize; i++) {
+			BenchUser user = new BenchUser("user" + i);
+			manager.newUser(user);
+			chat.addUser(user);
+		}
+		visitor = new BenchUser("visitor");
+		manager.newUser(visitor);
+	}
+
+	@TearDown
+	public void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	@Benchmark
+	public void sendMessage() {
+		if (++sent == messagesPerChange) {
+			sent = 0;
+			chat.addUser(visitor);
+			chat.removeUser(visitor);
+		}
+		chat.sendMessage(sender, "Hello everybody in the room!");
+	}
+}
@@ -0,0 +1,88 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.BatchPolicy;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DispatchMode;
+import es.codeurjc.webchat.Dispatcher;
+import es.codeurjc.webchat.EvictionPolicy;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.persistence.MessageLog;
+
+/**
+ * Throughput of opening and closing chats with many users online, as the
+ * number of shards their notifications fan out on grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardedChatManagerBenchmark {
+
+	private static final int CHATS = 4;
+
+	@Param({ "1", "2", "4", "8" })
+	public int shards;
+
+	@Param({ "10000" })
+	public int users;
+
+	private Dispatcher dispatcher;
+	private ChatManager manager;
+
+	@Setup
+	public void setup() {
+		dispatcher = new Dispatcher(DispatchMode.PLATFORM, Runtime.getRuntime().availableProcessors(), 64,
+				OverflowPolicy.DROP_OLDEST, BatchPolicy.NONE, shards);
+		manager = new ChatManager(CHATS, dispatcher, EvictionPolicy.NONE, 0, (MessageLog) null);
+		for (int i = 0; i < users; i++) {
+			manager.newUser(new BenchUser("user" + i));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		manager.close();
+		dispatcher.shutdown();
+	}
+
+	@State(Scope.Thread)
+	public static class ChatName {
+
+		private static int next;
+
+		String name;
+
+		@Setup
+		public void setup() {
+			synchronized (ChatName.class) {
+				name = "chat" + next++;
+			}
+		}
+	}
+
+	@Benchmark
+	@Threads(CHATS)
+	public void newChatAndClose(ChatName chatName) throws Exception {
+		Chat chat = manager.newChat(chatName.name, 1, TimeUnit.SECONDS);
+		manager.closeChat(chat);
+	}
+}
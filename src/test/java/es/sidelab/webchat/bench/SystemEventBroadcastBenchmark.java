@@ -0,0 +1,66 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.BinaryProtocol;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.WebSocketUser;
+
+/**
+ * A chat opened and closed while every user on the node is in the lobby: the
+ * new chat and chat closed frames written to each of them, straight from the
+ * users without going through their mailboxes. Run with -prof gc to see the
+ * bytes allocated per broadcast. Run with
+ * {@code mvn test -Pbench -Dbench=SystemEventBroadcastBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SystemEventBroadcastBenchmark {
+
+	@Param({ "50000" })
+	public int users;
+
+	@Param({ BinaryProtocol.JSON_SUBPROTOCOL, BinaryProtocol.BINARY_SUBPROTOCOL })
+	public String protocol;
+
+	private ChatManager manager;
+	private WebSocketUser[] lobby;
+	private int opened;
+
+	@Setup
+	public void setup() {
+		manager = new ChatManager(1);
+		lobby = new WebSocketUser[users];
+		for (int i = 0; i < users; i++) {
+			lobby[i] = new WebSocketUser(new NullWebSocketSession("s" + i, protocol), "user" + i, "007AFF");
+		}
+	}
+
+	@Benchmark
+	public void openAndCloseChat() {
+		Chat chat = new Chat(manager, "chat" + (opened++ & 1023));
+		for (WebSocketUser user : lobby) {
+			user.newChat(chat);
+		}
+		for (WebSocketUser user : lobby) {
+			user.chatClosed(chat);
+		}
+	}
+}
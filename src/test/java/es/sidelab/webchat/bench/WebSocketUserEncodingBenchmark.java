@@ -0,0 +1,58 @@
+package es.sidelab.webchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.WebSocketUser;
+
+/**
+ * JSON encoding done by {@link WebSocketUser} for each kind of event, for a
+ * single recipient.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebSocketUserEncodingBenchmark {
+
+	private Chat chat;
+	private User sender;
+	private WebSocketUser receiver;
+
+	@Setup
+	public void setup() {
+		chat = new Chat(new ChatManager(1), "bench");
+		sender = new BenchUser("sender");
+		receiver = new WebSocketUser(new NullWebSocketSession("receiver"), "receiver", "FF7000");
+	}
+
+	@Benchmark
+	public void newMessage() {
+		receiver.newMessage(chat, sender, "Hello everybody in the room!");
+	}
+
+	@Benchmark
+	public void newUserInChat() {
+		receiver.newUserInChat(chat, sender);
+	}
+
+	@Benchmark
+	public void newChat() {
+		receiver.newChat(chat);
+	}
+}
@@ -0,0 +1,388 @@
+package es.sidelab.webchat.load;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import es.codeurjc.webchat.App;
+import es.codeurjc.webchat.metrics.Histogram;
+import es.codeurjc.webchat.reactive.ReactiveApp;
+
+/**
+ * Headless load generator for the {@code /chat} endpoint. It opens many
+ * WebSocket clients speaking the JSON protocol, spreads them over a number of
+ * rooms, sends messages at a fixed total rate and measures how long each one
+ * takes to reach every member of its room.
+ * <p>
+ * Every message carries the time it was meant to be sent, not the time it
+ * was, so a generator falling behind still shows in the latencies. Run it with
+ * {@code --url ws://host:port/chat}, or without to start the server in this
+ * JVM.
+ */
+public class LoadGenerator {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	public static class Options {
+		public URI uri;
+		public int clients = 1000;
+		public int rooms = 10;
+		public int messagesPerSecond = 1000;
+		public Duration duration = Duration.ofSeconds(10);
+		public int messageSize = 64;
+		public int concurrentConnects = 100;
+		public Duration drainTimeout = Duration.ofSeconds(10);
+		// Collects garbage around connecting to measure the heap the connections take
+		public boolean measureHeap;
+	}
+
+	public static class Report {
+		public int clients;
+		public int rooms;
+		public int failedClients;
+		public long sent;
+		public long received;
+		public long expected;
+		public long sendNanos;
+		public long connectedHeapBytes;
+		public final Histogram connect = new Histogram();
+		public final Histogram join = new Histogram();
+		public final Histogram latency = new Histogram();
+
+		public double getSentPerSecond() {
+			return sent * 1e9 / sendNanos;
+		}
+
+		public double getDeliveredPerSecond() {
+			return received * 1e9 / sendNanos;
+		}
+
+		public double getConnectionsPerGigabyte() {
+			return (clients - failedClients) * (double) (1L << 30) / Math.max(1, connectedHeapBytes);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("clients %d in %d rooms, %d failed%n"
+					+ "connect    p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms%n"
+					+ "join       p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms%n"
+					+ "sent       %d (%.0f/s)%n"
+					+ "delivered  %d of %d (%.0f/s)%n"
+					+ "latency    p50 %8.2f ms  p99 %8.2f ms  p999 %8.2f ms  max %8.2f ms",
+					clients, rooms, failedClients,
+					millis(connect.getValueAtPercentile(50)), millis(connect.getValueAtPercentile(99)),
+					millis(connect.getMax()),
+					millis(join.getValueAtPercentile(50)), millis(join.getValueAtPercentile(99)),
+					millis(join.getMax()),
+					sent, getSentPerSecond(), received, expected, getDeliveredPerSecond(),
+					millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(99)),
+					millis(latency.getValueAtPercentile(99.9)), millis(latency.getMax()))
+					+ (connectedHeapBytes == 0 ? ""
+							: String.format("%nheap       %.1f MB connected (%.0f connections/GB)",
+									connectedHeapBytes / 1e6, getConnectionsPerGigabyte()));
+		}
+
+		private static double millis(long nanos) {
+			return nanos / 1e6;
+		}
+	}
+
+	private final Options options;
+	private final Report report = new Report();
+	private final String runId = UUID.randomUUID().toString().substring(0, 8);
+	private final String prefix = "load:" + runId + ":";
+	private final LongAdder received = new LongAdder();
+	private final String padding;
+
+	public LoadGenerator(Options options) {
+		this.options = options;
+		this.padding = ":" + "x".repeat(Math.max(0, options.messageSize - 32));
+	}
+
+	private class Client implements WebSocket.Listener {
+
+		final String name;
+		final int room;
+		final StringBuilder partial = new StringBuilder();
+		final CountDownLatch joined = new CountDownLatch(1);
+		volatile WebSocket socket;
+		volatile long joinStart;
+		CompletableFuture<WebSocket> sending;
+
+		Client(String name, int room) {
+			this.name = name;
+			this.room = room;
+		}
+
+		@Override
+		public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+			partial.append(data);
+			if (last) {
+				try {
+					received(partial.toString());
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				partial.setLength(0);
+			}
+			webSocket.request(1);
+			return null;
+		}
+
+		private void received(String frame) throws Exception {
+			JsonNode node = mapper.readTree(frame);
+			if (node.isArray()) {
+				for (JsonNode element : node) {
+					received(element);
+				}
+			} else {
+				received(node);
+			}
+		}
+
+		private void received(JsonNode frame) {
+			if (frame.has("type")) {
+				return;
+			}
+			String message = frame.path("message").asText();
+			if (!message.startsWith(prefix)) {
+				return;
+			}
+			String body = message.substring(prefix.length());
+			if (body.startsWith("join:")) {
+				if (body.equals("join:" + name) && joined.getCount() > 0) {
+					report.join.record(System.nanoTime() - joinStart);
+					joined.countDown();
+				}
+				return;
+			}
+			long intended = Long.parseLong(body.substring(0, body.indexOf(':')));
+			report.latency.record(System.nanoTime() - intended);
+			received.increment();
+		}
+
+		/**
+		 * The first message of its own that comes back tells the client it is
+		 * in. Messages sent before its room is ready are lost, so it may take
+		 * more than one.
+		 */
+		void probe() {
+			send("{\"message\":\"" + prefix + "join:" + name + "\"}");
+		}
+
+		synchronized void send(String text) {
+			sending = sending.exceptionally(error -> socket).thenCompose(ws -> ws.sendText(text, true));
+		}
+	}
+
+	public Report run() throws Exception {
+		report.clients = options.clients;
+		report.rooms = options.rooms;
+		HttpClient http = HttpClient.newHttpClient();
+		long heapBefore = options.measureHeap ? usedHeap() : 0;
+		List<Client> clients = connect(http);
+		if (options.measureHeap) {
+			report.connectedHeapBytes = usedHeap() - heapBefore;
+		}
+
+		long[] membersPerRoom = new long[options.rooms];
+		for (Client client : clients) {
+			membersPerRoom[client.room]++;
+		}
+		long[] sentPerRoom = new long[options.rooms];
+		send(clients, sentPerRoom);
+		for (int r = 0; r < options.rooms; r++) {
+			report.expected += sentPerRoom[r] * membersPerRoom[r];
+		}
+
+		long deadline = System.nanoTime() + options.drainTimeout.toNanos();
+		while (received.sum() < report.expected && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		report.received = received.sum();
+
+		for (Client client : clients) {
+			client.socket.sendClose(WebSocket.NORMAL_CLOSURE, "done");
+		}
+		return report;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Opens every client, a bounded number at a time, and joins it to its room.
+	 * Clients that fail to connect or join are left out of the run.
+	 */
+	private List<Client> connect(HttpClient http) throws InterruptedException {
+		Semaphore connecting = new Semaphore(options.concurrentConnects);
+		List<Client> all = new ArrayList<>();
+		for (int i = 0; i < options.clients; i++) {
+			Client client = new Client("load-" + runId + "-" + i, i % options.rooms);
+			all.add(client);
+			connecting.acquire();
+			long start = System.nanoTime();
+			http.newWebSocketBuilder().buildAsync(options.uri, client).whenComplete((socket, error) -> {
+				if (error == null) {
+					report.connect.record(System.nanoTime() - start);
+					client.socket = socket;
+					client.sending = CompletableFuture.completedFuture(socket);
+					client.joinStart = System.nanoTime();
+					client.send(join(client));
+					client.probe();
+				}
+				connecting.release();
+			});
+		}
+		connecting.acquire(options.concurrentConnects);
+
+		List<Client> joined = new ArrayList<>();
+		List<Client> pending = new ArrayList<>();
+		for (Client client : all) {
+			if (client.socket != null) {
+				pending.add(client);
+			} else {
+				report.failedClients++;
+			}
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (!pending.isEmpty() && System.nanoTime() < deadline) {
+			Thread.sleep(100);
+			for (Iterator<Client> it = pending.iterator(); it.hasNext();) {
+				Client client = it.next();
+				if (client.joined.getCount() == 0) {
+					joined.add(client);
+					it.remove();
+				} else {
+					client.probe();
+				}
+			}
+		}
+		report.failedClients += pending.size();
+		return joined;
+	}
+
+	private String join(Client client) {
+		return "{\"chat\":\"load-room-" + client.room + "\",\"user\":\"" + client.name + "\"}";
+	}
+
+	private void send(List<Client> clients, long[] sentPerRoom) {
+		if (clients.isEmpty()) {
+			return;
+		}
+		long interval = TimeUnit.SECONDS.toNanos(1) / options.messagesPerSecond;
+		long start = System.nanoTime();
+		long end = start + options.duration.toNanos();
+		long next = start;
+		for (int i = 0; next < end; i++, next += interval) {
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			Client client = clients.get(i % clients.size());
+			client.send("{\"message\":\"" + prefix + next + padding + "\"}");
+			sentPerRoom[client.room]++;
+			report.sent++;
+		}
+		report.sendNanos = Math.max(1, System.nanoTime() - start);
+	}
+
+	/**
+	 * Starts the chat server in this JVM on a free port.
+	 */
+	public static ConfigurableApplicationContext startServer() {
+		return startServer(false);
+	}
+
+	/**
+	 * @param reactive whether to start the WebFlux server instead of the
+	 *        servlet one
+	 */
+	public static ConfigurableApplicationContext startServer(boolean reactive) {
+		if (reactive) {
+			return ReactiveApp.application().run("--server.port=0");
+		}
+		return SpringApplication.run(App.class, "--server.port=0");
+	}
+
+	public static URI chatUri(ConfigurableApplicationContext server) {
+		int port = ((WebServerApplicationContext) server).getWebServer().getPort();
+		return URI.create("ws://localhost:" + port + "/chat");
+	}
+
+	/**
+	 * Options: --url, --clients, --rooms, --rate (messages per second),
+	 * --duration (seconds), --size (message length) and --stack (servlet or
+	 * reactive, for the server started in this JVM).
+	 */
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		boolean reactive = false;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "--url":
+				options.uri = URI.create(value);
+				break;
+			case "--clients":
+				options.clients = Integer.parseInt(value);
+				break;
+			case "--rooms":
+				options.rooms = Integer.parseInt(value);
+				break;
+			case "--rate":
+				options.messagesPerSecond = Integer.parseInt(value);
+				break;
+			case "--duration":
+				options.duration = Duration.ofSeconds(Long.parseLong(value));
+				break;
+			case "--size":
+				options.messageSize = Integer.parseInt(value);
+				break;
+			case "--stack":
+				reactive = value.equals("reactive");
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		ConfigurableApplicationContext server = null;
+		if (options.uri == null) {
+			server = startServer(reactive);
+			options.uri = chatUri(server);
+		}
+		try {
+			System.out.println(new LoadGenerator(options).run());
+		} finally {
+			if (server != null) {
+				server.close();
+			}
+		}
+	}
+}